@@ -56,6 +56,8 @@ public class SignalsFragment extends Fragment {
         SignalListAdapter signalListAdapter = new SignalListAdapter(getActivity(), IRKit.sharedInstance().signals);
         signalsListView.setAdapter(signalListAdapter);
         mainActivity.setSignalListAdapter(signalListAdapter);
+        // Encode the signals on screen so that the first tap sends without encoding
+        IRKit.sharedInstance().prewarmSignalPayloads(IRKit.sharedInstance().signals);
         signalsListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -0,0 +1,248 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit.client.Header;
+import retrofit.client.OkClient;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+
+/**
+ * POST /messages to a local stand-in for IRKit, the way device API services send them
+ * (OkClient over an OkHttpClient). A cold send opens a new connection,
+ * a warm send reuses one from the connection pool.
+ *
+ * On loopback a warm send isn't faster: OkHttp 2.0 waits up to 1 ms to check that a pooled
+ * connection is still open, and loopback has no handshake cost. Over Wi-Fi a warm send
+ * skips a round trip.
+ */
+public class IRDeviceTransportBenchmark extends AndroidTestCase {
+    public static final String TAG = IRDeviceTransportBenchmark.class.getSimpleName();
+
+    private static final int REQUEST_COUNT = 500;
+    private static final byte[] BODY = "{\"format\":\"raw\",\"freq\":38,\"data\":[18031,8755,1190,1190,1190]}".getBytes();
+
+    // Same as the device connection pool in IRHTTPClient
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION_MS = 5000;
+
+    private StandInServer server;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        super.tearDown();
+    }
+
+    public void testKeepAliveServer() throws IOException {
+        server = new StandInServer(false);
+        long[] cold = sendCold();
+        assertEquals(REQUEST_COUNT, server.getConnectionCount());
+
+        server.resetConnectionCount();
+        long[] warm = sendWarm();
+        // Every warm send reuses the first connection
+        assertEquals(1, server.getConnectionCount());
+
+        log("keep-alive server", cold, warm);
+    }
+
+    public void testServerClosesConnection() throws IOException {
+        server = new StandInServer(true);
+        long[] cold = sendCold();
+        server.resetConnectionCount();
+        long[] warm = sendWarm();
+        // Nothing can be reused, but sends still succeed
+        assertEquals(REQUEST_COUNT, server.getConnectionCount());
+
+        log("server closes connection", cold, warm);
+    }
+
+    private long[] sendCold() throws IOException {
+        long[] times = new long[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            // A fresh pool has no connection to reuse
+            times[i] = send(new OkClient(newHttpClient()));
+        }
+        return times;
+    }
+
+    private long[] sendWarm() throws IOException {
+        OkClient client = new OkClient(newHttpClient());
+        long[] times = new long[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            times[i] = send(client);
+        }
+        return times;
+    }
+
+    private long send(OkClient client) throws IOException {
+        Request request = new Request("POST", server.getUrl() + "/messages", new ArrayList<Header>(),
+                new TypedByteArray("application/json", BODY));
+        long startTime = System.nanoTime();
+        Response response = client.execute(request);
+        long elapsed = System.nanoTime() - startTime;
+        assertEquals(200, response.getStatus());
+        return elapsed;
+    }
+
+    private static OkHttpClient newHttpClient() {
+        OkHttpClient httpClient = new OkHttpClient();
+        httpClient.setConnectTimeout(5, TimeUnit.SECONDS);
+        httpClient.setReadTimeout(10, TimeUnit.SECONDS);
+        httpClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS));
+        return httpClient;
+    }
+
+    private static void log(String label, long[] cold, long[] warm) {
+        Log.i(TAG, label + ": cold " + percentiles(cold) + ", warm " + percentiles(warm));
+    }
+
+    private static String percentiles(long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return String.format("p50 %.2f ms / p99 %.2f ms",
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+    }
+
+    /**
+     * Answers every request with 200 and an empty body, like IRKit does for POST /messages.
+     */
+    private static class StandInServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final boolean closesConnection;
+        private final AtomicInteger connectionCount = new AtomicInteger();
+
+        public StandInServer(boolean closesConnection) throws IOException {
+            this.closesConnection = closesConnection;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        public int getConnectionCount() {
+            return connectionCount.get();
+        }
+
+        public void resetConnectionCount() {
+            connectionCount.set(0);
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                connectionCount.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, TAG + "-Connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (readRequest(in)) {
+                    String response = "HTTP/1.1 200 OK\r\n" +
+                            "Server: IRKit/2.0.2.0.g838e0ea\r\n" +
+                            "Content-Length: 0\r\n" +
+                            (closesConnection ? "Connection: close\r\n" : "") +
+                            "\r\n";
+                    out.write(response.getBytes("US-ASCII"));
+                    out.flush();
+                    if (closesConnection) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * Reads the headers and body of one request.
+         *
+         * @return false if the client closed the connection
+         */
+        private static boolean readRequest(InputStream in) throws IOException {
+            int contentLength = 0;
+            String line = readLine(in);
+            if (line == null) {
+                return false;
+            }
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            for (int i = 0; i < contentLength; i++) {
+                if (in.read() == -1) {
+                    return false;
+                }
+            }
+            return line != null;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int length = builder.length();
+                    if (length > 0 && builder.charAt(length - 1) == '\r') {
+                        builder.setLength(length - 1);
+                    }
+                    return builder.toString();
+                }
+                builder.append((char) c);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRMessagesResponseAdapter;
+import com.getirkit.irkit.net.IRSignalJsonEncoder;
+import com.google.gson.Gson;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * IRMessagesResponseAdapter against Gson reflection, parsing /1/messages bodies of 1k, 5k and 10k pulses.
+ */
+public class IRMessagesResponseAdapterBenchmark extends AndroidTestCase {
+    public static final String TAG = IRMessagesResponseAdapterBenchmark.class.getSimpleName();
+
+    private static final int[] PULSE_COUNTS = {1000, 5000, 10000};
+
+    // Pulses parsed per round and parser
+    private static final int PULSES_PER_ROUND = 2000000;
+    private static final int ROUND_COUNT = 2;
+
+    public void testDecode() {
+        Gson reflective = new Gson();
+        Gson adapter = IRMessagesResponseAdapter.createGson();
+        for (int pulseCount : PULSE_COUNTS) {
+            int[] data = new int[pulseCount];
+            Random random = new Random(pulseCount);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(65535);
+            }
+            String body = "{\"message\":" + IRSignalJsonEncoder.toJson("raw", 38, data) +
+                    ",\"hostname\":\"IRKit1234\",\"deviceid\":\"abc\"}";
+
+            IRInternetAPIService.GetMessagesResponse response = adapter.fromJson(body, IRInternetAPIService.GetMessagesResponse.class);
+            assertTrue(Arrays.equals(data, response.message.data));
+            assertEquals("raw", response.message.format);
+            assertEquals(38, response.message.freq, 0);
+            assertEquals("IRKit1234", response.hostname);
+            assertEquals("abc", response.deviceid);
+
+            // The last round is logged, after the JIT has warmed up
+            int iterationCount = PULSES_PER_ROUND / pulseCount;
+            for (int round = 0; round < ROUND_COUNT; round++) {
+                long startTime = System.nanoTime();
+                for (int i = 0; i < iterationCount; i++) {
+                    reflective.fromJson(new StringReader(body), IRInternetAPIService.GetMessagesResponse.class);
+                }
+                long reflectiveTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                for (int i = 0; i < iterationCount; i++) {
+                    adapter.fromJson(new StringReader(body), IRInternetAPIService.GetMessagesResponse.class);
+                }
+                long adapterTime = System.nanoTime() - startTime;
+
+                if (round == ROUND_COUNT - 1) {
+                    Log.i(TAG, String.format("%d pulses: reflective %.1f us, adapter %.1f us", pulseCount,
+                            reflectiveTime / 1e3 / iterationCount, adapterTime / 1e3 / iterationCount));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * IRProtocolDecoder over 10k synthetic captures: NEC, extended NEC, Sony 12/15/20, RC5 and AEHA,
+ * and captures which aren't any of them. Checks every decoded code against what was sent.
+ */
+public class IRProtocolDecoderBenchmark extends AndroidTestCase {
+    public static final String TAG = IRProtocolDecoderBenchmark.class.getSimpleName();
+
+    private static final int CAPTURE_COUNT = 10000;
+    private static final int RUN_COUNT = 10;
+    private static final String[] KINDS = {"NEC", "NEC ext", "Sony", "RC5", "AEHA", "unknown"};
+
+    private int[][] captures;
+    private Code[] codes;
+
+    public void testJitter3Percent() {
+        // Nothing may be missed at the jitter of common receivers
+        assertEquals(0, decodeAll(0.03));
+    }
+
+    public void testJitter5Percent() {
+        decodeAll(0.05);
+    }
+
+    /**
+     * Returns the number of captures which weren't decoded.
+     */
+    private int decodeAll(double jitterRatio) {
+        generate(new IRTestSignals(11, jitterRatio));
+        IRProtocolDecoder decoder = IRProtocolDecoder.sharedInstance();
+
+        int[] decodedCounts = new int[KINDS.length];
+        int[] totalCounts = new int[KINDS.length];
+        int missed = 0;
+        for (int i = 0; i < CAPTURE_COUNT; i++) {
+            IRDecodedSignal decoded = decoder.decode(captures[i]);
+            Code code = codes[i];
+            int kind = i % KINDS.length;
+            totalCounts[kind]++;
+            if (code == null) {
+                assertNull("capture " + i + ": " + decoded, decoded);
+                continue;
+            }
+            if (decoded == null) {
+                missed++;
+                continue;
+            }
+            decodedCounts[kind]++;
+            assertEquals("capture " + i, code.protocol, decoded.getProtocol());
+            assertEquals("capture " + i, code.address, decoded.getAddress());
+            assertEquals("capture " + i, code.command, decoded.getCommand());
+            assertEquals("capture " + i, code.bitCount, decoded.getBitCount());
+        }
+
+        long pulseCount = 0;
+        for (int[] data : captures) {
+            pulseCount += data.length;
+        }
+        long bestTime = Long.MAX_VALUE;
+        for (int run = 0; run < RUN_COUNT; run++) {
+            long startTime = System.nanoTime();
+            for (int[] data : captures) {
+                decoder.decode(data);
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int kind = 0; kind < KINDS.length - 1; kind++) {
+            builder.append(KINDS[kind]).append(' ').append(decodedCounts[kind]).append('/')
+                    .append(totalCounts[kind]).append(", ");
+        }
+        Log.i(TAG, String.format("jitter %.0f%%: decoded %s%d unknown not decoded; %d captures (%d pulses) in %.2f ms",
+                jitterRatio * 100, builder, totalCounts[KINDS.length - 1], CAPTURE_COUNT, pulseCount, bestTime / 1e6));
+        return missed;
+    }
+
+    private void generate(IRTestSignals signals) {
+        Random random = signals.getRandom();
+        captures = new int[CAPTURE_COUNT][];
+        codes = new Code[CAPTURE_COUNT];
+        for (int i = 0; i < CAPTURE_COUNT; i++) {
+            switch (i % KINDS.length) {
+                case 0: {
+                    int address = random.nextInt(256);
+                    int command = random.nextInt(256);
+                    captures[i] = signals.nec(address, command, random.nextInt(4));
+                    codes[i] = new Code(IRDecodedSignal.PROTOCOL_NEC, address, command, 32);
+                    break;
+                }
+                case 1: {
+                    int address;
+                    do {
+                        address = random.nextInt(65536);
+                    } while ((address >> 8) == (~address & 0xff));
+                    int command = random.nextInt(256);
+                    captures[i] = signals.necExtended(address, command, random.nextInt(4));
+                    codes[i] = new Code(IRDecodedSignal.PROTOCOL_NEC, address, command, 32);
+                    break;
+                }
+                case 2: {
+                    int bitCount = new int[]{12, 15, 20}[random.nextInt(3)];
+                    int address = random.nextInt(1 << (bitCount - 7));
+                    int command = random.nextInt(128);
+                    captures[i] = signals.sony(bitCount, address, command, 3 + random.nextInt(3));
+                    codes[i] = new Code(IRDecodedSignal.PROTOCOL_SONY, address, command, bitCount);
+                    break;
+                }
+                case 3: {
+                    int address = random.nextInt(32);
+                    int command = random.nextInt(128);
+                    captures[i] = signals.rc5(address, command, random.nextInt(2), 1 + random.nextInt(3));
+                    codes[i] = new Code(IRDecodedSignal.PROTOCOL_RC5, address, command, 14);
+                    break;
+                }
+                case 4: {
+                    byte[] bytes = new byte[6 + random.nextInt(14)];
+                    random.nextBytes(bytes);
+                    int unit = 700 + random.nextInt(300);
+                    captures[i] = signals.aeha(unit, bytes, random.nextInt(3) == 0 ? 2 : 1, random.nextInt(2));
+                    codes[i] = new Code(IRDecodedSignal.PROTOCOL_AEHA, (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8,
+                            (bytes[2] & 0xff) | (bytes[3] & 0xff) << 8 | (bytes[4] & 0xff) << 16 | (bytes[5] & 0xff) << 24,
+                            bytes.length * 8);
+                    break;
+                }
+                default:
+                    captures[i] = random.nextBoolean() ? twoFrames(signals) : noise(random);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Two different AEHA frames, as air conditioners send
+     */
+    private static int[] twoFrames(IRTestSignals signals) {
+        byte[] bytes = new byte[14];
+        signals.getRandom().nextBytes(bytes);
+        ArrayList<Integer> out = new ArrayList<>();
+        add(out, signals.aeha(850, bytes, 1));
+        out.add(signals.space(20000));
+        bytes[13]++;
+        add(out, signals.aeha(850, bytes, 1));
+        return IRTestSignals.toArray(out);
+    }
+
+    private static int[] noise(Random random) {
+        int[] data = new int[2 * (5 + random.nextInt(60)) + 1];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = 300 + random.nextInt(8000);
+        }
+        return data;
+    }
+
+    private static void add(List<Integer> out, int[] data) {
+        for (int value : data) {
+            out.add(value);
+        }
+    }
+
+    private static class Code {
+        public final int protocol;
+        public final int address;
+        public final int command;
+        public final int bitCount;
+
+        public Code(int protocol, int address, int command, int bitCount) {
+            this.protocol = protocol;
+            this.address = address;
+            this.command = command;
+            this.bitCount = bitCount;
+        }
+    }
+}
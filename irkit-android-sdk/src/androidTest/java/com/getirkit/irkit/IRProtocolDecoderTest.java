@@ -0,0 +1,126 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Decoding of captures with 3% jitter, and marks stretched by MARK_SKEW like real receivers do.
+ */
+public class IRProtocolDecoderTest extends AndroidTestCase {
+    private static final double JITTER_RATIO = 0.03;
+
+    private IRTestSignals signals;
+    private IRProtocolDecoder decoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        signals = new IRTestSignals(11, JITTER_RATIO);
+        decoder = IRProtocolDecoder.sharedInstance();
+    }
+
+    public void testNec() {
+        IRDecodedSignal decoded = decoder.decode(signals.nec(0x04, 0x08, 0));
+        assertCode(IRDecodedSignal.PROTOCOL_NEC, 0x04, 0x08, 32, decoded);
+        assertEquals(0, decoded.getRepeatCount());
+    }
+
+    public void testExtendedNecWithRepeatCodes() {
+        IRDecodedSignal decoded = decoder.decode(signals.necExtended(0x1234, 0x5a, 3));
+        assertCode(IRDecodedSignal.PROTOCOL_NEC, 0x1234, 0x5a, 32, decoded);
+        assertEquals(3, decoded.getRepeatCount());
+
+        // Holding the button doesn't make it another code
+        IRDecodedSignal shortPress = decoder.decode(signals.necExtended(0x1234, 0x5a, 0));
+        assertEquals(decoded, shortPress);
+        assertEquals(decoded.hashCode(), shortPress.hashCode());
+        assertFalse(decoded.equals(decoder.decode(signals.necExtended(0x1234, 0x5b, 3))));
+    }
+
+    public void testAeha() {
+        byte[] bytes = {0x23, (byte) 0xcb, 0x26, 0x01, 0x00, 0x20, 0x08, 0x06, 0x30, 0x45, 0x67};
+        for (int unit : new int[]{700, 850, 999}) {
+            IRDecodedSignal decoded = decoder.decode(signals.aeha(unit, bytes, 1));
+            assertCode(IRDecodedSignal.PROTOCOL_AEHA, 0xcb23, 0x20000126, bytes.length * 8, decoded);
+            assertEquals(0, decoded.getRepeatCount());
+        }
+    }
+
+    public void testAehaRepeats() {
+        byte[] bytes = {0x02, 0x20, (byte) 0xe0, 0x04, 0x00, 0x00};
+        IRDecodedSignal decoded = decoder.decode(signals.aeha(850, bytes, 2, 2));
+        assertCode(IRDecodedSignal.PROTOCOL_AEHA, 0x2002, 0x04e0, 48, decoded);
+        assertEquals(3, decoded.getRepeatCount());
+    }
+
+    public void testSony12() {
+        IRDecodedSignal decoded = decoder.decode(signals.sony(12, 0x01, 0x15, 3));
+        assertCode(IRDecodedSignal.PROTOCOL_SONY, 0x01, 0x15, 12, decoded);
+        assertEquals(2, decoded.getRepeatCount());
+    }
+
+    public void testSony15() {
+        IRDecodedSignal decoded = decoder.decode(signals.sony(15, 0xa4, 0x7f, 3));
+        assertCode(IRDecodedSignal.PROTOCOL_SONY, 0xa4, 0x7f, 15, decoded);
+    }
+
+    public void testSony20() {
+        IRDecodedSignal decoded = decoder.decode(signals.sony(20, 0x1a5a, 0x00, 5));
+        assertCode(IRDecodedSignal.PROTOCOL_SONY, 0x1a5a, 0x00, 20, decoded);
+        assertEquals(4, decoded.getRepeatCount());
+    }
+
+    public void testRc5Toggle() {
+        IRDecodedSignal first = decoder.decode(signals.rc5(0x05, 0x35, 0, 1));
+        IRDecodedSignal second = decoder.decode(signals.rc5(0x05, 0x35, 1, 3));
+        assertCode(IRDecodedSignal.PROTOCOL_RC5, 0x05, 0x35, 14, first);
+        assertCode(IRDecodedSignal.PROTOCOL_RC5, 0x05, 0x35, 14, second);
+        assertEquals(0, first.getToggle());
+        assertEquals(1, second.getToggle());
+        assertEquals(2, second.getRepeatCount());
+
+        // Each press flips the toggle, but it is the same button
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    public void testRc5ExtendedCommand() {
+        // Commands from 64 are sent with an inverted second start bit
+        IRDecodedSignal decoded = decoder.decode(signals.rc5(0x1f, 0x45, 1, 1));
+        assertCode(IRDecodedSignal.PROTOCOL_RC5, 0x1f, 0x45, 14, decoded);
+    }
+
+    public void testDifferentFramesAreUnknown() {
+        // Air conditioners may send two different frames
+        ArrayList<Integer> out = new ArrayList<>();
+        for (int value : signals.aeha(850, new byte[]{0x23, (byte) 0xcb, 0x26, 0x01, 0x00, 0x20}, 1)) {
+            out.add(value);
+        }
+        out.add(signals.space(20000));
+        for (int value : signals.aeha(850, new byte[]{0x23, (byte) 0xcb, 0x26, 0x01, 0x00, 0x24}, 1)) {
+            out.add(value);
+        }
+        assertNull(decoder.decode(IRTestSignals.toArray(out)));
+    }
+
+    public void testNoiseIsUnknown() {
+        Random random = signals.getRandom();
+        for (int i = 0; i < 100; i++) {
+            int[] data = new int[2 * (5 + random.nextInt(60)) + 1];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = 300 + random.nextInt(8000);
+            }
+            assertNull(decoder.decode(data));
+        }
+    }
+
+    private static void assertCode(int protocol, int address, int command, int bitCount, IRDecodedSignal decoded) {
+        assertNotNull(decoded);
+        assertEquals(decoded.toString(), protocol, decoded.getProtocol());
+        assertEquals(decoded.toString(), address, decoded.getAddress());
+        assertEquals(decoded.toString(), command, decoded.getCommand());
+        assertEquals(decoded.toString(), bitCount, decoded.getBitCount());
+    }
+}
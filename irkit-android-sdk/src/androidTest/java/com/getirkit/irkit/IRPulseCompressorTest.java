@@ -0,0 +1,94 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Round trips of learned signals through IRPulseCompressor.normalize() and IRSignalCodec,
+ * using the repeat shapes of NEC, AEHA, Sony and RC5 captures in 2MHz ticks.
+ */
+public class IRPulseCompressorTest extends AndroidTestCase {
+    private IRTestSignals signals;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        signals = new IRTestSignals(1);
+    }
+
+    public void testNecRepeatCodes() {
+        // Frame followed by three repeat codes while the button is held
+        int[] data = signals.nec(0x04, 0x08, 3);
+        assertRoundTrip(data, 3, IRDecodedSignal.PROTOCOL_NEC);
+    }
+
+    public void testAehaSentTwice() {
+        // Air conditioners send their state twice
+        byte[] bytes = {0x23, (byte) 0xcb, 0x26, 0x01, 0x00, 0x20, 0x08, 0x06, 0x30, 0x45, 0x67};
+        int[] data = signals.aeha(850, bytes, 2);
+        assertRoundTrip(data, 2, IRDecodedSignal.PROTOCOL_AEHA);
+    }
+
+    public void testSonyThreeFrames() {
+        int[] data = signals.sony(12, 0x01, 0x15, 3);
+        assertRoundTrip(data, 3, IRDecodedSignal.PROTOCOL_SONY);
+    }
+
+    public void testRc5ThreeFrames() {
+        int[] data = signals.rc5(0x05, 0x35, 1, 3);
+        assertRoundTrip(data, 3, IRDecodedSignal.PROTOCOL_RC5);
+    }
+
+    public void testSingleFrameIsUnchanged() {
+        int[] data = signals.sony(12, 0x01, 0x15, 1);
+        assertSame(data, IRPulseCompressor.normalize(data, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT));
+        assertTrue(Arrays.equals(data, readPulses(writePulses(data))));
+    }
+
+    private void assertRoundTrip(int[] data, int repeatCount, int protocol) {
+        int[] normalized = IRPulseCompressor.normalize(data, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT);
+        assertEquals(data.length, normalized.length);
+
+        // Every pulse stays within the tolerance of the frame it was matched against
+        IRPulseCompressor.Repeat repeat = IRPulseCompressor.findRepeat(data, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT);
+        assertNotNull(repeat);
+        assertEquals(repeatCount, repeat.getRepeatCount());
+        for (int i = 0; i < data.length; i++) {
+            int tolerance = Math.max(IRPulseCompressor.MIN_TOLERANCE,
+                    normalized[i] * IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT / 100);
+            assertTrue("pulse " + i, Math.abs(data[i] - normalized[i]) <= tolerance);
+        }
+
+        // Repeats are exact now, so they are stored once
+        IRPulseCompressor.Repeat exact = IRPulseCompressor.findRepeat(normalized, 0);
+        assertNotNull(exact);
+        assertEquals(repeatCount, exact.getRepeatCount());
+
+        byte[] encoded = writePulses(normalized);
+        assertTrue(encoded.length < writePulses(data).length);
+        assertTrue(Arrays.equals(normalized, readPulses(encoded)));
+        assertTrue(Arrays.equals(data, readPulses(writePulses(data))));
+
+        // Normalizing doesn't change what the signal means
+        IRDecodedSignal decoded = IRProtocolDecoder.sharedInstance().decode(data);
+        assertNotNull(decoded);
+        assertEquals(protocol, decoded.getProtocol());
+        assertEquals(decoded, IRProtocolDecoder.sharedInstance().decode(normalized));
+        assertEquals(decoded, IRProtocolDecoder.sharedInstance().decode(readPulses(encoded)));
+    }
+
+    private static byte[] writePulses(int[] data) {
+        IRSignalCodec.Writer writer = new IRSignalCodec.Writer(data.length * 2);
+        writer.writePulses(data);
+        return Arrays.copyOf(writer.getBuffer(), writer.size());
+    }
+
+    private static int[] readPulses(byte[] encoded) {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        int[] data = IRSignalCodec.readPulses(in, IRSignalCodec.PULSES_FRAMED);
+        assertFalse(in.hasRemaining());
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+
+import com.getirkit.irkit.net.IRAPIError;
+import com.getirkit.irkit.net.IRAPIResult;
+import com.getirkit.irkit.net.IRSignalPayload;
+
+import java.util.ArrayList;
+
+public class IRSendSchedulerTest extends AndroidTestCase {
+    private ArrayList<IRAPIResult> pendingResults;
+    private ArrayList<String> sentIds;
+    private IRSendScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pendingResults = new ArrayList<>();
+        sentIds = new ArrayList<>();
+        scheduler = new IRSendScheduler(new IRSendScheduler.SendHandler() {
+            @Override
+            public void onSend(IRSignal signal, IRSignalPayload payload, IRAPIResult result) {
+                sentIds.add(signal.getId());
+                pendingResults.add(result);
+            }
+        });
+    }
+
+    public void testIdleLaneIsRemoved() {
+        scheduler.enqueue(newSignal("a1", "deviceA"), null);
+        scheduler.enqueue(newSignal("a2", "deviceA"), null);
+        scheduler.enqueue(newSignal("b1", "deviceB"), null);
+        assertEquals(2, scheduler.getAllLaneStats().size());
+        assertEquals(2, scheduler.getQueueDepth("deviceA"));
+
+        finishNext();
+        assertEquals(1, scheduler.getQueueDepth("deviceA"));
+        finishNext();
+        assertNull(scheduler.getLaneStats("deviceB"));
+        finishNext();
+        assertNull(scheduler.getLaneStats("deviceA"));
+        assertTrue(scheduler.getAllLaneStats().isEmpty());
+    }
+
+    public void testEnqueueAfterRemovalSendsImmediately() {
+        scheduler.enqueue(newSignal("a1", null), null);
+        finishNext();
+        assertNull(scheduler.getLaneStats(null));
+
+        scheduler.enqueue(newSignal("a2", null), null);
+        assertEquals(2, sentIds.size());
+        assertEquals("a2", sentIds.get(1));
+        IRSendScheduler.LaneStats stats = scheduler.getLaneStats(null);
+        assertNotNull(stats);
+        assertEquals(1, stats.enqueuedCount);
+        assertEquals(0, stats.successCount);
+    }
+
+    public void testEnqueueFromCallbackReusesLane() {
+        scheduler.enqueue(newSignal("a1", "deviceA"), new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                // The lane isn't removed until after the callbacks, so this goes into the same lane
+                scheduler.enqueue(newSignal("a2", "deviceA"), null);
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+            }
+
+            @Override
+            public void onTimeout() {
+            }
+        });
+        finishNext();
+        assertEquals(2, sentIds.size());
+        assertEquals(1, scheduler.getQueueDepth("deviceA"));
+        finishNext();
+        assertNull(scheduler.getLaneStats("deviceA"));
+    }
+
+    private void finishNext() {
+        pendingResults.remove(0).onSuccess();
+    }
+
+    private static IRSignal newSignal(String id, String deviceId) {
+        IRSignal signal = new IRSignal();
+        signal.setId(id);
+        signal.setDeviceId(deviceId);
+        return signal;
+    }
+}
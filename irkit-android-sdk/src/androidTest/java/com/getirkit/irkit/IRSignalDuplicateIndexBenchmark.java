@@ -0,0 +1,125 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IRSignalDuplicateIndex against comparing the capture with every signal in a library of 10k signals.
+ * Half of the queries are recaptures of learned buttons, the other half new buttons of known remotes.
+ */
+public class IRSignalDuplicateIndexBenchmark extends AndroidTestCase {
+    public static final String TAG = IRSignalDuplicateIndexBenchmark.class.getSimpleName();
+
+    private static final int SIGNAL_COUNT = 10000;
+    private static final int BUTTONS_PER_REMOTE = 40;
+    private static final int QUERY_COUNT = 2000;
+    private static final double JITTER_RATIO = 0.015;
+
+    public void testIndexAgainstBruteForce() {
+        IRTestSignals testSignals = new IRTestSignals(7, JITTER_RATIO);
+        IRSignals signals = new IRSignals();
+        for (int i = 0; i < SIGNAL_COUNT; i++) {
+            signals.add(newSignal(testSignals.button(i / BUTTONS_PER_REMOTE, i % BUTTONS_PER_REMOTE)));
+        }
+        IRSignal[] queries = new IRSignal[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            int remote = testSignals.getRandom().nextInt(SIGNAL_COUNT / BUTTONS_PER_REMOTE);
+            int button = testSignals.getRandom().nextInt(BUTTONS_PER_REMOTE);
+            if (i % 2 == 1) {
+                // Not learned yet
+                button += BUTTONS_PER_REMOTE;
+            }
+            queries[i] = newSignal(testSignals.button(remote, button));
+        }
+
+        long startTime = System.nanoTime();
+        IRSignalDuplicateIndex index = new IRSignalDuplicateIndex();
+        index.update(signals);
+        long buildTime = System.nanoTime() - startTime;
+
+        // Brute force with the canonical form of each signal computed in advance
+        List<int[]> canonicals = new ArrayList<>(signals.size());
+        for (IRSignal signal : signals) {
+            canonicals.add(IRPulseFingerprint.canonicalize(signal.getData()));
+        }
+
+        // Warm up
+        for (int i = 0; i < QUERY_COUNT; i += 4) {
+            index.findDuplicates(queries[i]);
+            findByBruteForce(queries[i], signals, canonicals);
+        }
+
+        long[] indexTimes = new long[QUERY_COUNT];
+        long[] bruteForceTimes = new long[QUERY_COUNT];
+        int bruteForceCount = 0;
+        int recapturesFound = 0;
+        int found = 0;
+        int missed = 0;
+        int extra = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            startTime = System.nanoTime();
+            List<IRSignal> duplicates = index.findDuplicates(queries[i]);
+            indexTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            List<IRSignal> expected = findByBruteForce(queries[i], signals, canonicals);
+            bruteForceTimes[i] = System.nanoTime() - startTime;
+
+            bruteForceCount += expected.size();
+            if (i % 2 == 0 && !expected.isEmpty()) {
+                recapturesFound++;
+            }
+            for (IRSignal signal : expected) {
+                if (duplicates.contains(signal)) {
+                    found++;
+                } else {
+                    missed++;
+                }
+            }
+            for (IRSignal signal : duplicates) {
+                if (!expected.contains(signal)) {
+                    extra++;
+                }
+            }
+        }
+
+        Log.i(TAG, "build " + buildTime / 1000000 + " ms; index " + percentiles(indexTimes) +
+                ", brute force " + percentiles(bruteForceTimes) + "; brute force found " + bruteForceCount +
+                " (" + recapturesFound + " of " + QUERY_COUNT / 2 + " recaptures), index found " + found +
+                ", missed " + missed + ", extra " + extra + "; " + index.getStats());
+        assertTrue(recapturesFound > 0);
+        assertEquals(0, extra);
+        assertTrue("missed " + missed, missed * 100 <= bruteForceCount);
+    }
+
+    private static List<IRSignal> findByBruteForce(IRSignal capture, IRSignals signals, List<int[]> canonicals) {
+        int[] canonical = IRPulseFingerprint.canonicalize(capture.getData());
+        ArrayList<IRSignal> duplicates = new ArrayList<>();
+        for (int i = 0; i < canonicals.size(); i++) {
+            IRSignal signal = signals.get(i);
+            if (Math.abs(signal.getFrequency() - capture.getFrequency()) <= IRSignalDuplicateIndex.MAX_FREQUENCY_DIFFERENCE &&
+                    IRPulseFingerprint.matches(canonical, canonicals.get(i), IRPulseFingerprint.DEFAULT_TOLERANCE_PERCENT)) {
+                duplicates.add(signal);
+            }
+        }
+        return duplicates;
+    }
+
+    private static String percentiles(long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return String.format("median %.0f us / p99 %.0f us",
+                sorted[sorted.length / 2] / 1e3, sorted[sorted.length * 99 / 100] / 1e3);
+    }
+
+    private static IRSignal newSignal(int[] data) {
+        IRSignal signal = new IRSignal();
+        signal.setFrequency(38);
+        signal.setData(data);
+        return signal;
+    }
+}
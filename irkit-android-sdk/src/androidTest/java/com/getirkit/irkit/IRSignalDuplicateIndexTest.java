@@ -0,0 +1,80 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Queries of IRSignalDuplicateIndex with captures that jitter like a real receiver.
+ */
+public class IRSignalDuplicateIndexTest extends AndroidTestCase {
+    private static final int REMOTE_COUNT = 30;
+    private static final int BUTTON_COUNT = 10;
+    private static final double JITTER_RATIO = 0.015;
+
+    private IRTestSignals testSignals;
+    private IRSignals signals;
+    private IRSignalDuplicateIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testSignals = new IRTestSignals(7, JITTER_RATIO);
+        signals = new IRSignals();
+        for (int remote = 0; remote < REMOTE_COUNT; remote++) {
+            for (int button = 0; button < BUTTON_COUNT; button++) {
+                signals.add(newSignal(testSignals.button(remote, button)));
+            }
+        }
+        index = new IRSignalDuplicateIndex();
+        index.update(signals);
+    }
+
+    public void testRecaptureMatches() {
+        for (int remote = 0; remote < REMOTE_COUNT; remote++) {
+            int button = testSignals.getRandom().nextInt(BUTTON_COUNT);
+            IRSignal capture = newSignal(testSignals.button(remote, button));
+            assertSame("remote " + remote, signals.get(remote * BUTTON_COUNT + button), index.findDuplicate(capture));
+        }
+    }
+
+    public void testOtherButtonDoesNotMatch() {
+        for (int remote = 0; remote < REMOTE_COUNT; remote++) {
+            IRSignal capture = newSignal(testSignals.button(remote, BUTTON_COUNT + remote % BUTTON_COUNT));
+            assertNull("remote " + remote, index.findDuplicate(capture));
+        }
+    }
+
+    public void testHeldButtonMatchesShortPress() {
+        IRSignal shortPress = newSignal(testSignals.nec(0x80, 0x10, 0));
+        signals.add(shortPress);
+        index.update(signals);
+
+        IRSignal held = newSignal(testSignals.nec(0x80, 0x10, 5));
+        assertSame(shortPress, index.findDuplicate(held));
+    }
+
+    public void testOtherFrequencyDoesNotMatch() {
+        IRSignal signal = signals.get(0);
+        IRSignal capture = newSignal(signal.getData());
+        capture.setFrequency(signal.getFrequency() - IRSignalDuplicateIndex.MAX_FREQUENCY_DIFFERENCE - 1);
+        assertNull(index.findDuplicate(capture));
+        capture.setFrequency(signal.getFrequency() - IRSignalDuplicateIndex.MAX_FREQUENCY_DIFFERENCE);
+        assertSame(signal, index.findDuplicate(capture));
+    }
+
+    public void testEditedSignalIsReindexed() {
+        IRSignal signal = signals.get(0);
+        int[] otherButton = testSignals.button(0, BUTTON_COUNT);
+        signal.setData(otherButton);
+        index.update(signals);
+
+        assertSame(signal, index.findDuplicate(newSignal(testSignals.button(0, BUTTON_COUNT))));
+        assertNull(index.findDuplicate(newSignal(testSignals.button(0, 0))));
+    }
+
+    private static IRSignal newSignal(int[] data) {
+        IRSignal signal = new IRSignal();
+        signal.setFrequency(38);
+        signal.setData(data);
+        return signal;
+    }
+}
@@ -0,0 +1,113 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRDeviceAPIService;
+import com.getirkit.irkit.net.IRSignalJsonEncoder;
+import com.google.gson.Gson;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * IRSignalJsonEncoder against building the same JSON with org.json and Gson, for a signal of 1000 pulses.
+ */
+public class IRSignalJsonEncoderBenchmark extends AndroidTestCase {
+    public static final String TAG = IRSignalJsonEncoderBenchmark.class.getSimpleName();
+
+    private static final int PULSE_COUNT = 1000;
+    private static final int ITERATION_COUNT = 5000;
+    private static final int ROUND_COUNT = 3;
+
+    private int[] data;
+    private IRDeviceAPIService.PostMessagesRequest request;
+    private Gson gson;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        data = new int[PULSE_COUNT];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(65535);
+        }
+        request = new IRDeviceAPIService.PostMessagesRequest();
+        request.format = "raw";
+        request.freq = 38;
+        request.data = data;
+        gson = new Gson();
+    }
+
+    public void testOutputMatches() throws IOException {
+        // freq is written as "38" like org.json does, where Gson writes "38.0"
+        String json = IRSignalJsonEncoder.toJson("raw", 38, data);
+        IRDeviceAPIService.PostMessagesRequest decoded = gson.fromJson(json, IRDeviceAPIService.PostMessagesRequest.class);
+        assertEquals(request.format, decoded.format);
+        assertEquals(request.freq, decoded.freq, 0);
+        assertTrue(Arrays.equals(request.data, decoded.data));
+
+        String form = new String(IRSignalJsonEncoder.toBytes("raw", 38, data, true), "UTF-8");
+        assertEquals(URLEncoder.encode(json, "UTF-8"), form);
+        assertEquals(form.length(), IRSignalJsonEncoder.length("raw", 38, data, true));
+    }
+
+    public void testEncode() throws JSONException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        // The last round is logged, after the JIT has warmed up
+        for (int round = 0; round < ROUND_COUNT; round++) {
+            int length = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                JSONObject object = new JSONObject();
+                object.put("format", "raw");
+                object.put("freq", 38);
+                JSONArray array = new JSONArray();
+                for (int value : data) {
+                    array.put(value);
+                }
+                object.put("data", array);
+                length += object.toString().length();
+            }
+            long orgJsonTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                length += gson.toJson(request).length();
+            }
+            long gsonTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                length += IRSignalJsonEncoder.toJson("raw", 38, data).length();
+            }
+            long toJsonTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                out.reset();
+                IRSignalJsonEncoder.writeTo(out, "raw", 38, data, false);
+                length += out.size();
+            }
+            long writeToTime = System.nanoTime() - startTime;
+
+            assertTrue(length > 0);
+            if (round == ROUND_COUNT - 1) {
+                Log.i(TAG, String.format("%d pulses: org.json %.1f us, Gson %.1f us, encoder toJson %.1f us, encoder writeTo %.1f us",
+                        PULSE_COUNT, perIteration(orgJsonTime), perIteration(gsonTime),
+                        perIteration(toJsonTime), perIteration(writeToTime)));
+            }
+        }
+    }
+
+    private static double perIteration(long time) {
+        return time / 1e3 / ITERATION_COUNT;
+    }
+}
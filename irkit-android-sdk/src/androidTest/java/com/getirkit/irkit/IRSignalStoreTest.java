@@ -0,0 +1,223 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class IRSignalStoreTest extends AndroidTestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getContext().getCacheDir(), "IRSignalStoreTest");
+        deleteRecursively(dir);
+        assertTrue(dir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(dir);
+        super.tearDown();
+    }
+
+    public void testCorruptedSnapshotKeepsJournals() throws IOException {
+        IRSignalStore store = new IRSignalStore(dir);
+        ArrayList<IRSignal> signals = new ArrayList<>();
+        signals.add(newSignal("a", new int[]{100, 200, 300}));
+        signals.add(newSignal("b", new int[]{400, 500, 600}));
+        store.rewrite(signals);
+        signals.add(newSignal("c", new int[]{700, 800, 900}));
+        store.save(signals);
+
+        File snapshotFile = new File(dir, IRSignalsFile.FILENAME);
+        File journalFile = new File(dir, IRSignalStore.JOURNAL_PREFIX + 1);
+        File corruptFile = new File(dir, IRSignalsFile.FILENAME + IRSignalStore.CORRUPT_SUFFIX);
+        assertTrue(journalFile.exists());
+        byte[] journal = IRSignalsFile.readFully(journalFile);
+        byte[] snapshot = IRSignalsFile.readFully(snapshotFile);
+        snapshot[snapshot.length / 2] ^= 0xff;
+        write(snapshotFile, snapshot);
+
+        IRSignalStore recovered = new IRSignalStore(dir);
+        ArrayList<IRSignal> out = new ArrayList<>();
+        assertTrue(recovered.load(out));
+        assertTrue(recovered.isReadOnly());
+        assertEquals(Arrays.asList("c"), ids(out));
+        assertFalse(snapshotFile.exists());
+        assertTrue(Arrays.equals(snapshot, IRSignalsFile.readFully(corruptFile)));
+
+        out.add(newSignal("d", new int[]{1000, 1100, 1200}));
+        try {
+            recovered.save(out);
+            fail("save() must fail while the store is read-only");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            recovered.rewrite(out);
+            fail("rewrite() must fail while the store is read-only");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(snapshotFile.exists());
+        assertTrue(Arrays.equals(snapshot, IRSignalsFile.readFully(corruptFile)));
+        assertTrue(Arrays.equals(journal, IRSignalsFile.readFully(journalFile)));
+
+        // Stays read-only across loads until the recovered signals are accepted
+        IRSignalStore reloaded = new IRSignalStore(dir);
+        out.clear();
+        assertTrue(reloaded.load(out));
+        assertTrue(reloaded.isReadOnly());
+        assertEquals(Arrays.asList("c"), ids(out));
+
+        reloaded.discardCorruptSnapshot(out);
+        assertFalse(reloaded.isReadOnly());
+        assertFalse(corruptFile.exists());
+        assertFalse(journalFile.exists());
+        out.clear();
+        assertTrue(new IRSignalStore(dir).load(out));
+        assertEquals(Arrays.asList("c"), ids(out));
+    }
+
+    public void testSaveWithoutLoadAppendsToJournal() throws IOException {
+        IRSignalStore store = new IRSignalStore(dir);
+        ArrayList<IRSignal> signals = new ArrayList<>();
+        signals.add(newSignal("a", new int[]{100, 200, 300}));
+        store.rewrite(signals);
+        signals.add(newSignal("b", new int[]{400, 500, 600}));
+        store.save(signals);
+
+        File snapshotFile = new File(dir, IRSignalsFile.FILENAME);
+        File journalFile = new File(dir, IRSignalStore.JOURNAL_PREFIX + 1);
+        byte[] snapshot = IRSignalsFile.readFully(snapshotFile);
+        long journalLength = journalFile.length();
+
+        // A store which hasn't loaded yet appends the difference instead of replacing everything
+        IRSignalStore other = new IRSignalStore(dir);
+        signals.add(newSignal("c", new int[]{700, 800, 900}));
+        other.save(signals);
+        assertTrue(Arrays.equals(snapshot, IRSignalsFile.readFully(snapshotFile)));
+        assertTrue(journalFile.length() > journalLength);
+
+        ArrayList<IRSignal> out = new ArrayList<>();
+        assertTrue(new IRSignalStore(dir).load(out));
+        assertEquals(Arrays.asList("a", "b", "c"), ids(out));
+        assertTrue(Arrays.equals(new int[]{700, 800, 900}, out.get(2).getData()));
+    }
+
+    public void testFailedAppendDoesNotHideLaterSaves() throws IOException {
+        IRSignalStore store = new IRSignalStore(dir);
+        ArrayList<IRSignal> signals = new ArrayList<>();
+        signals.add(newSignal("a", new int[]{100, 200, 300}));
+        store.rewrite(signals);
+        signals.add(newSignal("b", new int[]{400, 500, 600}));
+        store.save(signals);
+
+        FailingStore failing = new FailingStore(dir);
+        ArrayList<IRSignal> loaded = new ArrayList<>();
+        assertTrue(failing.load(loaded));
+        loaded.add(newSignal("c", new int[]{700, 800, 900}));
+        failing.failNextAppend = true;
+        try {
+            failing.save(loaded);
+            fail("save() must report the failed append");
+        } catch (IOException e) {
+            // expected
+        }
+        // The record of c is written again with the next save
+        loaded.add(newSignal("d", new int[]{1000, 1100, 1200}));
+        failing.save(loaded);
+
+        ArrayList<IRSignal> out = new ArrayList<>();
+        assertTrue(new IRSignalStore(dir).load(out));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), ids(out));
+    }
+
+    /**
+     * Store whose journal fails in the middle of an append when failNextAppend is set.
+     */
+    private static class FailingStore extends IRSignalStore {
+        public boolean failNextAppend;
+
+        public FailingStore(File dir) {
+            super(dir);
+        }
+
+        @Override
+        OutputStream openJournal(File file) throws IOException {
+            final OutputStream out = super.openJournal(file);
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (failNextAppend) {
+                        failNextAppend = false;
+                        // Half of the bytes reach the file, like a full disk
+                        out.write(b, off, len / 2);
+                        out.flush();
+                        throw new IOException("injected failure");
+                    }
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+    }
+
+    private static IRSignal newSignal(String id, int[] data) {
+        IRSignal signal = new IRSignal();
+        signal.setId(id);
+        signal.setName(id);
+        signal.setFormat("raw");
+        signal.setFrequency(38);
+        signal.setData(data);
+        return signal;
+    }
+
+    private static List<String> ids(List<IRSignal> signals) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (IRSignal signal : signals) {
+            ids.add(signal.getId());
+        }
+        return ids;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
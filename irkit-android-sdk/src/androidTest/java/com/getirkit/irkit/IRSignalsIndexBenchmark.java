@@ -0,0 +1,163 @@
+package com.getirkit.irkit;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Indexed lookups of IRSignals and IRPeripherals against the linear scans they replaced,
+ * over 10k signals of 4 devices and 20 peripherals.
+ */
+public class IRSignalsIndexBenchmark extends AndroidTestCase {
+    public static final String TAG = IRSignalsIndexBenchmark.class.getSimpleName();
+
+    private static final int SIGNAL_COUNT = 10000;
+    private static final int DEVICE_COUNT = 4;
+    private static final int PERIPHERAL_COUNT = 20;
+    private static final int ROUND_COUNT = 3;
+
+    private IRSignals signals;
+    private IRPeripherals peripherals;
+    private String[] ids;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        signals = new IRSignals();
+        ids = new String[SIGNAL_COUNT];
+        for (int i = 0; i < SIGNAL_COUNT; i++) {
+            IRSignal signal = new IRSignal();
+            ids[i] = "signal" + i;
+            signal.setId(ids[i]);
+            signal.setDeviceId("device" + i % DEVICE_COUNT);
+            signals.add(signal);
+        }
+        peripherals = new IRPeripherals();
+        for (int i = 0; i < PERIPHERAL_COUNT; i++) {
+            IRPeripheral peripheral = new IRPeripheral();
+            peripheral.setHostname("IRKit" + (1000 + i));
+            peripheral.setDeviceId("device" + i);
+            peripherals.add(peripheral);
+        }
+    }
+
+    public void testLookups() {
+        int hits = 0;
+        // The last round is logged, after the JIT has warmed up
+        for (int round = 0; round < ROUND_COUNT; round++) {
+            int count = 2000;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (findSignal(ids[i * 7919 % SIGNAL_COUNT]) != null) {
+                    hits++;
+                }
+            }
+            long linearSignalTime = (System.nanoTime() - startTime) / count;
+
+            count = 200000;
+            startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (signals.getSignal(ids[i * 7919 % SIGNAL_COUNT]) != null) {
+                    hits++;
+                }
+            }
+            long indexedSignalTime = (System.nanoTime() - startTime) / count;
+
+            count = 200;
+            startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                hits += findSignalsOfDevice("device1").size();
+            }
+            long linearDeviceTime = (System.nanoTime() - startTime) / count;
+
+            count = 200000;
+            startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                hits += signals.getSignalsViewByDeviceId("device1").size();
+            }
+            long viewDeviceTime = (System.nanoTime() - startTime) / count;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (findPeripheral("irkit1019") != null) {
+                    hits++;
+                }
+            }
+            long linearPeripheralTime = (System.nanoTime() - startTime) / count;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (peripherals.getPeripheral("irkit1019") != null) {
+                    hits++;
+                }
+            }
+            long indexedPeripheralTime = (System.nanoTime() - startTime) / count;
+
+            if (round == ROUND_COUNT - 1) {
+                Log.i(TAG, String.format("getSignal: linear %.2f us, indexed %.3f us; " +
+                                "signals of a device (%d of %d): new IRSignals %.1f us, view %.3f us; " +
+                                "getPeripheral (%d): linear %.3f us, indexed %.3f us",
+                        linearSignalTime / 1e3, indexedSignalTime / 1e3,
+                        SIGNAL_COUNT / DEVICE_COUNT, SIGNAL_COUNT, linearDeviceTime / 1e3, viewDeviceTime / 1e3,
+                        PERIPHERAL_COUNT, linearPeripheralTime / 1e3, indexedPeripheralTime / 1e3));
+            }
+        }
+        assertTrue(hits > 0);
+    }
+
+    public void testIndexesFollowEdits() {
+        IRSignal signal = signals.get(5);
+        signal.setId("changed");
+        assertSame(signal, signals.getSignal("changed"));
+        assertNull(signals.getSignal(ids[5]));
+
+        signals.remove(6);
+        assertNull(signals.getSignal(ids[6]));
+
+        signal.setDeviceId("other");
+        assertEquals(1, signals.getSignalsViewByDeviceId("other").size());
+        signals.removeIRSignalsForDeviceId("other");
+        assertNull(signals.getSignal("changed"));
+
+        IRSignal replacement = new IRSignal();
+        replacement.setId("replacement");
+        signals.set(0, replacement);
+        assertSame(replacement, signals.getSignal("replacement"));
+        assertNull(signals.getSignal(ids[0]));
+
+        IRPeripheral peripheral = peripherals.get(3);
+        peripheral.setHostname("Other");
+        assertSame(peripheral, peripherals.getPeripheral("OTHER"));
+        assertNull(peripherals.getPeripheral("IRKit1003"));
+    }
+
+    private IRSignal findSignal(String id) {
+        for (IRSignal signal : signals) {
+            if (signal.getId().equals(id)) {
+                return signal;
+            }
+        }
+        return null;
+    }
+
+    private List<IRSignal> findSignalsOfDevice(String deviceId) {
+        IRSignals deviceSignals = new IRSignals();
+        for (IRSignal signal : signals) {
+            if (deviceId.equals(signal.getDeviceId())) {
+                deviceSignals.add(signal);
+            }
+        }
+        return deviceSignals;
+    }
+
+    private IRPeripheral findPeripheral(String hostname) {
+        hostname = hostname.toLowerCase();
+        for (IRPeripheral peripheral : peripherals) {
+            if (peripheral.getHostname().toLowerCase().equals(hostname)) {
+                return peripheral;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,201 @@
+package com.getirkit.irkit;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Learned signals in 2MHz ticks as a receiver captures them, with NEC, AEHA, Sony and RC5 shapes.
+ * The same seed gives the same pulses.
+ */
+class IRTestSignals {
+    // Receivers jitter by some microseconds and stretch marks by a fixed time
+    static final int JITTER = 16;
+    static final int MARK_SKEW = 120;
+
+    private final Random random;
+    private final double jitterRatio;
+
+    IRTestSignals(long seed) {
+        this(seed, 0);
+    }
+
+    /**
+     * @param seed
+     * @param jitterRatio Jitter relative to the width of each pulse, used where it is larger than JITTER
+     */
+    IRTestSignals(long seed, double jitterRatio) {
+        random = new Random(seed);
+        this.jitterRatio = jitterRatio;
+    }
+
+    Random getRandom() {
+        return random;
+    }
+
+    int mark(int ticks) {
+        return jitter(ticks) + MARK_SKEW;
+    }
+
+    int space(int ticks) {
+        return jitter(ticks) - MARK_SKEW;
+    }
+
+    private int jitter(int ticks) {
+        return ticks + (int) Math.round(random.nextGaussian() * Math.max(JITTER, ticks * jitterRatio));
+    }
+
+    /**
+     * Bits of value LSB first, each as a mark of unit and a space of unit or 3 units.
+     */
+    void pulseDistance(ArrayList<Integer> out, long value, int bitCount, int unit) {
+        for (int i = 0; i < bitCount; i++) {
+            out.add(mark(unit));
+            out.add(space(((value >> i) & 1) == 1 ? unit * 3 : unit));
+        }
+    }
+
+    /**
+     * NEC frame with 8 bit address followed by repeat codes while the button is held.
+     */
+    int[] nec(int address, int command, int repeatCodes) {
+        return necFrame(address & 0xff | (~address & 0xff) << 8, command, repeatCodes);
+    }
+
+    /**
+     * Extended NEC frame, whose 16 bit address has no inverted byte.
+     */
+    int[] necExtended(int address, int command, int repeatCodes) {
+        return necFrame(address & 0xffff, command, repeatCodes);
+    }
+
+    private int[] necFrame(int address16, int command, int repeatCodes) {
+        long code = address16 | (command & 0xff) << 16 | (long) (~command & 0xff) << 24;
+        ArrayList<Integer> out = new ArrayList<>();
+        out.add(mark(18000));
+        out.add(space(9000));
+        pulseDistance(out, code, 32, 1125);
+        out.add(mark(1125));
+        for (int i = 0; i < repeatCodes; i++) {
+            out.add(space(60000));
+            out.add(mark(18000));
+            out.add(space(4500));
+            out.add(mark(1125));
+        }
+        return toArray(out);
+    }
+
+    int[] aeha(int unit, byte[] bytes, int frames) {
+        return aeha(unit, bytes, frames, 0);
+    }
+
+    /**
+     * AEHA frames followed by repeat codes of 8T mark, 8T space and a stop bit.
+     */
+    int[] aeha(int unit, byte[] bytes, int frames, int repeatCodes) {
+        ArrayList<Integer> out = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame > 0) {
+                out.add(space(20000));
+            }
+            out.add(mark(unit * 8));
+            out.add(space(unit * 4));
+            for (byte b : bytes) {
+                pulseDistance(out, b & 0xff, 8, unit);
+            }
+            out.add(mark(unit));
+        }
+        for (int i = 0; i < repeatCodes; i++) {
+            out.add(space(30000));
+            out.add(mark(unit * 8));
+            out.add(space(unit * 8));
+            out.add(mark(unit));
+        }
+        return toArray(out);
+    }
+
+    /**
+     * Sony frame of 7 bit command and address of bitCount - 7 bits (12, 15 or 20 bits in total).
+     */
+    int[] sony(int bitCount, int address, int command, int frames) {
+        long code = command | (long) address << 7;
+        ArrayList<Integer> out = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame > 0) {
+                out.add(space(50000));
+            }
+            out.add(mark(4800));
+            out.add(space(1200));
+            for (int i = 0; i < bitCount; i++) {
+                out.add(mark(((code >> i) & 1) == 1 ? 2400 : 1200));
+                if (i < bitCount - 1) {
+                    out.add(space(1200));
+                }
+            }
+        }
+        return toArray(out);
+    }
+
+    int[] rc5(int address, int command, int toggle, int frames) {
+        int value = 1 << 13 | (command < 64 ? 1 : 0) << 12 | toggle << 11 | (address & 0x1f) << 6 | (command & 0x3f);
+        // Half bits: 1 is space then mark, 0 is mark then space
+        int[] halves = new int[28];
+        for (int i = 0; i < 14; i++) {
+            int bit = (value >> (13 - i)) & 1;
+            halves[i * 2] = bit ^ 1;
+            halves[i * 2 + 1] = bit;
+        }
+        int start = 0;
+        while (halves[start] == 0) {
+            start++;
+        }
+        int end = halves.length - 1;
+        while (halves[end] == 0) {
+            end--;
+        }
+        ArrayList<Integer> out = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame > 0) {
+                out.add(space(50000));
+            }
+            int i = start;
+            while (i <= end) {
+                int level = halves[i];
+                int count = 0;
+                while (i <= end && halves[i] == level) {
+                    count++;
+                    i++;
+                }
+                out.add(level == 1 ? mark(1778 * count) : space(1778 * count));
+            }
+        }
+        return toArray(out);
+    }
+
+    /**
+     * A button of a remote, as a library of learned signals would have them.
+     * Remotes take turns to use NEC, Sony 15 bits and AEHA. Repeats vary between captures.
+     */
+    int[] button(int remote, int button) {
+        switch (remote % 3) {
+            case 0:
+                return nec(remote, button, random.nextInt(4));
+            case 1:
+                return sony(15, remote & 0xff, button & 0x7f, 3 + random.nextInt(3));
+            default: {
+                // Same bytes for every button of the remote but one
+                byte[] bytes = new byte[14];
+                new Random(remote).nextBytes(bytes);
+                bytes[8] = (byte) button;
+                return aeha(850, bytes, 1 + random.nextInt(2));
+            }
+        }
+    }
+
+    static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,123 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Last known local addresses of IRKits by hostname, kept across app launches.
+ *
+ * IRPeripheral doesn't serialize its address, so it is stored here as JSON
+ * in a separate preference. Entries expire after a TTL.
+ */
+class IRAddressCache {
+    public static final String TAG = IRAddressCache.class.getSimpleName();
+
+    public static final String PREFS_KEY = "peripheral_addresses";
+
+    public static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private long ttlMs = DEFAULT_TTL_MS;
+
+    public static class Entry {
+        public final String host;
+        public final int port;
+        public final long savedAt;
+
+        public Entry(String host, int port, long savedAt) {
+            this.host = host;
+            this.port = port;
+            this.savedAt = savedAt;
+        }
+    }
+
+    public synchronized void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public synchronized long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * Returns the entry for hostname, or null if there is none or it has expired.
+     *
+     * @param hostname
+     * @param now Wall clock time in ms
+     * @return
+     */
+    public synchronized Entry get(String hostname, long now) {
+        Entry entry = entries.get(hostname);
+        if (entry == null || now - entry.savedAt >= ttlMs || now < entry.savedAt) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Remember the address.
+     *
+     * @return true if the cache has changed enough to be saved
+     */
+    public synchronized boolean put(String hostname, String host, int port, long now) {
+        Entry entry = entries.get(hostname);
+        // Refreshing the timestamp alone is only worth a write when a good part of the TTL has passed
+        if (entry != null && entry.port == port && entry.host.equals(host) &&
+                now >= entry.savedAt && now - entry.savedAt < ttlMs / 4) {
+            return false;
+        }
+        entries.put(hostname, new Entry(host, port, now));
+        return true;
+    }
+
+    /**
+     * @return true if there was an entry
+     */
+    public synchronized boolean remove(String hostname) {
+        return entries.remove(hostname) != null;
+    }
+
+    public synchronized void load(String json, long now) {
+        entries.clear();
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONObject obj = new JSONObject(json);
+            Iterator<?> keys = obj.keys();
+            while (keys.hasNext()) {
+                String hostname = (String) keys.next();
+                JSONObject entryObj = obj.getJSONObject(hostname);
+                Entry entry = new Entry(entryObj.getString("host"), entryObj.getInt("port"), entryObj.getLong("savedAt"));
+                if (now - entry.savedAt < ttlMs) {
+                    entries.put(hostname, entry);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to load address cache: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    public synchronized String toJSONString() {
+        JSONObject obj = new JSONObject();
+        try {
+            for (HashMap.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                JSONObject entryObj = new JSONObject();
+                entryObj.put("host", entry.host);
+                entryObj.put("port", entry.port);
+                entryObj.put("savedAt", entry.savedAt);
+                obj.put(mapEntry.getKey(), entryObj);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return obj.toString();
+    }
+}
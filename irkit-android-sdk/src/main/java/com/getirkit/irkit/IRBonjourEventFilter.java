@@ -0,0 +1,114 @@
+package com.getirkit.irkit;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+/**
+ * Drops duplicated Bonjour resolve events.
+ *
+ * JmDNS reports the same service many times while IRKit announces itself.
+ * An event is dropped if the same service name resolved to the same address and port
+ * within the window.
+ */
+public class IRBonjourEventFilter {
+    public static final String TAG = IRBonjourEventFilter.class.getSimpleName();
+
+    public static final long DEFAULT_WINDOW_MS = 10000;
+
+    private final long windowMs;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    private long rawCount;
+    private long effectiveCount;
+    private long addressChangeCount;
+
+    public IRBonjourEventFilter() {
+        this(DEFAULT_WINDOW_MS);
+    }
+
+    public IRBonjourEventFilter(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Returns true if the event should be handled.
+     *
+     * @param serviceName
+     * @param host
+     * @param port
+     * @param now Time in ms of a monotonic clock
+     * @return
+     */
+    public synchronized boolean accept(String serviceName, InetAddress host, int port, long now) {
+        rawCount++;
+        Entry entry = entries.get(serviceName);
+        if (entry != null && entry.port == port && entry.host.equals(host) && now - entry.acceptedAt < windowMs) {
+            return false;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(serviceName, entry);
+        }
+        entry.host = host;
+        entry.port = port;
+        entry.acceptedAt = now;
+        effectiveCount++;
+        return true;
+    }
+
+    /**
+     * Forget the service so that its next event is accepted. Call this when the service is removed.
+     *
+     * @param serviceName
+     */
+    public synchronized void forget(String serviceName) {
+        entries.remove(serviceName);
+    }
+
+    /**
+     * Count an accepted event which changed the address of a known IRKit.
+     */
+    public synchronized void recordAddressChange() {
+        addressChangeCount++;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.rawCount = rawCount;
+        stats.effectiveCount = effectiveCount;
+        stats.addressChangeCount = addressChangeCount;
+        return stats;
+    }
+
+    private static class Entry {
+        InetAddress host;
+        int port;
+        long acceptedAt;
+    }
+
+    /**
+     * Counters of IRBonjourEventFilter at some point in time.
+     */
+    public static class Stats {
+        /**
+         * Number of resolve events reported by JmDNS
+         */
+        public long rawCount;
+
+        /**
+         * Number of events which weren't duplicates
+         */
+        public long effectiveCount;
+
+        /**
+         * Number of events which changed the address of a known IRKit
+         */
+        public long addressChangeCount;
+
+        @Override
+        public String toString() {
+            return "Stats[raw=" + rawCount + ";effective=" + effectiveCount +
+                    ";addressChanges=" + addressChangeCount + "]";
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.getirkit.irkit;
+
+import java.util.Arrays;
+
+/**
+ * Code of a known protocol decoded from raw pulse data by IRProtocolDecoder.
+ *
+ * Two captures of the same button decode to equal IRDecodedSignals, regardless of jitter,
+ * how long the button was held (repeatCount) or the RC5 toggle bit.
+ */
+public class IRDecodedSignal {
+    public static final String TAG = IRDecodedSignal.class.getSimpleName();
+
+    public static final int PROTOCOL_NEC = 1;
+    public static final int PROTOCOL_SONY = 2;
+    public static final int PROTOCOL_RC5 = 3;
+    public static final int PROTOCOL_AEHA = 4;
+
+    private final int protocol;
+    private final int bitCount;
+    private final byte[] bits;
+    private final int repeatCount;
+    private final int toggle;
+
+    /**
+     * @param protocol One of PROTOCOL_*
+     * @param bitCount
+     * @param bits Bits in the order they are sent, packed from the least significant bit of bits[0].
+     *             The RC5 toggle bit has to be cleared.
+     * @param repeatCount
+     * @param toggle RC5 toggle bit. 0 for other protocols.
+     */
+    public IRDecodedSignal(int protocol, int bitCount, byte[] bits, int repeatCount, int toggle) {
+        this.protocol = protocol;
+        this.bitCount = bitCount;
+        this.bits = bits;
+        this.repeatCount = repeatCount;
+        this.toggle = toggle;
+    }
+
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public String getProtocolName() {
+        switch (protocol) {
+            case PROTOCOL_NEC:
+                return "NEC";
+            case PROTOCOL_SONY:
+                return "Sony";
+            case PROTOCOL_RC5:
+                return "RC5";
+            case PROTOCOL_AEHA:
+                return "AEHA";
+            default:
+                return "Unknown";
+        }
+    }
+
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * Returns a copy of the bits in the order they are sent, packed from the least significant bit of the first byte.
+     *
+     * @return
+     */
+    public byte[] getBits() {
+        return bits.clone();
+    }
+
+    /**
+     * Returns count bits from index as an integer, the first bit being the least significant.
+     *
+     * @param index
+     * @param count At most 32
+     * @return
+     */
+    public int getBits(int index, int count) {
+        int value = 0;
+        for (int i = 0; i < count && index + i < bitCount; i++) {
+            int bit = index + i;
+            value |= ((bits[bit >> 3] >> (bit & 7)) & 1) << i;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the address: the customer code for NEC (8 bits, or 16 bits for extended NEC) and AEHA (16 bits),
+     * the device for Sony (5, 8 or 13 bits) and the system for RC5 (5 bits).
+     *
+     * @return
+     */
+    public int getAddress() {
+        switch (protocol) {
+            case PROTOCOL_NEC: {
+                int address = getBits(0, 8);
+                int check = getBits(8, 8);
+                return check == (~address & 0xff) ? address : address | check << 8;
+            }
+            case PROTOCOL_SONY:
+                return getBits(7, bitCount - 7);
+            case PROTOCOL_RC5:
+                return reverse(getBits(3, 5), 5);
+            case PROTOCOL_AEHA:
+                return getBits(0, 16);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the command: 8 bits (or 16 bits if not followed by its inverse) for NEC, 7 bits for Sony,
+     * 7 bits for RC5 including the RC5X field bit, and the first 32 bits after the customer code for AEHA.
+     *
+     * @return
+     */
+    public int getCommand() {
+        switch (protocol) {
+            case PROTOCOL_NEC: {
+                int command = getBits(16, 8);
+                int check = getBits(24, 8);
+                return check == (~command & 0xff) ? command : command | check << 8;
+            }
+            case PROTOCOL_SONY:
+                return getBits(0, 7);
+            case PROTOCOL_RC5:
+                // Inverted second start bit is the 7th command bit
+                return reverse(getBits(8, 6), 6) | (getBits(1, 1) ^ 1) << 6;
+            case PROTOCOL_AEHA:
+                return getBits(16, 32);
+            default:
+                return 0;
+        }
+    }
+
+    private static int reverse(int value, int count) {
+        return Integer.reverse(value) >>> (32 - count);
+    }
+
+    /**
+     * Returns the number of frames or repeat codes sent after the first frame.
+     *
+     * @return
+     */
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
+    /**
+     * Returns the RC5 toggle bit, which changes on each press.
+     *
+     * @return
+     */
+    public int getToggle() {
+        return toggle;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IRDecodedSignal)) {
+            return false;
+        }
+        IRDecodedSignal other = (IRDecodedSignal) o;
+        return protocol == other.protocol && bitCount == other.bitCount && Arrays.equals(bits, other.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return (protocol * 31 + bitCount) * 31 + Arrays.hashCode(bits);
+    }
+
+    @Override
+    public String toString() {
+        return getProtocolName() + "[address=0x" + Integer.toHexString(getAddress()) +
+                ";command=0x" + Integer.toHexString(getCommand()) + ";bits=" + bitCount + ";repeats=" + repeatCount + "]";
+    }
+}
@@ -0,0 +1,179 @@
+package com.getirkit.irkit;
+
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.jmdns.JmDNS;
+
+/**
+ * Keeps one JmDNS instance (and the multicast lock it needs) alive across
+ * discovery start/stop cycles.
+ *
+ * Starting JmDNS binds a socket and probes the network, which takes seconds.
+ * release() keeps the instance for a grace period, so that stopping and starting
+ * discovery in onPause()/onResume() reuses it. The instance is replaced when the
+ * address of the network interface has changed, and closed by close() on network change.
+ */
+public class IRDiscoverySession {
+    public static final String TAG = IRDiscoverySession.class.getSimpleName();
+
+    public static final long DEFAULT_GRACE_PERIOD_MS = 30000;
+
+    private final long gracePeriodMs;
+    private JmDNS jmdns;
+    private InetAddress address;
+    private WifiManager.MulticastLock multicastLock;
+    private IRScheduler.Task closeTask;
+
+    private int coldStartCount;
+    private int warmStartCount;
+    private long lastStartLatencyMs = -1;
+    private long totalColdStartLatencyMs;
+
+    public IRDiscoverySession() {
+        this(DEFAULT_GRACE_PERIOD_MS);
+    }
+
+    public IRDiscoverySession(long gracePeriodMs) {
+        this.gracePeriodMs = gracePeriodMs;
+    }
+
+    /**
+     * Returns JmDNS bound to address, reusing the current one if possible.
+     * Blocks while JmDNS starts, so call this on a background thread.
+     *
+     * @param wifiManager
+     * @param address Address of the Wi-Fi interface
+     * @return
+     * @throws IOException
+     */
+    public synchronized JmDNS acquire(WifiManager wifiManager, InetAddress address) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        if (closeTask != null) {
+            closeTask.cancel();
+            closeTask = null;
+        }
+        if (jmdns != null && address != null && address.equals(this.address)) {
+            warmStartCount++;
+            lastStartLatencyMs = SystemClock.elapsedRealtime() - startTime;
+            return jmdns;
+        }
+        closeNow();
+
+        multicastLock = wifiManager.createMulticastLock(getClass().getName());
+        multicastLock.setReferenceCounted(true);
+        multicastLock.acquire();
+        try {
+            // Do not use default constructor i.e. JmDNS.create()
+            jmdns = JmDNS.create(address);
+        } catch (IOException e) {
+            closeNow();
+            throw e;
+        }
+        this.address = address;
+        coldStartCount++;
+        lastStartLatencyMs = SystemClock.elapsedRealtime() - startTime;
+        totalColdStartLatencyMs += lastStartLatencyMs;
+        Log.d(TAG, "started JmDNS in " + lastStartLatencyMs + " ms");
+        return jmdns;
+    }
+
+    /**
+     * Returns true if JmDNS is open and bound to address.
+     *
+     * @param address
+     * @return
+     */
+    public synchronized boolean isBoundTo(InetAddress address) {
+        return jmdns != null && address != null && address.equals(this.address);
+    }
+
+    /**
+     * Close JmDNS after the grace period unless acquire() is called in the meantime.
+     */
+    public synchronized void release() {
+        if (jmdns == null || closeTask != null) {
+            return;
+        }
+        closeTask = IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (IRDiscoverySession.this) {
+                    closeTask = null;
+                    closeNow();
+                }
+            }
+        }, gracePeriodMs);
+    }
+
+    /**
+     * Close JmDNS now. Call this when the network has changed.
+     */
+    public synchronized void close() {
+        if (closeTask != null) {
+            closeTask.cancel();
+            closeTask = null;
+        }
+        closeNow();
+    }
+
+    private void closeNow() {
+        if (jmdns != null) {
+            try {
+                jmdns.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            jmdns = null;
+        }
+        address = null;
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.coldStartCount = coldStartCount;
+        stats.warmStartCount = warmStartCount;
+        stats.lastStartLatencyMs = lastStartLatencyMs;
+        stats.averageColdStartLatencyMs = coldStartCount > 0 ? totalColdStartLatencyMs / coldStartCount : -1;
+        stats.isOpen = jmdns != null;
+        return stats;
+    }
+
+    /**
+     * Counters of IRDiscoverySession at some point in time.
+     */
+    public static class Stats {
+        /**
+         * Number of times JmDNS was created
+         */
+        public int coldStartCount;
+
+        /**
+         * Number of times JmDNS was reused
+         */
+        public int warmStartCount;
+
+        /**
+         * Time taken by the last acquire(), or -1
+         */
+        public long lastStartLatencyMs;
+
+        public long averageColdStartLatencyMs;
+        public boolean isOpen;
+
+        @Override
+        public String toString() {
+            return "Stats[cold=" + coldStartCount + ";warm=" + warmStartCount +
+                    ";lastStartLatency=" + lastStartLatencyMs + ";avgColdStartLatency=" + averageColdStartLatencyMs +
+                    ";open=" + isOpen + "]";
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.getirkit.irkit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves "hostname.local" of known IRKits with one-shot Multicast DNS queries (RFC 6762 5.1).
+ *
+ * The query is sent from an ephemeral port, so IRKit answers with a unicast response
+ * and there is no need to join the multicast group or wait for a service browse.
+ * All hostnames are asked in one packet, which is retransmitted until all of them are
+ * resolved or the timeout expires.
+ */
+public class IRHostnameResolver {
+    public static final String TAG = IRHostnameResolver.class.getSimpleName();
+
+    public static final int DEFAULT_TIMEOUT_MS = 300;
+
+    private static final int RETRANSMIT_INTERVAL_MS = 100;
+    private static final String MDNS_ADDRESS = "224.0.0.251";
+    private static final int MDNS_PORT = 5353;
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_PACKET_SIZE = 9000;
+
+    public interface Listener {
+        /**
+         * Called on the resolving thread for each hostname which has been resolved.
+         *
+         * @param hostname One of the hostnames given to resolve()
+         * @param address
+         */
+        public void onResolved(String hostname, InetAddress address);
+    }
+
+    private final InetSocketAddress destination;
+
+    public IRHostnameResolver() {
+        this(createMdnsDestination());
+    }
+
+    IRHostnameResolver(InetSocketAddress destination) {
+        this.destination = destination;
+    }
+
+    private static InetSocketAddress createMdnsDestination() {
+        try {
+            return new InetSocketAddress(InetAddress.getByName(MDNS_ADDRESS), MDNS_PORT);
+        } catch (UnknownHostException e) {
+            // Never happens for a numeric address
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Resolve hostnames. Blocks until all of them are resolved or timeoutMs passes,
+     * so call this on a background thread.
+     *
+     * @param localAddress Address of the Wi-Fi interface, or null to let the system choose
+     * @param hostnames e.g. "IRKitD2A4"
+     * @param timeoutMs
+     * @param listener
+     * @return Number of resolved hostnames
+     */
+    public int resolve(InetAddress localAddress, List<String> hostnames, int timeoutMs, Listener listener) {
+        // Lower-cased "hostname.local" to hostname
+        HashMap<String, String> pending = new HashMap<>();
+        for (String hostname : hostnames) {
+            pending.put(toLocalName(hostname), hostname);
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        int queryId = (int) (SystemClock.elapsedRealtime() & 0xffff);
+        int resolvedCount = 0;
+        long startTime = SystemClock.elapsedRealtime();
+        MulticastSocket socket = null;
+        try {
+            socket = new MulticastSocket(new InetSocketAddress(localAddress, 0));
+            if (localAddress != null) {
+                socket.setInterface(localAddress);
+            }
+            socket.setTimeToLive(255);
+            byte[] buf = new byte[MAX_PACKET_SIZE];
+            long deadline = startTime + timeoutMs;
+            long nextSendAt = startTime;
+            while (!pending.isEmpty()) {
+                long now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    break;
+                }
+                if (now >= nextSendAt) {
+                    byte[] query = buildQuery(queryId, new ArrayList<>(pending.keySet()));
+                    socket.send(new DatagramPacket(query, query.length, destination));
+                    nextSendAt = now + RETRANSMIT_INTERVAL_MS;
+                }
+                socket.setSoTimeout((int) Math.max(1, Math.min(deadline, nextSendAt) - now));
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                HashMap<String, InetAddress> records = new HashMap<>();
+                parseAddressRecords(packet.getData(), packet.getLength(), records);
+                for (HashMap.Entry<String, InetAddress> record : records.entrySet()) {
+                    String hostname = pending.remove(record.getKey());
+                    if (hostname != null) {
+                        resolvedCount++;
+                        listener.onResolved(hostname, record.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "resolve failed: " + e.getMessage());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        Log.d(TAG, "resolved " + resolvedCount + "/" + hostnames.size() + " in " +
+                (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return resolvedCount;
+    }
+
+    static String toLocalName(String hostname) {
+        String name = hostname.toLowerCase(Locale.US);
+        return name.endsWith(".local") ? name : name + ".local";
+    }
+
+    /**
+     * Build a query with one A question per name.
+     */
+    static byte[] buildQuery(int queryId, List<String> names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, queryId);
+        writeShort(out, 0);  // flags: standard query
+        writeShort(out, names.size());
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        for (String name : names) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = label.getBytes();
+                out.write(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            out.write(0);
+            writeShort(out, TYPE_A);
+            writeShort(out, CLASS_IN);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    /**
+     * Collect A records in answer and additional sections into records (lower-cased name to address).
+     * Malformed packets are ignored.
+     */
+    static void parseAddressRecords(byte[] data, int length, HashMap<String, InetAddress> records) {
+        try {
+            int[] pos = new int[]{12};
+            if (length < 12) {
+                return;
+            }
+            int questionCount = readShort(data, 4);
+            int recordCount = readShort(data, 6) + readShort(data, 8) + readShort(data, 10);
+            for (int i = 0; i < questionCount; i++) {
+                readName(data, length, pos);
+                pos[0] += 4;
+            }
+            for (int i = 0; i < recordCount; i++) {
+                String name = readName(data, length, pos);
+                if (pos[0] + 10 > length) {
+                    return;
+                }
+                int type = readShort(data, pos[0]);
+                int recordClass = readShort(data, pos[0] + 2) & 0x7fff;  // without cache-flush bit
+                int dataLength = readShort(data, pos[0] + 8);
+                pos[0] += 10;
+                if (pos[0] + dataLength > length) {
+                    return;
+                }
+                if (type == TYPE_A && recordClass == CLASS_IN && dataLength == 4) {
+                    byte[] address = new byte[4];
+                    System.arraycopy(data, pos[0], address, 0, 4);
+                    records.put(name.toLowerCase(Locale.US), InetAddress.getByAddress(address));
+                }
+                pos[0] += dataLength;
+            }
+        } catch (UnknownHostException | IndexOutOfBoundsException e) {
+            // Malformed packet
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static String readName(byte[] data, int length, int[] pos) {
+        StringBuilder name = new StringBuilder();
+        int p = pos[0];
+        int end = -1;
+        // Bounds the number of compression pointers to follow
+        for (int jumps = 0; jumps < 32; ) {
+            int labelLength = data[p] & 0xff;
+            if (labelLength == 0) {
+                p++;
+                break;
+            }
+            if ((labelLength & 0xc0) == 0xc0) {
+                if (end < 0) {
+                    end = p + 2;
+                }
+                p = ((labelLength & 0x3f) << 8) | (data[p + 1] & 0xff);
+                jumps++;
+                continue;
+            }
+            if (p + 1 + labelLength > length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(data, p + 1, labelLength));
+            p += 1 + labelLength;
+        }
+        pos[0] = end >= 0 ? end : p;
+        return name.toString();
+    }
+}
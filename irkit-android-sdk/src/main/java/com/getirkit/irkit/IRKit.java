@@ -17,7 +17,7 @@ import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
@@ -27,6 +27,7 @@ import com.getirkit.irkit.net.IRAPIError;
 import com.getirkit.irkit.net.IRAPIResult;
 import com.getirkit.irkit.net.IRHTTPClient;
 import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRSignalPayload;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,13 +38,14 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteOrder;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -63,8 +65,28 @@ public class IRKit {
     public static final String SERVICE_TYPE = "_irkit._tcp.local.";
     public static final String PREF_KEY_BONJOUR_HOSTNAME = "debuginfo.bonjour.hostname";
     public static final String PREF_KEY_BONJOUR_RESOLVED_AT = "debuginfo.bonjour.resolved_at";
+    // A local send which doesn't finish in time makes us forget the address of the device
+    // and fall back to Internet, so this stays fixed instead of following the latency
     private static final int SEND_SIGNAL_LOCAL_TIMEOUT_MS = 3000;
 
+    // The RTO of the device caps the hedge delay, and is clamped to this minimum
+    private static final int HEDGE_MIN_RTO_MS = 1000;
+
+    // Hedge delay is p95 of local send latency, clamped to this minimum
+    private static final long HEDGE_MIN_DELAY_MS = 150;
+
+    // Hedge delay until enough local sends have been observed
+    private static final long HEDGE_DEFAULT_DELAY_MS = 1000;
+    private static final int HEDGE_MIN_SAMPLES = 10;
+    private static final String BACKUP_WRITE_KEY = "backup";
+    private static final String BONJOUR_DEBUG_INFO_WRITE_KEY = "bonjour-debuginfo";
+
+    // Startup check of cached addresses
+    private static final int ADDRESS_PROBE_TIMEOUT_MS = 500;
+
+    // IRKit serves its HTTP API on this port
+    private static final int DEVICE_HTTP_PORT = 80;
+
     /**
      * IRPeripherals instance which holds existing IRPeripheral instances.
      * 既存のIRPeripheralインスタンスが格納されたIRPeripheralsインスタンス。
@@ -81,6 +103,7 @@ public class IRKit {
     private IRKitEventListener irkitEventListener;
     private IRHTTPClient httpClient;
     private boolean isDataLoaded = false;
+    private boolean isSignalDataLazyLoading = false;
     private WifiManager wifiManager;
     private ScanResultReceiver scanResultReceiver;
     private WifiEnableEventReceiver wifiEnableEventReceiver;
@@ -92,8 +115,8 @@ public class IRKit {
     private NetworkStateChangeReceiver networkStateChangeReceiver;
 
     // For JmDNS
-    private WifiManager.MulticastLock multicastLock;
-    private JmDNS jmdns;
+    private final IRDiscoverySession discoverySession = new IRDiscoverySession();
+    private volatile JmDNS jmdns;
     private BonjourServiceListener bonjourServiceListener;
 
     // singleton
@@ -113,11 +136,30 @@ public class IRKit {
         return httpClient;
     }
 
-    private ArrayDeque<SendSignalItem> sendSignalQueue = new ArrayDeque<>();
+    private IRSendScheduler sendScheduler;
+    private volatile IRScheduler.Task wifiScanTask;
+
+    // Pending fetchDeviceId()/fetchModelInfo() per Bonjour service name
+    private final HashMap<String, IRScheduler.Task> pendingFetchTasks = new HashMap<>();
+    private final IRPersistenceWriter persistenceWriter = new IRPersistenceWriter();
+    private final IRBonjourEventFilter bonjourEventFilter = new IRBonjourEventFilter();
+    private final IRAddressCache addressCache = new IRAddressCache();
+    private final IRSignalPayloadCache payloadCache = new IRSignalPayloadCache();
+    private final IRSignalDuplicateIndex duplicateIndex = new IRSignalDuplicateIndex();
+    private volatile boolean isHedgedSendEnabled = false;
+    private volatile boolean isLearnedSignalNormalizationEnabled = false;
+    private volatile int hedgedSendCount = 0;
+    private final HashSet<IRPeripheral> localSendingPeripherals = new HashSet<>();
 
     private IRKit() {
         httpClient = IRHTTPClient.sharedInstance();
         TAG = IRKit.class.getSimpleName() + ":" + this.hashCode();
+        sendScheduler = new IRSendScheduler(new IRSendScheduler.SendHandler() {
+            @Override
+            public void onSend(IRSignal signal, IRSignalPayload payload, IRAPIResult result) {
+                _sendSignal(signal, payload, result);
+            }
+        });
     }
 
     /**
@@ -127,8 +169,11 @@ public class IRKit {
         if (!isDataLoaded) {
             peripherals = new IRPeripherals();
             peripherals.load();
+            addressCache.load(getPreference(IRAddressCache.PREFS_KEY), System.currentTimeMillis());
+            restoreCachedAddresses();
 
             signals = new IRSignals();
+            signals.setLazyLoading(isSignalDataLazyLoading);
             signals.load();
             signals.updateImageResourceIdFromName(context.getResources());
             if (!signals.checkIdOverlap()) {
@@ -141,6 +186,116 @@ public class IRKit {
         }
     }
 
+    /**
+     * Set how long the last known address of an IRKit is used after app launch
+     * without being resolved by Bonjour again. Default is 24 hours.
+     * 前回のIRKitのアドレスを、起動後Bonjourで再解決せずに使う有効期間を設定します。デフォルトは24時間です。
+     *
+     * @param ttlMs 0 disables the cache
+     */
+    public void setAddressCacheTtl(long ttlMs) {
+        addressCache.setTtlMs(ttlMs);
+    }
+
+    /**
+     * Apply last known addresses to peripherals so that signals can be sent over local network
+     * before Bonjour resolves them. Each address is checked with a TCP connection in parallel
+     * on the blocking pool of IRScheduler, and dropped if it doesn't connect.
+     */
+    private void restoreCachedAddresses() {
+        long now = System.currentTimeMillis();
+        final ArrayList<IRPeripheral> restored = new ArrayList<>();
+        for (IRPeripheral peripheral : peripherals) {
+            if (peripheral.isLocalAddressResolved() || peripheral.getHostname() == null) {
+                continue;
+            }
+            IRAddressCache.Entry entry = addressCache.get(peripheral.getHostname(), now);
+            if (entry == null) {
+                continue;
+            }
+            try {
+                // The host is a numeric address, so this doesn't do a DNS lookup
+                peripheral.setHostAndPort(InetAddress.getByName(entry.host), entry.port);
+                restored.add(peripheral);
+            } catch (UnknownHostException e) {
+                Log.e(TAG, "invalid cached address: " + entry.host);
+            }
+        }
+        if (restored.isEmpty()) {
+            return;
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        final AtomicInteger remaining = new AtomicInteger(restored.size());
+        final AtomicInteger confirmed = new AtomicInteger();
+        for (final IRPeripheral peripheral : restored) {
+            final InetAddress host = peripheral.getHost();
+            final int port = peripheral.getPort();
+            IRScheduler.sharedInstance().executeBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    int timeoutMs = (int) peripheral.getLatencyEstimator().getTimeoutMs(ADDRESS_PROBE_TIMEOUT_MS,
+                            ADDRESS_PROBE_TIMEOUT_MS, ADDRESS_PROBE_TIMEOUT_MS * 2);
+                    if (peripheral.probeConnect(host, port, timeoutMs)) {
+                        confirmed.incrementAndGet();
+                    } else if (host.equals(peripheral.getHost()) && port == peripheral.getPort()) {
+                        // Not replaced by Bonjour in the meantime
+                        peripheral.lostLocalAddress();
+                        forgetAddress(peripheral);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        Log.d(TAG, "cached addresses: restored=" + restored.size() + " confirmed=" + confirmed.get() +
+                                " in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+                    }
+                }
+            });
+        }
+    }
+
+    private void rememberAddress(IRPeripheral peripheral) {
+        InetAddress host = peripheral.getHost();
+        if (host == null || peripheral.getHostname() == null) {
+            return;
+        }
+        if (addressCache.put(peripheral.getHostname(), host.getHostAddress(), peripheral.getPort(), System.currentTimeMillis())) {
+            saveAddressCache();
+        }
+    }
+
+    private void forgetAddress(IRPeripheral peripheral) {
+        if (peripheral.getHostname() != null && addressCache.remove(peripheral.getHostname())) {
+            saveAddressCache();
+        }
+    }
+
+    private void saveAddressCache() {
+        persistenceWriter.request(IRAddressCache.PREFS_KEY, new Runnable() {
+            @Override
+            public void run() {
+                // Not part of the backup, since addresses are only valid on this network
+                SharedPreferences sharedPrefs = context.getSharedPreferences(
+                        context.getString(R.string.preferences_file_key), Context.MODE_PRIVATE
+                );
+                SharedPreferences.Editor editor = sharedPrefs.edit();
+                editor.putString(IRAddressCache.PREFS_KEY, addressCache.toJSONString());
+                editor.apply();
+            }
+        });
+    }
+
+    /**
+     * If true, pulse data of signals is left in a memory-mapped file on loadData()
+     * and decoded only when IRSignal.getData() is called. Useful for large signal libraries.
+     * Call this before init().
+     * trueの場合、loadData()で信号データをメモリマップされたファイルに残し、
+     * IRSignal.getData()が呼ばれた時のみデコードします。init()の前に呼んでください。
+     *
+     * @param isLazyLoading
+     */
+    public void setSignalDataLazyLoading(boolean isLazyLoading) {
+        isSignalDataLazyLoading = isLazyLoading;
+    }
+
     public void cancelIRKitSetup() {
         if (setupManager != null) {
             setupManager.cancel();
@@ -332,6 +487,15 @@ public class IRKit {
         this.requestBackup();
     }
 
+    public void removePreference(String key) {
+        SharedPreferences sharedPrefs = context.getSharedPreferences(
+                context.getString(R.string.preferences_file_key), Context.MODE_PRIVATE
+        );
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+        editor.remove(key);
+        editor.apply();
+    }
+
     public String getPreference(String key) {
         SharedPreferences sharedPrefs = context.getSharedPreferences(
                 context.getString(R.string.preferences_file_key), Context.MODE_PRIVATE
@@ -339,9 +503,66 @@ public class IRKit {
         return sharedPrefs.getString(key, null);
     }
 
+    /**
+     * Notify BackupManager that data has changed.
+     * Calls within the coalescing window of IRPersistenceWriter result in one notification.
+     */
     public void requestBackup() {
-        BackupManager bm = new BackupManager(context);
-        bm.dataChanged();
+        persistenceWriter.request(BACKUP_WRITE_KEY, new Runnable() {
+            @Override
+            public void run() {
+                BackupManager bm = new BackupManager(context);
+                bm.dataChanged();
+            }
+        });
+    }
+
+    /**
+     * Save the last Bonjour resolution for getDebugInfo().
+     * Bursts of resolutions are written once.
+     */
+    private void saveBonjourDebugInfo(final String hostname, final long resolvedAt) {
+        persistenceWriter.request(BONJOUR_DEBUG_INFO_WRITE_KEY, new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences sharedPrefs = context.getSharedPreferences(
+                        context.getString(R.string.preferences_file_key), Context.MODE_PRIVATE
+                );
+                SharedPreferences.Editor editor = sharedPrefs.edit();
+                editor.putString(PREF_KEY_BONJOUR_HOSTNAME, hostname);
+                editor.putString(PREF_KEY_BONJOUR_RESOLVED_AT, String.valueOf(resolvedAt));
+                editor.apply();
+                requestBackup();
+            }
+        });
+    }
+
+    /**
+     * Returns raw and effective counts of Bonjour resolve events.
+     * Bonjourの名前解決イベントの受信数と有効数を返します。
+     *
+     * @return
+     */
+    public IRBonjourEventFilter.Stats getBonjourStats() {
+        return bonjourEventFilter.getStats();
+    }
+
+    /**
+     * Returns the background writer used for saving peripherals and requesting backups.
+     * 周辺機器の保存とバックアップ要求に使われるバックグラウンドwriterを返します。
+     *
+     * @return
+     */
+    public IRPersistenceWriter getPersistenceWriter() {
+        return persistenceWriter;
+    }
+
+    /**
+     * Write pending data now and wait for it. Call this e.g. in onStop() of your Activity.
+     * 保留中のデータを書き込み、完了を待ちます。ActivityのonStop()などで呼んでください。
+     */
+    public void flushPendingWrites() {
+        persistenceWriter.flush();
     }
 
     /**
@@ -502,13 +723,12 @@ public class IRKit {
                     stopWifiStateListener();
                     wifiManager.startScan();
 
-                    final Timer t = new Timer();
-                    t.schedule(new TimerTask() {
+                    cancelWifiScanTask();
+                    wifiScanTask = IRScheduler.sharedInstance().scheduleAtFixedRate(new Runnable() {
                         @Override
                         public void run() {
                             if (scanResultReceiver == null) {
-                                // cancel timer
-                                t.cancel();
+                                cancelWifiScanTask();
                             } else {
                                 // perform another scan
                                 wifiManager.startScan();
@@ -537,6 +757,7 @@ public class IRKit {
     }
 
     public void stopWifiScan() {
+        cancelWifiScanTask();
         if (scanResultReceiver != null) {
             scanResultReceiver.stopScan();
             context.getApplicationContext().unregisterReceiver(scanResultReceiver);
@@ -544,6 +765,14 @@ public class IRKit {
         }
     }
 
+    private void cancelWifiScanTask() {
+        IRScheduler.Task task = wifiScanTask;
+        if (task != null) {
+            task.cancel();
+            wifiScanTask = null;
+        }
+    }
+
     // Delete IRKit Wi-Fi configuration from Android
     public void clearIRKitWifiConfigurations() {
         fetchWifiManager();
@@ -787,15 +1016,17 @@ public class IRKit {
     class BonjourServiceListener implements ServiceListener {
         @Override
         public void serviceAdded(ServiceEvent serviceEvent) {
-            jmdns.requestServiceInfo(serviceEvent.getType(), serviceEvent.getName());
+            serviceEvent.getDNS().requestServiceInfo(serviceEvent.getType(), serviceEvent.getName());
         }
 
         @Override
         public void serviceRemoved(ServiceEvent serviceEvent) {
             String serviceName = serviceEvent.getName();
+            bonjourEventFilter.forget(serviceName);
             IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
             if (peripheral != null) {
                 peripheral.lostLocalAddress();
+                forgetAddress(peripheral);
             }
         }
 
@@ -816,27 +1047,31 @@ public class IRKit {
 
             String serviceName = serviceEvent.getName();
 //            Log.d(TAG, "resolve success: name=" + serviceName + " host=" + host + " port=" + port);
-            savePreference(PREF_KEY_BONJOUR_HOSTNAME, serviceEvent.getInfo().getQualifiedName());
-            savePreference(PREF_KEY_BONJOUR_RESOLVED_AT, String.valueOf(new Date().getTime() / 1000));
+            if (!bonjourEventFilter.accept(serviceName, host, port, SystemClock.elapsedRealtime())) {
+                // JmDNS reports the same resolution many times
+                return;
+            }
+            saveBonjourDebugInfo(serviceInfo.getQualifiedName(), new Date().getTime() / 1000);
             IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
             if (peripheral == null) { // Found new IRKit
                 peripheral = peripherals.addPeripheral(serviceName);
                 if (irkitEventListener != null) {
                     irkitEventListener.onNewIRKitFound(peripheral);
                 }
-            } else {
+                peripheral.setHostAndPort(host, port);
+            } else if (port != peripheral.getPort() || !host.equals(peripheral.getHost())) {
+                bonjourEventFilter.recordAddressChange();
+                peripheral.setHostAndPort(host, port);
                 if (irkitEventListener != null) {
                     irkitEventListener.onExistingIRKitFound(peripheral);
                 }
             }
-            peripheral.setHost(host);
-            peripheral.setPort(port);
+            rememberAddress(peripheral);
             final IRPeripheral p = peripheral;
+            IRScheduler.Task task = null;
             if (!peripheral.hasDeviceId()) {
                 // Wait 2000 ms to settle.
-                // We can't use Handler nor AsyncTask because we aren't on the UI thread.
-                Timer t = new Timer();
-                t.schedule(new TimerTask() {
+                task = IRScheduler.sharedInstance().schedule(new Runnable() {
                     @Override
                     public void run() {
                         p.fetchDeviceId();
@@ -844,15 +1079,21 @@ public class IRKit {
                 }, 2000);
             } else if (!peripheral.hasModelInfo()) {
                 // Wait 500 ms to settle.
-                // We can't use Handler nor AsyncTask because we aren't on the UI thread.
-                Timer t = new Timer();
-                t.schedule(new TimerTask() {
+                task = IRScheduler.sharedInstance().schedule(new Runnable() {
                     @Override
                     public void run() {
                         p.fetchModelInfo();
                     }
                 }, 500);
             }
+            // If the same IRKit is resolved again before settling, only the latest fetch runs
+            IRScheduler.Task previousTask;
+            synchronized (pendingFetchTasks) {
+                previousTask = task != null ? pendingFetchTasks.put(serviceName, task) : pendingFetchTasks.remove(serviceName);
+            }
+            if (previousTask != null) {
+                previousTask.cancel();
+            }
         }
     }
 
@@ -901,6 +1142,8 @@ public class IRKit {
             return;
         }
         isProcessingBonjour = true;
+        // Known IRKits are resolved directly while JmDNS starts up, which takes seconds
+        resolveKnownHostnames();
         // Do network tasks in background. We can't use Handler here.
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -908,16 +1151,13 @@ public class IRKit {
                 fetchWifiManager();
 
                 WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-                multicastLock = wifi.createMulticastLock(getClass().getName());
-                multicastLock.setReferenceCounted(true);
-                multicastLock.acquire();
-
                 InetAddress deviceIPAddress = getWifiIPv4Address();
                 try {
-                    // Do not use default constructor i.e. JmDNS.create()
-                    jmdns = JmDNS.create(deviceIPAddress);
+                    // Reuses JmDNS if discovery was stopped only briefly
+                    jmdns = discoverySession.acquire(wifi, deviceIPAddress);
                 } catch (IOException e) {
                     e.printStackTrace();
+                    jmdns = null;
                 }
                 if (jmdns != null) {
                     // Started zeroconf probe
@@ -931,6 +1171,47 @@ public class IRKit {
         }.execute();
     }
 
+    /**
+     * Resolve hostname.local of known IRKits with unicast-response mDNS queries,
+     * concurrently with the Bonjour browse.
+     */
+    private void resolveKnownHostnames() {
+        if (peripherals == null) {
+            return;
+        }
+        final ArrayList<String> hostnames = new ArrayList<>();
+        for (IRPeripheral peripheral : peripherals) {
+            if (peripheral.getHostname() != null) {
+                hostnames.add(peripheral.getHostname());
+            }
+        }
+        if (hostnames.isEmpty()) {
+            return;
+        }
+        IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fetchWifiManager();
+                new IRHostnameResolver().resolve(getWifiIPv4Address(), hostnames, IRHostnameResolver.DEFAULT_TIMEOUT_MS,
+                        new IRHostnameResolver.Listener() {
+                            @Override
+                            public void onResolved(String hostname, InetAddress address) {
+                                IRPeripheral peripheral = peripherals.getPeripheral(hostname);
+                                if (peripheral == null) {
+                                    return;
+                                }
+                                // IRKit serves HTTP on port 80. Keep the port Bonjour told us if any.
+                                int port = peripheral.getPort() != 0 ? peripheral.getPort() : DEVICE_HTTP_PORT;
+                                if (!address.equals(peripheral.getHost()) || port != peripheral.getPort()) {
+                                    peripheral.setHostAndPort(address, port);
+                                }
+                                rememberAddress(peripheral);
+                            }
+                        });
+            }
+        }, 0);
+    }
+
     public void startBonjourDiscovery() {
         pushDiscoveryQueue(true);
     }
@@ -945,8 +1226,7 @@ public class IRKit {
             return;
         }
         isProcessingBonjour = true;
-        // Do network tasks in another thread
-        new Thread(new Runnable() {
+        IRScheduler.sharedInstance().schedule(new Runnable() {
             @Override
             public void run() {
                 if (jmdns != null) {
@@ -954,113 +1234,514 @@ public class IRKit {
                         jmdns.removeServiceListener(SERVICE_TYPE, bonjourServiceListener);
                         bonjourServiceListener = null;
                     }
-                    try {
-                        jmdns.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
                     jmdns = null;
                 }
-                if (multicastLock != null) {
-                    multicastLock.release();
-                    multicastLock = null;
-                }
+                // JmDNS is closed after the grace period unless discovery starts again
+                discoverySession.release();
                 // Stopped zeroconf probe
                 isProcessingBonjour = false;
                 nextDiscoveryQueue();
             }
-        }).start();
+        }, 0);
     }
 
     /**
-     * Call _sendSignal() one by one using queue
+     * Restart discovery on a new JmDNS if we have moved to another network while discovering.
+     */
+    private void restartServiceDiscoveryIfAddressChanged() {
+        boolean isRunning;
+        synchronized (this) {
+            isRunning = isDiscovering;
+        }
+        if (!isRunning) {
+            return;
+        }
+        fetchWifiManager();
+        InetAddress address = getWifiIPv4Address();
+        if (address != null && discoverySession.getStats().isOpen && !discoverySession.isBoundTo(address)) {
+            // startServiceDiscovery() will create JmDNS for the new address
+            stopServiceDiscovery();
+        }
+    }
+
+    /**
+     * Close JmDNS now instead of after the grace period. Called when the network has changed.
+     */
+    private void closeDiscoverySession() {
+        IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                discoverySession.close();
+            }
+        }, 0);
+    }
+
+    /**
+     * Returns counters of Bonjour discovery, including how long it took to start.
+     * Bonjour検索の開始にかかった時間などの統計を返します。
+     *
+     * @return
+     */
+    public IRDiscoverySession.Stats getDiscoveryStats() {
+        return discoverySession.getStats();
+    }
+
+    /**
+     * Call _sendSignal() one by one per device using IRSendScheduler
      *
      * IRKit panics when received parallel requests from local network.
+     * Signals for different devices are sent in parallel.
      *
      * @param signal
      * @param callback
      */
     public void sendSignal(IRSignal signal, IRAPIResult callback) {
-        synchronized (sendSignalQueue) {
-            sendSignalQueue.add(new SendSignalItem(signal, callback));
-            if (sendSignalQueue.size() == 1) {
-                // Do it now
-                _sendSignal(signal, callback);
+        sendScheduler.enqueue(signal, callback);
+    }
+
+    /**
+     * Send the signals of scene. Steps to different devices are sent in parallel,
+     * and listener receives the result of all steps at once.
+     * シーンの信号を送信します。異なるデバイスへの信号は並行して送信され、全ステップの結果がまとめて通知されます。
+     *
+     * @param scene
+     * @param listener Can be null.
+     * @return Handle to cancel the scene
+     */
+    public IRScene.Execution runScene(IRScene scene, IRScene.Listener listener) {
+        return scene.run(sendScheduler, listener);
+    }
+
+    /**
+     * Returns the cache of encoded request bodies used by sendSignal().
+     * sendSignal()が使う、エンコード済みリクエストボディのキャッシュを返します。
+     *
+     * @return
+     */
+    public IRSignalPayloadCache getSignalPayloadCache() {
+        return payloadCache;
+    }
+
+    /**
+     * Send a frame repeated in a signal (e.g. NEC repeat codes) at most maxFrameRepeats times,
+     * so that fewer bytes are sent to IRKit. Some appliances need several frames
+     * (Sony expects three), so use this only with appliances known to accept fewer.
+     * 信号内で繰り返されるフレームを最大maxFrameRepeats回だけ送信し、送信量を減らします。
+     *
+     * @param maxFrameRepeats 0 (default) to send signals as they are
+     */
+    public void setMaxFrameRepeats(int maxFrameRepeats) {
+        payloadCache.setMaxFrameRepeats(maxFrameRepeats);
+    }
+
+    /**
+     * Enable or disable normalizing learned signals (disabled by default). When enabled, repeats
+     * of a frame in a learned signal are replaced by copies of its first frame, so that the signal
+     * is stored as frame plus repeat count. Each pulse changes by at most
+     * IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT, which changes what is sent, so enable this
+     * only for appliances known to accept it.
+     * 有効な場合、学習した信号内の繰り返しフレームを最初のフレームで置き換えて保存サイズを減らします。
+     * 送信する信号が変わるため、デフォルトでは無効です。
+     *
+     * @param isEnabled
+     */
+    public void setLearnedSignalNormalizationEnabled(boolean isEnabled) {
+        isLearnedSignalNormalizationEnabled = isEnabled;
+    }
+
+    /**
+     * Returns pulse data of a learned signal to be stored.
+     *
+     * @param data Data received from IRKit
+     * @return
+     */
+    public int[] normalizeLearnedData(int[] data) {
+        if (!isLearnedSignalNormalizationEnabled || data == null) {
+            return data;
+        }
+        return IRPulseCompressor.normalize(data, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT);
+    }
+
+    /**
+     * Encode request bodies of signals in background so that the first send of each is faster.
+     * Call this for the signals on screen.
+     * 画面に表示している信号のリクエストボディをバックグラウンドでエンコードしておきます。
+     *
+     * @param signals
+     */
+    public void prewarmSignalPayloads(List<IRSignal> signals) {
+        final ArrayList<IRSignal> snapshot = new ArrayList<>(signals);
+        final String clientkey = httpClient.getClientKey();
+        IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                int count = payloadCache.prewarm(snapshot, clientkey);
+                Log.d(TAG, "prewarmed " + count + " signal payloads: " + payloadCache.getStats());
             }
+        }, 0);
+    }
+
+    public interface DuplicateSignalListener {
+        /**
+         * @param duplicateSignal null if there is none
+         */
+        public void onDuplicateSignalFound(IRSignal duplicateSignal);
+    }
+
+    /**
+     * Returns a signal in IRKit.signals which has the same pulse data as signal, e.g. a button
+     * learned again. This blocks while the index is brought up to date, which can take long
+     * after many signals have changed. On the main thread, use findDuplicateSignal(signal, listener).
+     * signalと同じ信号がIRKit.signalsに登録済みであれば、その信号を返します。
+     *
+     * @param signal Newly learned signal
+     * @return null if there is none
+     */
+    public IRSignal findDuplicateSignal(IRSignal signal) {
+        if (signals == null) {
+            return null;
         }
+        duplicateIndex.update(signals);
+        return duplicateIndex.findDuplicate(signal);
     }
 
-    private void consumeNextSendSignal() {
-        synchronized (sendSignalQueue) {
-            sendSignalQueue.removeFirst();
-            SendSignalItem sendSignalItem = sendSignalQueue.peek();
-            if (sendSignalItem != null) {
-                // Consume the next signal
-                _sendSignal(sendSignalItem.signal, sendSignalItem.callback);
+    /**
+     * Look for a signal in IRKit.signals which has the same pulse data as signal on a background
+     * thread, and pass it to listener on the main thread. Call this on the main thread.
+     * signalと同じ信号をバックグラウンドで探し、結果をメインスレッドでlistenerに渡します。
+     *
+     * @param signal Newly learned signal. Don't modify it until listener is called.
+     * @param listener
+     */
+    public void findDuplicateSignal(final IRSignal signal, final DuplicateSignalListener listener) {
+        if (signals == null) {
+            listener.onDuplicateSignalFound(null);
+            return;
+        }
+        final Runnable update = createDuplicateIndexUpdate();
+        IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                update.run();
+                final IRSignal duplicateSignal = duplicateIndex.findDuplicate(signal);
+                IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDuplicateSignalFound(duplicateSignal);
+                    }
+                }, 0);
             }
+        }, 0);
+    }
+
+    /**
+     * Build the index used by findDuplicateSignal() in background, e.g. while waiting for a signal.
+     * Call this on the main thread.
+     * findDuplicateSignal()で使うインデックスをバックグラウンドで作成します。
+     */
+    public void prepareDuplicateIndex() {
+        if (signals == null) {
+            return;
         }
+        final Runnable update = createDuplicateIndexUpdate();
+        IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                update.run();
+                Log.d(TAG, "prepared duplicate index: " + duplicateIndex.getStats());
+            }
+        }, 0);
     }
 
-    private void _sendSignal(final IRSignal signal, final IRAPIResult callback) {
+    /**
+     * Take a snapshot of signals on this thread, and return a task which brings
+     * the duplicate index up to date with it on a background thread.
+     */
+    private Runnable createDuplicateIndexUpdate() {
+        final IRSignals currentSignals = signals;
+        final int modCount = currentSignals.getModCount();
+        final int dataGeneration = IRSignal.getDataGeneration();
+        final ArrayList<IRSignal> snapshot = new ArrayList<>(currentSignals);
+        return new Runnable() {
+            @Override
+            public void run() {
+                duplicateIndex.update(currentSignals, snapshot, modCount, dataGeneration);
+            }
+        };
+    }
+
+    /**
+     * Returns the index used by findDuplicateSignal().
+     * findDuplicateSignal()が使うインデックスを返します。
+     *
+     * @return
+     */
+    public IRSignalDuplicateIndex getDuplicateIndex() {
+        return duplicateIndex;
+    }
+
+    /**
+     * Returns the scheduler which holds per-device send lanes and their counters.
+     * デバイスごとの送信キューとその統計を保持するスケジューラを返します。
+     *
+     * @return
+     */
+    public IRSendScheduler getSendScheduler() {
+        return sendScheduler;
+    }
+
+    /**
+     * @param signal
+     * @param payload Pre-encoded bodies of signal, or null
+     * @param callback Must be called exactly once. Never null.
+     */
+    private void _sendSignal(final IRSignal signal, IRSignalPayload payload, final IRAPIResult callback) {
         String deviceId = signal.getDeviceId();
         if (deviceId == null) {
             // This shouldn't happen under normal circumstances
             Log.e(TAG, "sendSignal: deviceId is null");
-            if (callback != null) {
-                callback.onError(new IRAPIError("deviceId is null"));
-            }
-            consumeNextSendSignal();
+            callback.onError(new IRAPIError("deviceId is null"));
             return;
         }
+        if (payload == null) {
+            payload = payloadCache.get(signal, httpClient.getClientKey());
+        }
         final IRPeripheral peripheral = peripherals.getPeripheralByDeviceId(deviceId);
 
         // If a peripheral is registered twice, its deviceId is overwritten.
         // But we still try to send those signals over Internet API.
 
-        final IRAPICallback<IRInternetAPIService.PostMessagesResponse> internetAPICallback = new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
-            @Override
-            public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
-                if (callback != null) {
+        boolean isLocalBusy;
+        synchronized (localSendingPeripherals) {
+            isLocalBusy = localSendingPeripherals.contains(peripheral);
+        }
+        if (isLocalBusy) {
+            // A hedged send was won by Internet while its local request is still in flight.
+            // IRKit panics when it receives parallel requests from local network.
+            Log.d(TAG, "sendSignal: previous local request is in flight; sending over Internet");
+        }
+
+        if ( peripheral != null && peripheral.isLocalAddressResolved() && !isLocalBusy ) {
+            new HedgedSend(peripheral, signal, payload, callback).start();
+        } else {  // Local address isn't resolved
+            httpClient.sendSignalOverInternet(signal, payload, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
+                @Override
+                public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
                     callback.onSuccess();
                 }
-                consumeNextSendSignal();
-            }
 
-            @Override
-            public void failure(RetrofitError error) {
-                if (callback != null) {
+                @Override
+                public void failure(RetrofitError error) {
                     callback.onError(new IRAPIError(error.getLocalizedMessage()));
                 }
-                consumeNextSendSignal();
-            }
-        };
+            });
+        }
+    }
+
+    /**
+     * Enable or disable hedged sends (disabled by default). When enabled, a signal is also sent
+     * over Internet if IRKit on local network doesn't respond as fast as it usually does.
+     * As both requests may reach IRKit, an appliance can receive the signal twice, so enable
+     * this only for signals which are safe to repeat (e.g. not toggles such as power).
+     * 有効な場合、ローカルネットワークのIRKitの応答が普段より遅いとインターネット経由でも信号を送ります。
+     * 信号が二重に送信されることがあるため、デフォルトでは無効です。
+     *
+     * @param isEnabled
+     */
+    public void setHedgedSendEnabled(boolean isEnabled) {
+        isHedgedSendEnabled = isEnabled;
+    }
+
+    public boolean isHedgedSendEnabled() {
+        return isHedgedSendEnabled;
+    }
+
+    /**
+     * Returns the number of sends which have also been sent over Internet
+     * because local network was slow.
+     *
+     * @return
+     */
+    public int getHedgedSendCount() {
+        return hedgedSendCount;
+    }
+
+    /**
+     * Returns how long to wait for IRKit on local network before also sending over Internet.
+     *
+     * @param peripheral
+     * @return
+     */
+    long getHedgeDelayMs(IRPeripheral peripheral) {
+        IRLatencyHistogram histogram = peripheral.getLocalSendLatency();
+        if (histogram.getCount() < HEDGE_MIN_SAMPLES) {
+            return HEDGE_DEFAULT_DELAY_MS;
+        }
+        long p95 = histogram.getPercentile(95);
+        long rtoMs = peripheral.getLatencyEstimator().getTimeoutMs(SEND_SIGNAL_LOCAL_TIMEOUT_MS,
+                HEDGE_MIN_RTO_MS, SEND_SIGNAL_LOCAL_TIMEOUT_MS);
+        return Math.max(HEDGE_MIN_DELAY_MS, Math.min(rtoMs, p95));
+    }
+
+    /**
+     * Sends a signal over local network, and also over Internet if local network doesn't
+     * respond within getHedgeDelayMs(). The first success wins.
+     *
+     * IRKit API has no way to tell duplicated requests apart, so once both requests are out
+     * the signal may be emitted twice. The delay is based on p95 of the device, so that
+     * happens only for the slowest few percent of sends.
+     */
+    private class HedgedSend implements Runnable {
+        private final IRPeripheral peripheral;
+        private final IRSignal signal;
+        private final IRSignalPayload payload;
+        private final IRAPIResult callback;
+        private final IRState state = new IRState();
+        private long startTime;
+        private boolean isLocalFinished = false;
+        private boolean isInternetStarted = false;
+        private IRAPIError internetError;
+        private IRScheduler.Task hedgeTask;
 
-        if ( peripheral != null && peripheral.isLocalAddressResolved() ) {
-            httpClient.setDeviceAPIEndpoint(peripheral.getDeviceAPIEndpoint());
-            httpClient.sendSignalOverLocalNetwork(signal, new IRAPIResult() {
+        public HedgedSend(IRPeripheral peripheral, IRSignal signal, IRSignalPayload payload, IRAPIResult callback) {
+            this.peripheral = peripheral;
+            this.signal = signal;
+            this.payload = payload;
+            this.callback = callback;
+        }
+
+        public void start() {
+            startTime = SystemClock.elapsedRealtime();
+            // Only the opt-in hedge follows the latency. Giving up on the device doesn't.
+            final int timeoutMs = SEND_SIGNAL_LOCAL_TIMEOUT_MS;
+            synchronized (localSendingPeripherals) {
+                localSendingPeripherals.add(peripheral);
+            }
+            httpClient.sendSignalOverLocalNetwork(peripheral, signal, payload, new IRAPIResult() {
                 @Override
                 public void onSuccess() {
-                    if (callback != null) {
-                        callback.onSuccess();
-                    }
-                    consumeNextSendSignal();
+                    onLocalFinished();
+                    peripheral.getLocalSendLatency().record(SystemClock.elapsedRealtime() - startTime);
+                    cancelHedge();
+                    succeed();
                 }
 
                 @Override
                 public void onError(IRAPIError error) {
-                    // Try to send signal over Internet
-                    httpClient.sendSignalOverInternet(signal, internetAPICallback);
+                    onLocalFinished();
+                    onLocalFailure();
                 }
 
                 @Override
                 public void onTimeout() {
+                    onLocalFinished();
+                    // Count it so that a device which often times out gets hedged earlier
+                    peripheral.getLocalSendLatency().record(timeoutMs);
                     peripheral.lostLocalAddress();
-                    // Try to send signal over Internet
-                    httpClient.sendSignalOverInternet(signal, internetAPICallback);
+                    forgetAddress(peripheral);
+                    onLocalFailure();
                 }
-            }, SEND_SIGNAL_LOCAL_TIMEOUT_MS);
-        } else {  // Local address isn't resolved
-            httpClient.sendSignalOverInternet(signal, internetAPICallback);
+            }, timeoutMs);
+            if (isHedgedSendEnabled) {
+                hedgeTask = IRScheduler.sharedInstance().scheduleOnMainThread(this, getHedgeDelayMs(peripheral));
+            }
+        }
+
+        /**
+         * Hedge timer
+         */
+        @Override
+        public void run() {
+            synchronized (state) {
+                if (state.isFinished() || isInternetStarted) {
+                    return;
+                }
+            }
+            Log.d(TAG, "sendSignal: no response over local network in " +
+                    (SystemClock.elapsedRealtime() - startTime) + " ms; also sending over Internet");
+            hedgedSendCount++;
+            startInternet();
+        }
+
+        private void onLocalFinished() {
+            synchronized (localSendingPeripherals) {
+                localSendingPeripherals.remove(peripheral);
+            }
+        }
+
+        private void cancelHedge() {
+            if (hedgeTask != null) {
+                hedgeTask.cancel();
+                hedgeTask = null;
+            }
+        }
+
+        private void onLocalFailure() {
+            cancelHedge();
+            IRAPIError error;
+            synchronized (state) {
+                isLocalFinished = true;
+                if (state.isFinished()) {
+                    return;
+                }
+                if (!isInternetStarted) {
+                    error = null;
+                } else if (internetError != null) {
+                    state.finish();
+                    error = internetError;
+                } else {
+                    // Internet request is in flight
+                    return;
+                }
+            }
+            if (error != null) {
+                callback.onError(error);
+            } else {
+                // Try to send signal over Internet
+                startInternet();
+            }
+        }
+
+        private void startInternet() {
+            synchronized (state) {
+                if (isInternetStarted) {
+                    return;
+                }
+                isInternetStarted = true;
+            }
+            httpClient.sendSignalOverInternet(signal, payload, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
+                @Override
+                public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
+                    succeed();
+                }
+
+                @Override
+                public void failure(RetrofitError error) {
+                    IRAPIError apiError = new IRAPIError(error.getLocalizedMessage());
+                    synchronized (state) {
+                        if (state.isFinished()) {
+                            return;
+                        }
+                        if (!isLocalFinished) {
+                            // Local network may still succeed
+                            internetError = apiError;
+                            return;
+                        }
+                        state.finish();
+                    }
+                    callback.onError(apiError);
+                }
+            });
+        }
+
+        private void succeed() {
+            synchronized (state) {
+                if (state.isFinished()) {
+                    return;
+                }
+                state.finish();
+            }
+            callback.onSuccess();
         }
     }
 
@@ -1111,16 +1792,6 @@ public class IRKit {
 
     // Inner classes
 
-    private static class SendSignalItem {
-        public IRSignal signal;
-        public IRAPIResult callback;
-
-        public SendSignalItem(IRSignal signal, IRAPIResult callback) {
-            this.signal = signal;
-            this.callback = callback;
-        }
-    }
-
     private static class NetworkStateChangeReceiver extends BroadcastReceiver {
         public static final String TAG = NetworkStateChangeReceiver.class.getName();
 
@@ -1137,10 +1808,12 @@ public class IRKit {
             IRKit irkit = IRKit.sharedInstance();
             if (netInfo != null && netInfo.getType() == ConnectivityManager.TYPE_WIFI) {
                 // Wi-Fi connection is available
+                irkit.restartServiceDiscoveryIfAddressChanged();
                 irkit.startServiceDiscovery();
             } else {
                 // No Wi-Fi connection
                 irkit.stopServiceDiscovery();
+                irkit.closeDiscoverySession();
             }
         }
     }
@@ -1162,8 +1835,7 @@ public class IRKit {
         private int authFailedCount = 0;
         private WifiManager wifiManager;
         private boolean isCanceled = false;
-        private Handler timeoutHandler;
-        private Runnable timeoutRunnable;
+        private IRScheduler.Task timeoutTask;
 
         public WifiConnectionChangeReceiver(WifiManager wifiManager, WifiConfiguration wifiConfig, int flag, long timeoutMs) {
             super();
@@ -1174,8 +1846,7 @@ public class IRKit {
             startTime = System.currentTimeMillis();
 
             if (timeoutMs != 0) {
-                timeoutHandler = new Handler();
-                timeoutRunnable = new Runnable() {
+                timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
                     @Override
                     public void run() {
                         synchronized (this) {
@@ -1185,12 +1856,10 @@ public class IRKit {
                                     wifiConnectionChangeListener.onTimeout();
                                 }
                             }
-                            timeoutRunnable = null;
-                            timeoutHandler = null;
+                            timeoutTask = null;
                         }
                     }
-                };
-                timeoutHandler.postDelayed(timeoutRunnable, timeoutMs);
+                }, timeoutMs);
             }
         }
 
@@ -1201,10 +1870,9 @@ public class IRKit {
         public void cancel() {
             synchronized (this) {
                 isCanceled = true;
-                if (timeoutHandler != null) {
-                    timeoutHandler.removeCallbacks(timeoutRunnable);
-                    timeoutRunnable = null;
-                    timeoutHandler = null;
+                if (timeoutTask != null) {
+                    timeoutTask.cancel();
+                    timeoutTask = null;
                 }
             }
         }
@@ -1263,10 +1931,9 @@ public class IRKit {
                             synchronized (this) {
                                 if (!isCanceled && !isFinished) {
                                     isFinished = true;
-                                    if (timeoutHandler != null) {
-                                        timeoutHandler.removeCallbacks(timeoutRunnable);
-                                        timeoutRunnable = null;
-                                        timeoutHandler = null;
+                                    if (timeoutTask != null) {
+                                        timeoutTask.cancel();
+                                        timeoutTask = null;
                                     }
                                     if (wifiConnectionChangeListener != null) {
                                         wifiConnectionChangeListener.onTargetWifiConnected(wifiInfo, info);
@@ -1289,10 +1956,9 @@ public class IRKit {
                             synchronized (this) {
                                 if (!isCanceled && !isFinished) {
                                     isFinished = true;
-                                    if (timeoutHandler != null) {
-                                        timeoutHandler.removeCallbacks(timeoutRunnable);
-                                        timeoutRunnable = null;
-                                        timeoutHandler = null;
+                                    if (timeoutTask != null) {
+                                        timeoutTask.cancel();
+                                        timeoutTask = null;
                                     }
                                     if (wifiConnectionChangeListener != null) {
                                         wifiConnectionChangeListener.onError("Authentication failed");
@@ -1304,10 +1970,9 @@ public class IRKit {
                             synchronized (this) {
                                 if (!isCanceled && !isFinished) {
                                     isFinished = true;
-                                    if (timeoutHandler != null) {
-                                        timeoutHandler.removeCallbacks(timeoutRunnable);
-                                        timeoutRunnable = null;
-                                        timeoutHandler = null;
+                                    if (timeoutTask != null) {
+                                        timeoutTask.cancel();
+                                        timeoutTask = null;
                                     }
                                     if (wifiConnectionChangeListener != null) {
                                         wifiConnectionChangeListener.onError("Authentication failed");
@@ -5,13 +5,13 @@ import android.net.NetworkInfo;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
-import android.os.Handler;
 import android.util.Log;
 
 import com.getirkit.irkit.net.IRAPICallback;
 import com.getirkit.irkit.net.IRAPIResult;
 import com.getirkit.irkit.net.IRDeviceAPIService;
 import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRLongPollEngine;
 
 import retrofit.RetrofitError;
 import retrofit.client.Response;
@@ -35,7 +35,9 @@ public class IRKitSetupManager implements IRKitEventListener {
     private boolean isPostDoorSuccess = false;
     private boolean isIRKitFound = false;
     private IRState checkConnectivityState;
+    private IRScheduler.Task checkConnectivityTimeoutTask;
     private IRAPIResult discoveryResult;
+    private IRLongPollEngine.Subscription postDoorSubscription;
 
     public boolean isActive() {
         return isSettingUpIRKit;
@@ -53,9 +55,8 @@ public class IRKitSetupManager implements IRKitEventListener {
         irKitConnectWifiListener.onStatus(context.getString(R.string.setup_status__obtaining_device_key));
 
         // timeout handler
-        final Handler handler = new Handler();
         final IRState state = new IRState();
-        final Runnable runnable = new Runnable() {
+        final IRScheduler.Task timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
             @Override
             public void run() {
                 synchronized (state) {
@@ -68,8 +69,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                     }
                 }
             }
-        };
-        handler.postDelayed(runnable, 30000);
+        }, 30000);
 
         // Obtain device key and device id
         IRKit.sharedInstance().getHTTPClient().obtainDeviceKey(new IRAPICallback<IRInternetAPIService.PostDevicesResponse>() {
@@ -78,7 +78,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 synchronized (state) {
                     if (!state.isFinished()) {
                         state.finish();
-                        handler.removeCallbacks(runnable);
+                        timeoutTask.cancel();
                         if (isSettingUpIRKit) {
                             setupDeviceId = postDevicesResponse.deviceid;
                             scanIRKitWifi();
@@ -92,7 +92,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 synchronized (state) {
                     if (!state.isFinished()) {
                         state.finish();
-                        handler.removeCallbacks(runnable);
+                        timeoutTask.cancel();
                         Log.e(TAG, "Failed to get device key");
                         if (isSettingUpIRKit) {
                             isSettingUpIRKit = false;
@@ -145,9 +145,8 @@ public class IRKitSetupManager implements IRKitEventListener {
         irKitConnectWifiListener.onStatus(context.getString(R.string.setup_status__scanning_for_irkit_wifi));
 
         // timeout handler
-        final Handler handler = new Handler();
         final IRState state = new IRState();
-        final Runnable runnable = new Runnable() {
+        final IRScheduler.Task timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
             @Override
             public void run() {
                 synchronized (state) {
@@ -162,8 +161,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                     }
                 }
             }
-        };
-        handler.postDelayed(runnable, 50000);
+        }, 50000);
 
         IRKit.sharedInstance().scanIRKitWifi(new IRKit.IRKitWifiScanResultListener() {
             @Override
@@ -171,7 +169,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 synchronized (state) {
                     if (!state.isFinished()) {
                         state.finish();
-                        handler.removeCallbacks(runnable);
+                        timeoutTask.cancel();
                         if (isSettingUpIRKit) {
                             irkitWifiSSID = result.SSID;
                             changeToIRKitWifi();
@@ -205,8 +203,7 @@ public class IRKitSetupManager implements IRKitEventListener {
             public void onTargetWifiConnected(WifiInfo wifiInfo, NetworkInfo networkInfo) {
                 if (isSettingUpIRKit) {
                     // Connected to IRKit Wi-Fi. Wait to settle.
-                    final Handler handler = new Handler();
-                    handler.postDelayed(new Runnable() {
+                    IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
                         @Override
                         public void run() {
                             connectIRKitToWifi();
@@ -257,9 +254,8 @@ public class IRKitSetupManager implements IRKitEventListener {
         irKitConnectWifiListener.onStatus(context.getString(R.string.setup_status__connecting_irkit_to_wifi));
 
         // timeout handler
-        final Handler handler = new Handler();
         final IRState state = new IRState();
-        final Runnable runnable = new Runnable() {
+        final IRScheduler.Task timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
             @Override
             public void run() {
                 synchronized (state) {
@@ -272,8 +268,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                     }
                 }
             }
-        };
-        handler.postDelayed(runnable, 30000);
+        }, 30000);
 
         IRKit.sharedInstance().getHTTPClient().connectDeviceToWifi(irWifiInfo, new IRAPICallback<IRDeviceAPIService.PostWifiResponse>() {
             @Override
@@ -281,7 +276,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 synchronized (state) {
                     if (!state.isFinished()) {
                         state.finish();
-                        handler.removeCallbacks(runnable);
+                        timeoutTask.cancel();
                         if (isSettingUpIRKit) {
                             changeToNormalWifi();
                         }
@@ -294,7 +289,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 synchronized (state) {
                     if (!state.isFinished()) {
                         state.finish();
-                        handler.removeCallbacks(runnable);
+                        timeoutTask.cancel();
                         if (isSettingUpIRKit) {
                             Log.e(TAG, "connectIRKitToWifi failure: " + error.getMessage() + "; retrying");
                             connectIRKitToWifi(retryCount + 1);
@@ -346,8 +341,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                     // TODO: Is 500 ms delay enough?
                     if (isSettingUpIRKit) {
                         // Changed to normal Wi-Fi. Wait to settle.
-                        Handler handler = new Handler();
-                        handler.postDelayed(new Runnable() {
+                        IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
                             @Override
                             public void run() {
                                 checkConnectivity();
@@ -382,8 +376,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 IRKit.sharedInstance().setWifiEnabled(false);
             }
             // Wait 500 ms to settle
-            Handler handler = new Handler();
-            handler.postDelayed(new Runnable() {
+            IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
                 @Override
                 public void run() {
                     checkConnectivity();
@@ -400,9 +393,8 @@ public class IRKitSetupManager implements IRKitEventListener {
         irKitConnectWifiListener.onStatus(context.getString(R.string.setup_status__waiting_for_postdoor));
 
         // timeout handler
-        final Handler handler = new Handler();
         checkConnectivityState = new IRState();
-        final Runnable runnable = new Runnable() {
+        checkConnectivityTimeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
             @Override
             public void run() {
                 synchronized (checkConnectivityState) {
@@ -411,14 +403,13 @@ public class IRKitSetupManager implements IRKitEventListener {
                         if (isSettingUpIRKit) {
                             Log.e(TAG, "checkConnectivity timed out");
                             isSettingUpIRKit = false;
-                            IRKit.sharedInstance().getHTTPClient().cancelPostDoor();
+                            cancelPostDoor();
                             irKitConnectWifiListener.onError(context.getString(R.string.setup_status__error_timeout_postdoor));
                         }
                     }
                 }
             }
-        };
-        handler.postDelayed(runnable, 30000);
+        }, 30000);
 
         // We do not perform Bonjour discovery
         isIRKitFound = true;
@@ -463,7 +454,7 @@ public class IRKitSetupManager implements IRKitEventListener {
 //                }
 //            });
 
-        IRKit.sharedInstance().getHTTPClient().waitForDoor(setupDeviceId, new IRAPICallback<IRInternetAPIService.PostDoorResponse>() {
+        postDoorSubscription = IRKit.sharedInstance().getHTTPClient().waitForDoor(setupDeviceId, new IRAPICallback<IRInternetAPIService.PostDoorResponse>() {
             @Override
             public void success(IRInternetAPIService.PostDoorResponse postDoorResponse, Response response) {
                 if (isSettingUpIRKit) {
@@ -512,10 +503,23 @@ public class IRKitSetupManager implements IRKitEventListener {
 //            handler.postDelayed(runnable, 10000);
 //        }
 
+    /**
+     * Stop waiting for POST /1/door of this setup, leaving other waits intact.
+     */
+    private void cancelPostDoor() {
+        if (postDoorSubscription != null) {
+            postDoorSubscription.cancel();
+            postDoorSubscription = null;
+        }
+    }
+
     public void cancel() {
         if (isSettingUpIRKit) {
             isSettingUpIRKit = false;
-            IRKit.sharedInstance().getHTTPClient().cancelPostDoor();
+            if (checkConnectivityTimeoutTask != null) {
+                checkConnectivityTimeoutTask.cancel();
+            }
+            cancelPostDoor();
             revertToNormalWifi();
         }
     }
@@ -525,6 +529,7 @@ public class IRKitSetupManager implements IRKitEventListener {
             synchronized (checkConnectivityState) {
                 if (!checkConnectivityState.isFinished()) {
                     checkConnectivityState.finish();
+                    checkConnectivityTimeoutTask.cancel();
                     if (isSettingUpIRKit) {
                         isSettingUpIRKit = false;
 
@@ -609,7 +614,7 @@ public class IRKitSetupManager implements IRKitEventListener {
                 if (isSettingUpIRKit) {
                     isSettingUpIRKit = false;
                     Log.e(TAG, "error fetching model info: " + message);
-                    IRKit.sharedInstance().getHTTPClient().cancelPostDoor();
+                    cancelPostDoor();
                     irKitConnectWifiListener.onError("Error occurred during setting up IRKit");
                 }
             }
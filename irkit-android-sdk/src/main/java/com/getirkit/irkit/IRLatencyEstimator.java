@@ -0,0 +1,141 @@
+package com.getirkit.irkit;
+
+/**
+ * Estimates round trip time to an IRKit device and a timeout for it,
+ * the same way as TCP does (RFC 6298).
+ *
+ * SRTT and RTTVAR are exponentially weighted moving averages of the round trip time
+ * and its deviation. The timeout is SRTT + 4 * RTTVAR and is doubled on every timeout
+ * until a response arrives.
+ */
+public class IRLatencyEstimator {
+    public static final String TAG = IRLatencyEstimator.class.getSimpleName();
+
+    public static final int LINK_QUALITY_UNKNOWN = 0;
+    public static final int LINK_QUALITY_GOOD = 1;
+    public static final int LINK_QUALITY_FAIR = 2;
+    public static final int LINK_QUALITY_POOR = 3;
+
+    // Gains from RFC 6298
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+
+    // Timeouts never go beyond this
+    private static final long MAX_TIMEOUT_MS = 60000;
+
+    // Smoothed RTT boundaries for link quality
+    private static final long GOOD_RTT_MS = 150;
+    private static final long FAIR_RTT_MS = 500;
+
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private int backoffShift;
+    private int sampleCount;
+    private int timeoutCount;
+    private int consecutiveTimeouts;
+
+    /**
+     * Add the round trip time of a request which got a response.
+     *
+     * @param rttMs
+     */
+    public synchronized void record(long rttMs) {
+        if (rttMs < 0) {
+            return;
+        }
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMs;
+            rttVariance = rttMs / 2.0;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rttMs);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttMs;
+        }
+        sampleCount++;
+        backoffShift = 0;
+        consecutiveTimeouts = 0;
+    }
+
+    /**
+     * Tell that a request has timed out. The next timeout is doubled.
+     */
+    public synchronized void recordTimeout() {
+        timeoutCount++;
+        consecutiveTimeouts++;
+        if (backoffShift < 6) {
+            backoffShift++;
+        }
+    }
+
+    /**
+     * Returns the timeout clamped to [minMs, maxMs], or defaultMs if no response has been observed.
+     *
+     * @param defaultMs
+     * @param minMs
+     * @param maxMs
+     * @return
+     */
+    public synchronized long getTimeoutMs(long defaultMs, long minMs, long maxMs) {
+        long timeout;
+        if (smoothedRtt < 0) {
+            timeout = defaultMs << backoffShift;
+        } else {
+            timeout = (long) Math.ceil(smoothedRtt + K * rttVariance) << backoffShift;
+        }
+        return Math.max(minMs, Math.min(Math.min(maxMs, MAX_TIMEOUT_MS), timeout));
+    }
+
+    /**
+     * Returns smoothed round trip time in ms, or -1 if it isn't known.
+     *
+     * @return
+     */
+    public synchronized long getSmoothedRttMs() {
+        return smoothedRtt < 0 ? -1 : Math.round(smoothedRtt);
+    }
+
+    /**
+     * Returns mean deviation of round trip time in ms, or -1 if it isn't known.
+     *
+     * @return
+     */
+    public synchronized long getRttVarianceMs() {
+        return smoothedRtt < 0 ? -1 : Math.round(rttVariance);
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Returns one of LINK_QUALITY_* constants.
+     *
+     * @return
+     */
+    public synchronized int getLinkQuality() {
+        if (consecutiveTimeouts >= 2) {
+            return LINK_QUALITY_POOR;
+        }
+        if (smoothedRtt < 0) {
+            return consecutiveTimeouts > 0 ? LINK_QUALITY_POOR : LINK_QUALITY_UNKNOWN;
+        }
+        long jitteredRtt = Math.round(smoothedRtt + rttVariance);
+        if (consecutiveTimeouts == 0 && jitteredRtt <= GOOD_RTT_MS) {
+            return LINK_QUALITY_GOOD;
+        } else if (jitteredRtt <= FAIR_RTT_MS) {
+            return LINK_QUALITY_FAIR;
+        } else {
+            return LINK_QUALITY_POOR;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IRLatencyEstimator[srtt=" + getSmoothedRttMs() + ";rttvar=" + getRttVarianceMs() +
+                ";samples=" + sampleCount + ";timeouts=" + timeoutCount + ";backoff=" + backoffShift + "]";
+    }
+}
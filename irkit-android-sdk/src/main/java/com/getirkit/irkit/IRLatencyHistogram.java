@@ -0,0 +1,118 @@
+package com.getirkit.irkit;
+
+/**
+ * Histogram of latencies in ms with logarithmic buckets.
+ *
+ * Each bucket is about 19% wider than the previous one, so a percentile is
+ * accurate to within that ratio from 1 ms up to MAX_LATENCY_MS. Larger values go
+ * into the last bucket.
+ */
+public class IRLatencyHistogram {
+    public static final String TAG = IRLatencyHistogram.class.getSimpleName();
+
+    public static final int MAX_LATENCY_MS = 60000;
+
+    // 4 buckets per doubling
+    private static final int BUCKETS_PER_OCTAVE = 4;
+
+    // Counts are halved when this many samples are reached, so that the histogram follows recent behavior
+    private static final int DECAY_THRESHOLD = 256;
+
+    private static final int[] UPPER_BOUNDS = createUpperBounds();
+
+    private final int[] counts = new int[UPPER_BOUNDS.length];
+    private int totalCount;
+
+    private static int[] createUpperBounds() {
+        int size = (int) Math.ceil(Math.log(MAX_LATENCY_MS) / Math.log(2) * BUCKETS_PER_OCTAVE) + 1;
+        int[] bounds = new int[size];
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int bound = (int) Math.round(Math.pow(2, (double) i / BUCKETS_PER_OCTAVE));
+            // Small buckets are at least 1 ms wide
+            bounds[i] = Math.min(MAX_LATENCY_MS, Math.max(bound, previous + 1));
+            previous = bounds[i];
+        }
+        return bounds;
+    }
+
+    private static int bucketOf(long latencyMs) {
+        int low = 0;
+        int high = UPPER_BOUNDS.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (UPPER_BOUNDS[mid] < latencyMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param latencyMs
+     */
+    public synchronized void record(long latencyMs) {
+        counts[bucketOf(latencyMs)]++;
+        totalCount++;
+        if (totalCount >= DECAY_THRESHOLD) {
+            decay();
+        }
+    }
+
+    public synchronized int getCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the upper bound of the bucket which contains the given percentile,
+     * or -1 if there are no samples.
+     *
+     * @param percentile 0 to 100
+     * @return
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (totalCount == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(totalCount * percentile / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return UPPER_BOUNDS[i];
+            }
+        }
+        return UPPER_BOUNDS[UPPER_BOUNDS.length - 1];
+    }
+
+    /**
+     * Halve all counts so that recent samples weigh more than old ones.
+     */
+    public synchronized void decay() {
+        totalCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] >>= 1;
+            totalCount += counts[i];
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IRLatencyHistogram[count=" + totalCount + ";p50=" + getPercentile(50) +
+                ";p95=" + getPercentile(95) + ";p99=" + getPercentile(99) + "]";
+    }
+}
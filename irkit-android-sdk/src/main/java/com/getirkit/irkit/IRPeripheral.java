@@ -3,6 +3,7 @@ package com.getirkit.irkit;
 import android.os.AsyncTask;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.getirkit.irkit.net.IRDeviceAPIService;
@@ -15,6 +16,9 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -32,6 +36,18 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public transient static final String TAG = "IRPeripheral";
 
+    private static volatile int keyGeneration;
+
+    // Timeouts for GET /messages in fetchModelInfo()
+    private static final long MODEL_INFO_DEFAULT_TIMEOUT_MS = 5000;
+    private static final long MODEL_INFO_MIN_TIMEOUT_MS = 1000;
+    private static final long MODEL_INFO_MAX_TIMEOUT_MS = 10000;
+
+    // Timeouts for isReachable() and testReachability()
+    private static final long REACHABILITY_DEFAULT_TIMEOUT_MS = 100;
+    private static final long REACHABILITY_MIN_TIMEOUT_MS = 100;
+    private static final long REACHABILITY_MAX_TIMEOUT_MS = 1000;
+
     /**
      * Device hostname (remain unchanged over time)
      */
@@ -66,6 +82,8 @@ public class IRPeripheral implements Serializable, Parcelable {
     private transient InetAddress host;
     private transient int port;
     private transient boolean isFetchingDeviceId = false;
+    private transient IRLatencyHistogram localSendLatency;
+    private transient IRLatencyEstimator latencyEstimator;
 
     @Override
     public String toString() {
@@ -101,6 +119,7 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public void setHostname(String hostname) {
         this.hostname = hostname;
+        keyGeneration++;
     }
 
     public String getCustomizedName() {
@@ -129,6 +148,17 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public void setDeviceId(String deviceId) {
         this.deviceId = deviceId;
+        keyGeneration++;
+    }
+
+    /**
+     * Returns a counter which changes whenever hostname or deviceId of any IRPeripheral changes.
+     * IRPeripherals uses it to find out that its indexes are stale.
+     *
+     * @return
+     */
+    static int getKeyGeneration() {
+        return keyGeneration;
     }
 
     public boolean hasModelInfo() {
@@ -171,6 +201,22 @@ public class IRPeripheral implements Serializable, Parcelable {
         this.port = port;
     }
 
+    /**
+     * Set local address. If the address has changed, the cached device API client
+     * for the previous address is discarded.
+     *
+     * @param host
+     * @param port
+     */
+    public void setHostAndPort(InetAddress host, int port) {
+        String previousEndpoint = getDeviceAPIEndpoint();
+        this.host = host;
+        this.port = port;
+        if (previousEndpoint != null && !previousEndpoint.equals(getDeviceAPIEndpoint())) {
+            IRHTTPClient.sharedInstance().evictDeviceAPIService(previousEndpoint);
+        }
+    }
+
     /**
      *
      * @param server
@@ -229,12 +275,40 @@ public class IRPeripheral implements Serializable, Parcelable {
             }
             return;
         }
-        IRHTTPClient httpClient = IRKit.sharedInstance().getHTTPClient();
-        httpClient.setDeviceAPIEndpoint("http://" + this.host.getHostAddress() + ":" + this.port);
-        IRDeviceAPIService deviceAPIService = httpClient.getDeviceAPIService();
+        IRDeviceAPIService deviceAPIService = IRKit.sharedInstance().getHTTPClient().getDeviceAPIService(this);
+        final IRState state = new IRState();
+        final long timeoutMs = getLatencyEstimator().getTimeoutMs(MODEL_INFO_DEFAULT_TIMEOUT_MS,
+                MODEL_INFO_MIN_TIMEOUT_MS, MODEL_INFO_MAX_TIMEOUT_MS);
+        final IRScheduler.Task timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (state) {
+                    if (state.isFinished()) {
+                        return;
+                    }
+                    state.finish();
+                }
+                // Not retried here since IRKit panics when it receives parallel requests
+                Log.e(TAG, "fetchModelInfo: timeout after " + timeoutMs + " ms");
+                getLatencyEstimator().recordTimeout();
+                if (listener != null) {
+                    listener.onErrorFetchingModelInfo("timeout");
+                }
+            }
+        }, timeoutMs);
+        final long startTime = SystemClock.elapsedRealtime();
         deviceAPIService.getMessages(new Callback<IRDeviceAPIService.GetMessagesResponse>() {
             @Override
             public void success(IRDeviceAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                // Recorded even when it's too late, since it is still a valid sample
+                getLatencyEstimator().record(SystemClock.elapsedRealtime() - startTime);
+                synchronized (state) {
+                    if (state.isFinished()) {  // timed out
+                        return;
+                    }
+                    state.finish();
+                }
+                timeoutTask.cancel();
                 // fetchModelInfo success
                 if (storeResponseHeaders(response)) {
                     IRKit.sharedInstance().peripherals.save();
@@ -246,6 +320,13 @@ public class IRPeripheral implements Serializable, Parcelable {
 
             @Override
             public void failure(RetrofitError error) {
+                synchronized (state) {
+                    if (state.isFinished()) {  // timed out
+                        return;
+                    }
+                    state.finish();
+                }
+                timeoutTask.cancel();
                 Log.e(TAG, "device getMessages failure: " + error.getMessage());
                 fetchModelInfo(retryCount + 1);
             }
@@ -280,11 +361,12 @@ public class IRPeripheral implements Serializable, Parcelable {
         if (listener != null) {
             listener.onDeviceIdStatusChange();
         }
-        IRHTTPClient.sharedInstance().setDeviceAPIEndpoint("http://" + this.host.getHostAddress() + ":" + this.port);
-        IRDeviceAPIService deviceAPIService = IRHTTPClient.sharedInstance().getDeviceAPIService();
+        IRDeviceAPIService deviceAPIService = IRHTTPClient.sharedInstance().getDeviceAPIService(this);
+        final long startTime = SystemClock.elapsedRealtime();
         deviceAPIService.postKeys(new Callback<IRDeviceAPIService.PostKeysResponse>() {
             @Override
             public void success(IRDeviceAPIService.PostKeysResponse postKeysResponse, Response response) {
+                getLatencyEstimator().record(SystemClock.elapsedRealtime() - startTime);
                 if (storeResponseHeaders(response)) {
                     IRKit.sharedInstance().peripherals.save();
                 }
@@ -338,14 +420,78 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public boolean isReachable() {
         if ( isLocalAddressResolved() ) {
+            return probeReachability(host);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the timeout for reachability probes, which follows the observed round trip time.
+     *
+     * @return
+     */
+    public long getReachabilityTimeoutMs() {
+        return getLatencyEstimator().getTimeoutMs(REACHABILITY_DEFAULT_TIMEOUT_MS,
+                REACHABILITY_MIN_TIMEOUT_MS, REACHABILITY_MAX_TIMEOUT_MS);
+    }
+
+    private boolean probeReachability(InetAddress host) {
+        long timeoutMs = getReachabilityTimeoutMs();
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            if (host.isReachable((int) timeoutMs)) {
+                getLatencyEstimator().record(SystemClock.elapsedRealtime() - startTime);
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        getLatencyEstimator().recordTimeout();
+        return false;
+    }
+
+    /**
+     * Try to open a TCP connection to the HTTP port of IRKit. Blocks up to timeoutMs.
+     * Doesn't send a request, so it doesn't disturb a request in progress.
+     *
+     * @param host
+     * @param port
+     * @param timeoutMs
+     * @return true if connected
+     */
+    boolean probeConnect(InetAddress host, int port, int timeoutMs) {
+        return measureConnect(host, port, timeoutMs) >= 0;
+    }
+
+    /**
+     * Same as probeConnect() but returns the time taken to connect.
+     *
+     * @param host
+     * @param port
+     * @param timeoutMs
+     * @return Connect time in ms, or -1 if not connected
+     */
+    long measureConnect(InetAddress host, int port, int timeoutMs) {
+        Socket socket = new Socket();
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            long latencyMs = SystemClock.elapsedRealtime() - startTime;
+            getLatencyEstimator().record(latencyMs);
+            return latencyMs;
+        } catch (SocketTimeoutException e) {
+            getLatencyEstimator().recordTimeout();
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
             try {
-                return host.isReachable(100);
+                socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
-                return false;
+                // ignore
             }
-        } else {
-            return false;
         }
     }
 
@@ -360,24 +506,59 @@ public class IRPeripheral implements Serializable, Parcelable {
             return;
         }
 
+        final InetAddress host = this.host;
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
-                try {
-                    if (host.isReachable(100)) {
-                        result.reachable();
-                        return null;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (probeReachability(host)) {
+                    result.reachable();
+                } else {
+                    result.notReachable();
                 }
-                result.notReachable();
                 return null;
             }
         }.execute();
     }
 
+    /**
+     * Returns the estimator of round trip time and timeout over local network.
+     * Every request to this IRKit over local network is recorded to it.
+     * ローカルネットワーク経由の往復時間とタイムアウトの推定値を返します。
+     *
+     * @return
+     */
+    public synchronized IRLatencyEstimator getLatencyEstimator() {
+        if (latencyEstimator == null) {
+            latencyEstimator = new IRLatencyEstimator();
+        }
+        return latencyEstimator;
+    }
+
+    /**
+     * Returns quality of the link to this IRKit over local network.
+     * ローカルネットワークでの通信品質を返します。
+     *
+     * @return One of IRLatencyEstimator.LINK_QUALITY_*
+     */
+    public int getLinkQuality() {
+        return getLatencyEstimator().getLinkQuality();
+    }
+
+    /**
+     * Returns the histogram of round trip times of sending signals over local network.
+     * ローカルネットワーク経由の信号送信にかかった時間の分布を返します。
+     *
+     * @return
+     */
+    public synchronized IRLatencyHistogram getLocalSendLatency() {
+        if (localSendLatency == null) {
+            localSendLatency = new IRLatencyHistogram();
+        }
+        return localSendLatency;
+    }
+
     public void lostLocalAddress() {
+        IRHTTPClient.sharedInstance().evictDeviceAPIService(getDeviceAPIEndpoint());
         this.host = null;
         this.port = 0;
     }
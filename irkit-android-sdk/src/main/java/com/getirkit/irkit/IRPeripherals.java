@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * List of IRPeripheral.
@@ -22,6 +23,9 @@ public class IRPeripherals extends ArrayList<IRPeripheral> {
     public static final String TAG = "IRPeripherals";
     public static final String PREFS_KEY = "peripherals";
 
+    // Indexes are rebuilt when modCount or IRPeripheral.getKeyGeneration() has changed
+    private transient Index index;
+
     public IRPeripheral addPeripheral(String hostname) {
         IRPeripheral peripheral = new IRPeripheral();
         peripheral.setHostname(hostname);
@@ -31,49 +35,126 @@ public class IRPeripherals extends ArrayList<IRPeripheral> {
         return peripheral;
     }
 
-    public IRPeripheral getPeripheralByDeviceId(String deviceId) {
+    @Override
+    public IRPeripheral set(int index, IRPeripheral peripheral) {
+        // ArrayList.set() doesn't count as a structural modification, but it invalidates indexes
+        modCount++;
+        return super.set(index, peripheral);
+    }
+
+    private Index getIndex() {
+        Index current = index;
+        int keyGeneration = IRPeripheral.getKeyGeneration();
+        if (current != null && current.modCount == modCount && current.keyGeneration == keyGeneration) {
+            return current;
+        }
+        current = new Index(modCount, keyGeneration);
+        // The first one wins when keys overlap, as the linear search did
         for (IRPeripheral peripheral : this) {
-            if (peripheral != null) {
-                String _deviceId = peripheral.getDeviceId();
-                if (_deviceId != null && _deviceId.equals(deviceId)) {
-                    return peripheral;
+            if (peripheral == null) {
+                continue;
+            }
+            String deviceId = peripheral.getDeviceId();
+            if (deviceId != null && !current.byDeviceId.containsKey(deviceId)) {
+                current.byDeviceId.put(deviceId, peripheral);
+            }
+            String hostname = peripheral.getHostname();
+            if (hostname != null) {
+                String key = hostname.toLowerCase();
+                if (!current.byHostname.containsKey(key)) {
+                    current.byHostname.put(key, peripheral);
                 }
             }
         }
-        return null;
+        index = current;
+        return current;
     }
 
+    public IRPeripheral getPeripheralByDeviceId(String deviceId) {
+        if (deviceId == null) {
+            return null;
+        }
+        return getIndex().byDeviceId.get(deviceId);
+    }
+
+    /**
+     * Returns IRPeripheral whose hostname matches name case-insensitively.
+     * ホスト名が大文字小文字を区別せずにnameと一致するIRPeripheralを返します。
+     *
+     * @param name
+     * @return
+     */
     public IRPeripheral getPeripheral(String name) {
         if (name == null) {
             return null;
         }
-        name = name.toLowerCase();
-        for (IRPeripheral peripheral : this) {
-            if (peripheral.getHostname().toLowerCase().equals(name)) {
-                return peripheral;
-            }
+        return getIndex().byHostname.get(name.toLowerCase());
+    }
+
+    /**
+     * Check all peripherals with a TCP connection in parallel. listener is called once on
+     * the main thread when all of them have answered or deadlineMs has passed.
+     * すべての周辺機器への到達性を並行して確認します。結果はまとめてメインスレッドで通知されます。
+     *
+     * @param deadlineMs
+     * @param listener
+     */
+    public void testReachability(int deadlineMs, IRReachabilitySweep.Listener listener) {
+        new IRReachabilitySweep(this, deadlineMs, listener).start();
+    }
+
+    private static class Index {
+        public final int modCount;
+        public final int keyGeneration;
+        public final HashMap<String, IRPeripheral> byDeviceId = new HashMap<>();
+        // keys are lowercased hostnames
+        public final HashMap<String, IRPeripheral> byHostname = new HashMap<>();
+
+        public Index(int modCount, int keyGeneration) {
+            this.modCount = modCount;
+            this.keyGeneration = keyGeneration;
         }
-        return null;
     }
 
+    /**
+     * Save peripherals on the background writer. Saves within its coalescing window
+     * result in one write. Use IRKit.flushPendingWrites() to write immediately.
+     * 周辺機器をバックグラウンドで保存します。短時間に連続した保存は1回の書き込みにまとめられます。
+     */
     public void save() {
-        String serializedStr;
+        // Serialize here, since IRPeripheral objects are modified on the calling thread.
+        // Only the resulting string is handed to the writer.
+        final String serializedStr = serialize();
+        if (serializedStr == null) {
+            return;
+        }
+        IRKit.sharedInstance().getPersistenceWriter().request(PREFS_KEY, new Runnable() {
+            @Override
+            public void run() {
+                IRKit.sharedInstance().savePreference(PREFS_KEY, serializedStr);
+            }
+        });
+    }
+
+    private String serialize() {
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             ObjectOutputStream oos = new ObjectOutputStream(baos);
             oos.writeObject(this);
             oos.close();
-            serializedStr = Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
+            return Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
         } catch (IOException ex) {
             ex.printStackTrace();
-            return;
+            return null;
         }
-        IRKit.sharedInstance().savePreference(PREFS_KEY, serializedStr);
     }
 
     public void load() {
         this.clear();
 
+        // Don't read over a save which is still pending
+        IRKit.sharedInstance().getPersistenceWriter().flush();
+
         String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
         if (jsonStr != null) {
             try {
@@ -0,0 +1,168 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single background writer which coalesces bursts of write requests.
+ *
+ * Each request has a key. If another request with the same key is still pending,
+ * it replaces the pending one, so a burst of saves within the coalescing window
+ * results in a single write. Writes run in the order their keys were first requested.
+ */
+public class IRPersistenceWriter {
+    public static final String TAG = IRPersistenceWriter.class.getSimpleName();
+
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 300;
+
+    private final ScheduledExecutorService executor;
+    private final long coalesceWindowMs;
+    private final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledDrain;
+    private volatile Thread writerThread;
+
+    private long requestCount;
+    private long writeCount;
+    private long coalescedCount;
+    private long failureCount;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public IRPersistenceWriter() {
+        this(DEFAULT_COALESCE_WINDOW_MS);
+    }
+
+    public IRPersistenceWriter(long coalesceWindowMs) {
+        this.coalesceWindowMs = coalesceWindowMs;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IRKit-Writer");
+                thread.setDaemon(true);
+                writerThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run write on the writer thread within the coalescing window.
+     * A pending write with the same key is replaced.
+     *
+     * @param key
+     * @param write
+     */
+    public void request(String key, Runnable write) {
+        synchronized (pending) {
+            requestCount++;
+            if (pending.put(key, write) != null) {
+                coalescedCount++;
+            }
+            if (scheduledDrain == null) {
+                scheduledDrain = executor.schedule(drainTask, coalesceWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Run pending writes now and wait for them to finish. Call this before the process may be killed.
+     * 保留中の書き込みを実行し、完了を待ちます。
+     */
+    public void flush() {
+        if (Thread.currentThread() == writerThread) {
+            drain();
+            return;
+        }
+        synchronized (pending) {
+            if (pending.isEmpty() && scheduledDrain == null) {
+                return;
+            }
+        }
+        try {
+            // The executor is single-threaded, so this also waits for a drain already running
+            executor.submit(drainTask).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "flush failed", e.getCause());
+        }
+    }
+
+    private void drain() {
+        List<Runnable> writes;
+        synchronized (pending) {
+            if (scheduledDrain != null) {
+                scheduledDrain.cancel(false);
+                scheduledDrain = null;
+            }
+            writes = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Runnable write : writes) {
+            try {
+                write.run();
+                synchronized (pending) {
+                    writeCount++;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "write failed", e);
+                synchronized (pending) {
+                    failureCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of counters.
+     *
+     * @return
+     */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (pending) {
+            stats.requestCount = requestCount;
+            stats.writeCount = writeCount;
+            stats.coalescedCount = coalescedCount;
+            stats.failureCount = failureCount;
+            stats.pendingCount = pending.size();
+        }
+        return stats;
+    }
+
+    /**
+     * Counters of IRPersistenceWriter at some point in time.
+     */
+    public static class Stats {
+        public long requestCount;
+        public long writeCount;
+
+        /**
+         * Number of requests which were replaced by a later request with the same key
+         */
+        public long coalescedCount;
+
+        public long failureCount;
+        public int pendingCount;
+
+        @Override
+        public String toString() {
+            return "Stats[requests=" + requestCount + ";writes=" + writeCount + ";coalesced=" + coalescedCount +
+                    ";failures=" + failureCount + ";pending=" + pendingCount + "]";
+        }
+    }
+}
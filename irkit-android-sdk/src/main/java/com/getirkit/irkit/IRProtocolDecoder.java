@@ -0,0 +1,329 @@
+package com.getirkit.irkit;
+
+/**
+ * Decodes raw pulse data (in 2MHz ticks) of NEC, AEHA, Sony SIRC and Philips RC5 remotes.
+ *
+ * Protocols are described by the PROTOCOLS table in units of their base pulse, and decoded
+ * by the same code for each encoding. Pulse data is split into frames at spaces of at least
+ * IRPulseCompressor.MIN_FRAME_GAP. The first frame is decoded, and every following frame has
+ * to be either the same frame or a repeat code of the protocol, otherwise the signal is unknown.
+ *
+ * Decoding allocates nothing but the result. Instances aren't thread-safe, which is why
+ * decode() is synchronized.
+ */
+public class IRProtocolDecoder {
+    public static final String TAG = IRProtocolDecoder.class.getSimpleName();
+
+    /**
+     * Tolerance of pulse widths, in addition to EXTRA_TOLERANCE
+     */
+    public static final int DEFAULT_TOLERANCE_PERCENT = 30;
+
+    /**
+     * Tolerance in 2MHz ticks (100 us) added to the percentage, since IR receivers stretch marks
+     * and shorten spaces by a fixed time, which matters most for short pulses
+     */
+    public static final int EXTRA_TOLERANCE = 200;
+
+    /**
+     * Maximum number of bits in a frame
+     */
+    public static final int MAX_BITS = 512;
+
+    // Bit value is in the space after a fixed mark, and a stop mark ends the frame
+    private static final int ENCODING_PULSE_DISTANCE = 1;
+
+    // Bit value is in the mark before a fixed space
+    private static final int ENCODING_PULSE_WIDTH = 2;
+
+    // Manchester code: 1 is space then mark, 0 is mark then space, each for one unit
+    private static final int ENCODING_BIPHASE = 3;
+
+    private static final Protocol[] PROTOCOLS = {
+            // 562.5 us unit, 9 ms + 4.5 ms leader, 32 bits LSB first, stop bit, repeat code 9 ms + 2.25 ms + stop bit
+            new Protocol(IRDecodedSignal.PROTOCOL_NEC, ENCODING_PULSE_DISTANCE, 1125, 1125,
+                    16, 8, 1, 1, 1, 3, 32, 32, 1, 0, 16, 4),
+            // T = 350-500 us taken from the 8T + 4T leader, whole bytes LSB first, stop bit, repeat code 8T + 8T + stop bit
+            new Protocol(IRDecodedSignal.PROTOCOL_AEHA, ENCODING_PULSE_DISTANCE, 700, 1000,
+                    8, 4, 1, 1, 1, 3, 48, MAX_BITS, 8, 0, 8, 8),
+            // 600 us unit, 2.4 ms + 0.6 ms leader, 12, 15 or 20 bits LSB first, frame sent at least 3 times
+            new Protocol(IRDecodedSignal.PROTOCOL_SONY, ENCODING_PULSE_WIDTH, 1200, 1200,
+                    4, 1, 1, 1, 2, 1, 12, 20, 1, (1L << 12) | (1L << 15) | (1L << 20), 0, 0),
+            // 889 us half bit, 14 bits MSB first including two start bits and the toggle bit
+            new Protocol(IRDecodedSignal.PROTOCOL_RC5, ENCODING_BIPHASE, 1778, 1778,
+                    0, 0, 0, 0, 0, 0, 14, 14, 1, 0, 0, 0),
+    };
+
+    /**
+     * Index of the RC5 toggle bit
+     */
+    private static final int RC5_TOGGLE_BIT = 2;
+
+    private static IRProtocolDecoder instance;
+
+    private final byte[] bits = new byte[MAX_BITS / 8];
+    private final byte[] repeatBits = new byte[MAX_BITS / 8];
+    private int tolerancePercent = DEFAULT_TOLERANCE_PERCENT;
+
+    // Unit of the frame decoded last
+    private int frameUnit;
+
+    /**
+     * Timings of a protocol in units, where a unit is in 2MHz ticks.
+     */
+    private static class Protocol {
+        public final int protocol;
+        public final int encoding;
+
+        /**
+         * Range of the unit. If they differ, the unit is taken from the leader.
+         */
+        public final int minUnit;
+        public final int maxUnit;
+
+        public final int leaderMark;
+        public final int leaderSpace;
+        public final int zeroMark;
+        public final int zeroSpace;
+        public final int oneMark;
+        public final int oneSpace;
+
+        public final int minBits;
+        public final int maxBits;
+        public final int bitStep;
+
+        /**
+         * If not 0, bit n is set when a frame of n bits is valid
+         */
+        public final long validBitCounts;
+
+        /**
+         * Repeat code as mark, space and a stop mark, or 0 if there is none
+         */
+        public final int repeatMark;
+        public final int repeatSpace;
+
+        public Protocol(int protocol, int encoding, int minUnit, int maxUnit,
+                        int leaderMark, int leaderSpace, int zeroMark, int zeroSpace, int oneMark, int oneSpace,
+                        int minBits, int maxBits, int bitStep, long validBitCounts, int repeatMark, int repeatSpace) {
+            this.protocol = protocol;
+            this.encoding = encoding;
+            this.minUnit = minUnit;
+            this.maxUnit = maxUnit;
+            this.leaderMark = leaderMark;
+            this.leaderSpace = leaderSpace;
+            this.zeroMark = zeroMark;
+            this.zeroSpace = zeroSpace;
+            this.oneMark = oneMark;
+            this.oneSpace = oneSpace;
+            this.minBits = minBits;
+            this.maxBits = maxBits;
+            this.bitStep = bitStep;
+            this.validBitCounts = validBitCounts;
+            this.repeatMark = repeatMark;
+            this.repeatSpace = repeatSpace;
+        }
+
+        public boolean isValidBitCount(int count) {
+            if (validBitCounts != 0) {
+                return count < 64 && (validBitCounts & (1L << count)) != 0;
+            }
+            return count >= minBits && count <= maxBits && count % bitStep == 0;
+        }
+    }
+
+    public static synchronized IRProtocolDecoder sharedInstance() {
+        if (instance == null) {
+            instance = new IRProtocolDecoder();
+        }
+        return instance;
+    }
+
+    public synchronized void setTolerancePercent(int tolerancePercent) {
+        this.tolerancePercent = tolerancePercent;
+    }
+
+    /**
+     * Decode pulse data.
+     *
+     * @param data Pulse data in 2MHz ticks, starting with a mark
+     * @return null if data isn't a known protocol
+     */
+    public synchronized IRDecodedSignal decode(int[] data) {
+        if (data == null || data.length < 3) {
+            return null;
+        }
+        int firstEnd = findFrameEnd(data, 0);
+        for (Protocol protocol : PROTOCOLS) {
+            int bitCount = decodeFrame(data, 0, firstEnd, protocol, bits);
+            if (bitCount < 0) {
+                continue;
+            }
+            int unit = frameUnit;
+            int repeatCount = 0;
+            for (int start = firstEnd + 1; start < data.length; ) {
+                int end = findFrameEnd(data, start);
+                if (!isRepeatCode(data, start, end, protocol, unit) &&
+                        !(decodeFrame(data, start, end, protocol, repeatBits) == bitCount &&
+                                equalBits(bits, repeatBits, bitCount))) {
+                    // Followed by something else, e.g. an air conditioner which sends two different frames
+                    return null;
+                }
+                repeatCount++;
+                start = end + 1;
+            }
+            byte[] out = new byte[(bitCount + 7) / 8];
+            System.arraycopy(bits, 0, out, 0, out.length);
+            int toggle = 0;
+            if (protocol.protocol == IRDecodedSignal.PROTOCOL_RC5) {
+                toggle = getBit(out, RC5_TOGGLE_BIT);
+                out[RC5_TOGGLE_BIT >> 3] &= ~(1 << (RC5_TOGGLE_BIT & 7));
+            }
+            return new IRDecodedSignal(protocol.protocol, bitCount, out, repeatCount, toggle);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the space which ends the frame starting at start, or data.length.
+     */
+    private static int findFrameEnd(int[] data, int start) {
+        for (int i = start + 1; i < data.length; i += 2) {
+            if (data[i] >= IRPulseCompressor.MIN_FRAME_GAP) {
+                return i;
+            }
+        }
+        return data.length;
+    }
+
+    /**
+     * Decode pulses from start to end into out.
+     *
+     * @return Number of bits, or -1 if the frame isn't of protocol
+     */
+    private int decodeFrame(int[] data, int start, int end, Protocol protocol, byte[] out) {
+        if (protocol.encoding == ENCODING_BIPHASE) {
+            frameUnit = protocol.minUnit;
+            return decodeBiphase(data, start, end, protocol, out);
+        }
+        if (end - start < 3) {
+            return -1;
+        }
+        int unit = protocol.minUnit;
+        if (protocol.minUnit != protocol.maxUnit) {
+            // Receivers stretch marks and shorten spaces, so use the whole leader
+            unit = (data[start] + data[start + 1]) / (protocol.leaderMark + protocol.leaderSpace);
+            if (unit < protocol.minUnit * (100 - tolerancePercent) / 100 ||
+                    unit > protocol.maxUnit * (100 + tolerancePercent) / 100) {
+                return -1;
+            }
+        }
+        frameUnit = unit;
+        if (!matches(data[start], protocol.leaderMark * unit) || !matches(data[start + 1], protocol.leaderSpace * unit)) {
+            return -1;
+        }
+        int count = 0;
+        boolean hasStopMark = false;
+        for (int i = start + 2; i < end; i += 2) {
+            int mark = data[i];
+            boolean hasSpace = i + 1 < end;
+            int bit;
+            if (protocol.encoding == ENCODING_PULSE_DISTANCE) {
+                if (!matches(mark, protocol.zeroMark * unit)) {
+                    return -1;
+                }
+                if (!hasSpace) {
+                    hasStopMark = true;
+                    break;
+                }
+                bit = classify(data[i + 1], protocol.zeroSpace * unit, protocol.oneSpace * unit);
+            } else {
+                bit = classify(mark, protocol.zeroMark * unit, protocol.oneMark * unit);
+                // The space after the last bit is the gap
+                if (hasSpace && !matches(data[i + 1], protocol.zeroSpace * unit)) {
+                    return -1;
+                }
+            }
+            if (bit < 0 || count == MAX_BITS) {
+                return -1;
+            }
+            setBit(out, count++, bit);
+        }
+        if (protocol.encoding == ENCODING_PULSE_DISTANCE && !hasStopMark) {
+            return -1;
+        }
+        return protocol.isValidBitCount(count) ? count : -1;
+    }
+
+    private int decodeBiphase(int[] data, int start, int end, Protocol protocol, byte[] out) {
+        int unit = protocol.minUnit;
+        int count = 0;
+        // Half 0 is the space of the first start bit, which can't be seen
+        int half = 1;
+        int firstHalfLevel = 0;
+        for (int i = start; i < end; i++) {
+            int level = (i - start) % 2 == 0 ? 1 : 0;
+            int halves = classify(data[i], unit, unit * 2) + 1;
+            if (halves == 0) {
+                return -1;
+            }
+            for (int h = 0; h < halves; h++, half++) {
+                if (half % 2 == 0) {
+                    firstHalfLevel = level;
+                } else {
+                    if (firstHalfLevel == level || count == protocol.maxBits) {
+                        return -1;
+                    }
+                    setBit(out, count++, level);
+                }
+            }
+        }
+        if (half % 2 == 1) {
+            // The space of the last 0 can't be seen
+            if (firstHalfLevel != 1 || count == protocol.maxBits) {
+                return -1;
+            }
+            setBit(out, count++, 0);
+        }
+        return protocol.isValidBitCount(count) ? count : -1;
+    }
+
+    private boolean isRepeatCode(int[] data, int start, int end, Protocol protocol, int unit) {
+        return protocol.repeatMark != 0 && end - start == 3 &&
+                matches(data[start], protocol.repeatMark * unit) &&
+                matches(data[start + 1], protocol.repeatSpace * unit) &&
+                matches(data[start + 2], protocol.zeroMark * unit);
+    }
+
+    private boolean matches(int value, int expected) {
+        return Math.abs(value - expected) <= expected * tolerancePercent / 100 + EXTRA_TOLERANCE;
+    }
+
+    /**
+     * Returns 0 or 1 for the nearer of zero and one, or -1 if value matches neither.
+     */
+    private int classify(int value, int zero, int one) {
+        int bit = Math.abs(value - zero) <= Math.abs(value - one) ? 0 : 1;
+        return matches(value, bit == 0 ? zero : one) ? bit : -1;
+    }
+
+    private static void setBit(byte[] out, int index, int bit) {
+        if ((index & 7) == 0) {
+            out[index >> 3] = 0;
+        }
+        out[index >> 3] |= bit << (index & 7);
+    }
+
+    private static int getBit(byte[] bits, int index) {
+        return (bits[index >> 3] >> (index & 7)) & 1;
+    }
+
+    private static boolean equalBits(byte[] a, byte[] b, int bitCount) {
+        for (int i = 0; i < (bitCount + 7) / 8; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
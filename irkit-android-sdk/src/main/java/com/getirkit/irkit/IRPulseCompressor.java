@@ -0,0 +1,223 @@
+package com.getirkit.irkit;
+
+/**
+ * Finds a frame repeated in pulse data, such as NEC repeat codes, the three frames of Sony
+ * or an air conditioner which sends its state twice.
+ *
+ * Pulse data is described as head + frame repeated over repeatedLength pulses + tail.
+ * The last repeat may lack its trailing space, since captures end with a mark.
+ * Frames start at a mark, have an even number of pulses and end with a space of at least
+ * MIN_FRAME_GAP, so that a run of the same bits inside a frame isn't taken for a repeat.
+ *
+ * Two pulses match if they differ by at most tolerancePercent of the first frame,
+ * or MIN_TOLERANCE (in 2MHz ticks), whichever is larger. A tolerance of 0 matches exact values only.
+ */
+public class IRPulseCompressor {
+    public static final String TAG = IRPulseCompressor.class.getSimpleName();
+
+    /**
+     * Tolerance used by normalize() for learned signals. Captures of the same frame differ by
+     * a few percent, and receivers accept much more than this.
+     */
+    public static final int DEFAULT_TOLERANCE_PERCENT = 10;
+
+    /**
+     * Minimum tolerance in 2MHz ticks (10 us)
+     */
+    public static final int MIN_TOLERANCE = 20;
+
+    /**
+     * Minimum space between repeated frames in 2MHz ticks (5 ms). Spaces inside frames are shorter,
+     * e.g. 4.5 ms after the NEC leader.
+     */
+    public static final int MIN_FRAME_GAP = 10000;
+
+    private static final int MIN_FRAME_LENGTH = 4;
+
+    /**
+     * A repeated frame found in pulse data.
+     */
+    public static class Repeat {
+        /**
+         * Index where the first frame starts
+         */
+        public final int start;
+
+        /**
+         * Number of pulses in a frame, including the trailing space
+         */
+        public final int frameLength;
+
+        /**
+         * Number of pulses covered by the frame and its repeats
+         */
+        public final int repeatedLength;
+
+        public Repeat(int start, int frameLength, int repeatedLength) {
+            this.start = start;
+            this.frameLength = frameLength;
+            this.repeatedLength = repeatedLength;
+        }
+
+        /**
+         * Returns the number of times the frame is sent. The last one may lack its trailing space.
+         *
+         * @return
+         */
+        public int getRepeatCount() {
+            return (repeatedLength + frameLength - 1) / frameLength;
+        }
+
+        /**
+         * Returns the number of pulses which needn't be stored.
+         *
+         * @return
+         */
+        public int getSavedPulses() {
+            return repeatedLength - frameLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Repeat[start=" + start + ";frameLength=" + frameLength +
+                    ";repeatedLength=" + repeatedLength + ";count=" + getRepeatCount() + "]";
+        }
+    }
+
+    private IRPulseCompressor() {
+    }
+
+    /**
+     * Find the repeated frame which saves the most pulses.
+     *
+     * @param data
+     * @param tolerancePercent
+     * @return null if no frame is repeated at least twice
+     */
+    public static Repeat findRepeat(int[] data, int tolerancePercent) {
+        if (data == null) {
+            return null;
+        }
+        int n = data.length;
+        Repeat best = null;
+        int bestSaved = 0;
+        for (int frameLength = MIN_FRAME_LENGTH; frameLength * 2 - 1 <= n; frameLength += 2) {
+            // Longer frames can't save more than n - frameLength pulses
+            if (n - frameLength <= bestSaved) {
+                break;
+            }
+            for (int start = 0; start + frameLength * 2 - 1 <= n; start += 2) {
+                if (data[start + frameLength - 1] < MIN_FRAME_GAP) {
+                    continue;
+                }
+                int length = frameLength;
+                while (start + length < n &&
+                        matches(data[start + length], data[start + length % frameLength], tolerancePercent)) {
+                    length++;
+                }
+                int saved = length - frameLength;
+                if (length >= frameLength * 2 - 1 && saved > bestSaved) {
+                    best = new Repeat(start, frameLength, length);
+                    bestSaved = saved;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static boolean matches(int value, int frameValue, int tolerancePercent) {
+        if (tolerancePercent == 0) {
+            return value == frameValue;
+        }
+        int tolerance = Math.max(MIN_TOLERANCE, (int) ((long) frameValue * tolerancePercent / 100));
+        return Math.abs(value - frameValue) <= tolerance;
+    }
+
+    /**
+     * Replace the repeats of the frame by copies of the first frame, so that they are
+     * stored as frame plus repeat count. Every pulse stays within tolerancePercent.
+     *
+     * @param data
+     * @param tolerancePercent
+     * @return data itself if there is no repeated frame
+     */
+    public static int[] normalize(int[] data, int tolerancePercent) {
+        Repeat repeat = findRepeat(data, tolerancePercent);
+        if (repeat == null) {
+            return data;
+        }
+        int[] out = data.clone();
+        for (int i = repeat.frameLength; i < repeat.repeatedLength; i++) {
+            out[repeat.start + i] = data[repeat.start + i % repeat.frameLength];
+        }
+        return out;
+    }
+
+    /**
+     * Drop repeats of the frame beyond maxRepeats, to send fewer bytes.
+     * Some appliances need more than one frame (e.g. Sony expects three), so keep at least that many.
+     *
+     * @param data
+     * @param maxRepeats At least 1
+     * @param tolerancePercent
+     * @return data itself if it has no more repeats than maxRepeats
+     */
+    public static int[] limitRepeats(int[] data, int maxRepeats, int tolerancePercent) {
+        if (maxRepeats < 1) {
+            throw new IllegalArgumentException("maxRepeats must be at least 1");
+        }
+        Repeat repeat = findRepeat(data, tolerancePercent);
+        if (repeat == null) {
+            return data;
+        }
+        int frameLength = repeat.frameLength;
+        int end = repeat.start + repeat.repeatedLength;
+        if (end == data.length && repeat.repeatedLength % frameLength == frameLength - 1) {
+            // The last frame lacks only its trailing space. Keep the same ending.
+            if (repeat.getRepeatCount() <= maxRepeats) {
+                return data;
+            }
+            int[] out = new int[repeat.start + maxRepeats * frameLength - 1];
+            System.arraycopy(data, 0, out, 0, out.length);
+            return out;
+        }
+        // Cut whole frames only, since the tail may start in the middle of a partial repeat
+        int fullCount = repeat.repeatedLength / frameLength;
+        if (fullCount <= maxRepeats) {
+            return data;
+        }
+        int cutStart = repeat.start + maxRepeats * frameLength;
+        int cutEnd = repeat.start + fullCount * frameLength;
+        int[] out = new int[data.length - (cutEnd - cutStart)];
+        System.arraycopy(data, 0, out, 0, cutStart);
+        System.arraycopy(data, cutEnd, out, cutStart, data.length - cutEnd);
+        return out;
+    }
+
+    /**
+     * Returns pulses which need to be stored for repeat: head, one frame and tail.
+     */
+    static int[] unique(int[] data, Repeat repeat) {
+        int[] out = new int[data.length - repeat.getSavedPulses()];
+        int frameEnd = repeat.start + repeat.frameLength;
+        System.arraycopy(data, 0, out, 0, frameEnd);
+        int end = repeat.start + repeat.repeatedLength;
+        System.arraycopy(data, end, out, frameEnd, data.length - end);
+        return out;
+    }
+
+    /**
+     * Inverse of unique().
+     */
+    static int[] expand(int[] unique, int start, int frameLength, int repeatedLength) {
+        int savedPulses = repeatedLength - frameLength;
+        int[] out = new int[unique.length + savedPulses];
+        int frameEnd = start + frameLength;
+        System.arraycopy(unique, 0, out, 0, frameEnd);
+        for (int i = frameLength; i < repeatedLength; i++) {
+            out[start + i] = unique[start + i % frameLength];
+        }
+        System.arraycopy(unique, frameEnd, out, start + repeatedLength, unique.length - frameEnd);
+        return out;
+    }
+}
@@ -0,0 +1,83 @@
+package com.getirkit.irkit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pulse data of an IRSignal which stays encoded in a memory-mapped signals file.
+ *
+ * The bytes are the stored pulses of IRSignalCodec.Writer.writePulses() (without the length
+ * and repeat prefix), so they can be decoded on demand or copied into a new file as they are.
+ * Pulses read in PULSES_PLAIN format have no repeat and are valid PULSES_FRAMED pulses as well.
+ */
+class IRPulseData {
+    public static final String TAG = IRPulseData.class.getSimpleName();
+
+    // Shared by all IRPulseData of a file. Only absolute positions of duplicates are used.
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int byteLength;
+    private final int count;
+    // Repeated frame (frameLength is 0 if there is none)
+    private final int start;
+    private final int frameLength;
+    private final int repeatedLength;
+
+    public IRPulseData(ByteBuffer buffer, int offset, int byteLength, int count,
+                       int start, int frameLength, int repeatedLength) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.byteLength = byteLength;
+        this.count = count;
+        this.start = start;
+        this.frameLength = frameLength;
+        this.repeatedLength = repeatedLength;
+    }
+
+    /**
+     * Returns the number of pulses.
+     *
+     * @return
+     */
+    public int length() {
+        return count;
+    }
+
+    /**
+     * Decode pulses into a new array.
+     *
+     * @return
+     */
+    public int[] decode() {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        int[] data = new int[count - (repeatedLength - frameLength)];
+        for (int i = 0; i < data.length; i++) {
+            int previous = i >= 2 ? data[i - 2] : 0;
+            data[i] = previous + IRSignalCodec.readSignedVarint(in);
+        }
+        if (frameLength == 0) {
+            return data;
+        }
+        return IRPulseCompressor.expand(data, start, frameLength, repeatedLength);
+    }
+
+    /**
+     * Write the pulses in PULSES_FRAMED format, without decoding them.
+     *
+     * @param writer
+     */
+    public void writeTo(IRSignalCodec.Writer writer) {
+        writer.writeVarint(count + 1);
+        writer.writeRepeat(start, frameLength, repeatedLength);
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        byte[] chunk = new byte[Math.min(byteLength, 4096)];
+        int remaining = byteLength;
+        while (remaining > 0) {
+            int length = Math.min(remaining, chunk.length);
+            in.get(chunk, 0, length);
+            writer.writeBytes(chunk, 0, length);
+            remaining -= length;
+        }
+    }
+}
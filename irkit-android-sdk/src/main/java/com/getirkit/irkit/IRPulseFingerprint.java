@@ -0,0 +1,219 @@
+package com.getirkit.irkit;
+
+import java.util.Arrays;
+
+/**
+ * Locality-sensitive fingerprint of pulse data, which stays the same across captures of the same button.
+ *
+ * Pulse data is first reduced to one frame of repeats (see IRPulseCompressor.limitRepeats()), and
+ * short frames at the end such as NEC repeat codes are dropped, so that holding a button longer
+ * doesn't matter. Marks and spaces are then quantized separately: sorted values are split into
+ * clusters wherever a value is more than CLUSTER_GAP_PERCENT of the previous one, and each
+ * pulse is replaced by the rank of its cluster. Captures of the same button jitter by a few percent,
+ * while pulse widths of a protocol differ by 2x or so, so the ranks don't change between captures.
+ *
+ * The symbols are hashed in BAND_COUNT consecutive bands. Captures of the same button
+ * share all bands, and share most of them even if a cluster has been split differently in a band.
+ */
+public class IRPulseFingerprint {
+    public static final String TAG = IRPulseFingerprint.class.getSimpleName();
+
+    /**
+     * Number of band hashes of a fingerprint
+     */
+    public static final int BAND_COUNT = 8;
+
+    /**
+     * A sorted value more than this percentage of the previous value starts a new cluster.
+     */
+    public static final int CLUSTER_GAP_PERCENT = 115;
+
+    /**
+     * Tolerance used by matches() to confirm a duplicate. Receivers accept about this much.
+     */
+    public static final int DEFAULT_TOLERANCE_PERCENT = 20;
+
+    /**
+     * Frames at the end of this many pulses or fewer are taken for repeat codes, which carry no data.
+     */
+    public static final int MAX_REPEAT_CODE_PULSES = 4;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private IRPulseFingerprint() {
+    }
+
+    /**
+     * Returns pulse data reduced to one frame of repeats, without repeat codes at the end.
+     * The result ends with a mark.
+     *
+     * @param data
+     * @return
+     */
+    public static int[] canonicalize(int[] data) {
+        return canonicalize(data, findCanonicalRange(data));
+    }
+
+    static int[] canonicalize(int[] data, Range range) {
+        int[] out = new int[range.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = data[range.indexOf(i)];
+        }
+        return out;
+    }
+
+    /**
+     * Find which pulses of data make up its canonical data, without copying them.
+     * Same as IRPulseCompressor.limitRepeats() with maxRepeats of 1, followed by dropping repeat codes.
+     */
+    static Range findCanonicalRange(int[] data) {
+        int cutStart = data.length;
+        int cutEnd = data.length;
+        int length = data.length;
+        IRPulseCompressor.Repeat repeat = IRPulseCompressor.findRepeat(data, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT);
+        if (repeat != null) {
+            int frameLength = repeat.frameLength;
+            if (repeat.start + repeat.repeatedLength == data.length &&
+                    repeat.repeatedLength % frameLength == frameLength - 1) {
+                // The last frame lacks only its trailing space. Keep the first frame without its space.
+                length = repeat.start + frameLength - 1;
+                cutStart = length;
+                cutEnd = length;
+            } else {
+                cutStart = repeat.start + frameLength;
+                cutEnd = repeat.start + repeat.repeatedLength / frameLength * frameLength;
+                length = data.length - (cutEnd - cutStart);
+            }
+        }
+        Range range = new Range(cutStart, cutEnd - cutStart, length);
+        // End of the last frame which isn't a repeat code, excluding its trailing space
+        int end = length;
+        int frameStart = 0;
+        for (int i = 1; i <= length; i += 2) {
+            boolean isFrameEnd = i >= length - 1 || data[range.indexOf(i)] >= IRPulseCompressor.MIN_FRAME_GAP;
+            if (!isFrameEnd) {
+                continue;
+            }
+            if (frameStart == 0 || i - frameStart > MAX_REPEAT_CODE_PULSES) {
+                end = Math.min(i, length);
+            }
+            frameStart = i + 1;
+        }
+        return end == length ? range : new Range(cutStart, cutEnd - cutStart, end);
+    }
+
+    /**
+     * Canonical data as a part of pulse data: pulses from cutStart to cutStart + cutLength are left out.
+     */
+    static class Range {
+        public final int cutStart;
+        public final int cutLength;
+
+        /**
+         * Length of canonical data
+         */
+        public final int length;
+
+        public Range(int cutStart, int cutLength, int length) {
+            this.cutStart = cutStart;
+            this.cutLength = cutLength;
+            this.length = length;
+        }
+
+        /**
+         * Returns the index in pulse data of index-th pulse of canonical data.
+         */
+        public int indexOf(int index) {
+            return index < cutStart ? index : index + cutLength;
+        }
+    }
+
+    /**
+     * Returns BAND_COUNT band hashes of canonical pulse data.
+     *
+     * @param canonical Return value of canonicalize()
+     * @return
+     */
+    public static long[] compute(int[] canonical) {
+        int n = canonical.length;
+        int[] symbols = quantize(canonical);
+        long[] bands = new long[BAND_COUNT];
+        for (int band = 0; band < BAND_COUNT; band++) {
+            long hash = FNV_OFFSET_BASIS;
+            hash = (hash ^ band) * FNV_PRIME;
+            hash = (hash ^ n) * FNV_PRIME;
+            int end = (int) ((long) n * (band + 1) / BAND_COUNT);
+            for (int i = (int) ((long) n * band / BAND_COUNT); i < end; i++) {
+                hash = (hash ^ symbols[i]) * FNV_PRIME;
+            }
+            bands[band] = hash;
+        }
+        return bands;
+    }
+
+    /**
+     * Replace each pulse by the rank of its cluster among marks or spaces.
+     */
+    static int[] quantize(int[] data) {
+        int n = data.length;
+        int[] symbols = new int[n];
+        for (int parity = 0; parity < 2; parity++) {
+            int count = (n - parity + 1) / 2;
+            if (count <= 0) {
+                continue;
+            }
+            int[] sorted = new int[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = data[parity + i * 2];
+            }
+            Arrays.sort(sorted);
+            // Largest value of each cluster
+            int[] bounds = new int[count];
+            int clusterCount = 0;
+            for (int i = 1; i < count; i++) {
+                if ((long) sorted[i] * 100 > (long) sorted[i - 1] * CLUSTER_GAP_PERCENT) {
+                    bounds[clusterCount++] = sorted[i - 1];
+                }
+            }
+            bounds[clusterCount++] = sorted[count - 1];
+            for (int i = parity; i < n; i += 2) {
+                int rank = Arrays.binarySearch(bounds, 0, clusterCount, data[i]);
+                symbols[i] = rank >= 0 ? rank : -rank - 1;
+            }
+        }
+        return symbols;
+    }
+
+    /**
+     * Returns true if canonical data a and b have the same length and each pulse differs by at most
+     * tolerancePercent of the larger one, or IRPulseCompressor.MIN_TOLERANCE.
+     *
+     * @param a
+     * @param b
+     * @param tolerancePercent
+     * @return
+     */
+    public static boolean matches(int[] a, int[] b, int tolerancePercent) {
+        return a.length == b.length && matches(a, b, new Range(b.length, 0, b.length), tolerancePercent);
+    }
+
+    /**
+     * Same as matches() with the canonical data of b given by range, so that it needn't be copied.
+     */
+    static boolean matches(int[] canonical, int[] b, Range range, int tolerancePercent) {
+        if (canonical.length != range.length) {
+            return false;
+        }
+        for (int i = 0; i < canonical.length; i++) {
+            int a = canonical[i];
+            int value = b[range.indexOf(i)];
+            int tolerance = Math.max(IRPulseCompressor.MIN_TOLERANCE,
+                    (int) ((long) Math.max(a, value) * tolerancePercent / 100));
+            if (Math.abs(a - value) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
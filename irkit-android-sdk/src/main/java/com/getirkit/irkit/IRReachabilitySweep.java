@@ -0,0 +1,167 @@
+package com.getirkit.irkit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks whether IRKits are reachable over local network, all at once.
+ *
+ * Each IRKit is probed with a TCP connection to its HTTP port, which isn't blocked
+ * like ICMP echo used by InetAddress.isReachable(). Probes run in parallel on the
+ * blocking pool of IRScheduler, and the listener is called once on the main thread,
+ * when all probes have finished or the deadline has passed, whichever comes first.
+ */
+public class IRReachabilitySweep {
+    public static final String TAG = IRReachabilitySweep.class.getSimpleName();
+
+    public static final int DEFAULT_DEADLINE_MS = 1000;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when the sweep has finished.
+         *
+         * @param result
+         */
+        public void onFinished(Result result);
+    }
+
+    /**
+     * Outcome of a sweep.
+     */
+    public static class Result {
+        /**
+         * Reachable IRKits and their connect time in ms
+         */
+        public final HashMap<IRPeripheral, Long> reachable = new HashMap<>();
+
+        /**
+         * IRKits which refused the connection, didn't answer until the deadline,
+         * or whose local address isn't resolved
+         */
+        public final ArrayList<IRPeripheral> unreachable = new ArrayList<>();
+
+        /**
+         * Time taken by the sweep
+         */
+        public long durationMs;
+
+        public boolean isReachable(IRPeripheral peripheral) {
+            return reachable.containsKey(peripheral);
+        }
+
+        @Override
+        public String toString() {
+            return "Result[reachable=" + reachable.size() + ";unreachable=" + unreachable.size() +
+                    ";duration=" + durationMs + "]";
+        }
+    }
+
+    private final List<IRPeripheral> peripherals;
+    private final int deadlineMs;
+    private final Listener listener;
+
+    private final HashMap<IRPeripheral, Long> latencies = new HashMap<>();
+    private long startTime;
+    private int remaining;
+    private boolean isFinished = false;
+    private IRScheduler.Task deadlineTask;
+
+    public IRReachabilitySweep(List<IRPeripheral> peripherals, int deadlineMs, Listener listener) {
+        this.peripherals = new ArrayList<>(peripherals);
+        this.deadlineMs = deadlineMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Start probing. Returns immediately.
+     */
+    public void start() {
+        ArrayList<IRPeripheral> targets = new ArrayList<>();
+        for (IRPeripheral peripheral : peripherals) {
+            if (peripheral.isLocalAddressResolved()) {
+                targets.add(peripheral);
+            }
+        }
+        synchronized (this) {
+            startTime = SystemClock.elapsedRealtime();
+            remaining = targets.size();
+        }
+        if (targets.isEmpty()) {
+            finish();
+            return;
+        }
+
+        IRScheduler.Task task = IRScheduler.sharedInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        }, deadlineMs);
+        synchronized (this) {
+            deadlineTask = task;
+        }
+
+        for (final IRPeripheral peripheral : targets) {
+            final InetAddress host = peripheral.getHost();
+            final int port = peripheral.getPort();
+            IRScheduler.sharedInstance().executeBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    int timeoutMs;
+                    synchronized (IRReachabilitySweep.this) {
+                        if (isFinished) {
+                            return;
+                        }
+                        // Probes queued behind others get what is left until the deadline
+                        timeoutMs = (int) Math.max(1, startTime + deadlineMs - SystemClock.elapsedRealtime());
+                    }
+                    long latencyMs = peripheral.measureConnect(host, port, timeoutMs);
+                    boolean isLast;
+                    synchronized (IRReachabilitySweep.this) {
+                        if (latencyMs >= 0) {
+                            latencies.put(peripheral, latencyMs);
+                        }
+                        isLast = --remaining == 0;
+                    }
+                    if (isLast) {
+                        finish();
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish() {
+        final Result result = new Result();
+        synchronized (this) {
+            if (isFinished) {
+                return;
+            }
+            isFinished = true;
+            if (deadlineTask != null) {
+                deadlineTask.cancel();
+            }
+            for (IRPeripheral peripheral : peripherals) {
+                Long latencyMs = latencies.get(peripheral);
+                if (latencyMs != null) {
+                    result.reachable.put(peripheral, latencyMs);
+                } else {
+                    result.unreachable.add(peripheral);
+                }
+            }
+            result.durationMs = SystemClock.elapsedRealtime() - startTime;
+        }
+        Log.d(TAG, "finished: " + result);
+        IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(result);
+            }
+        }, 0);
+    }
+}
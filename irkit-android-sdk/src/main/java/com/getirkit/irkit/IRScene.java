@@ -0,0 +1,389 @@
+package com.getirkit.irkit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRAPIError;
+import com.getirkit.irkit.net.IRAPIResult;
+import com.getirkit.irkit.net.IRHTTPClient;
+import com.getirkit.irkit.net.IRSignalPayload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An ordered sequence of IRSignals sent as one action, e.g. "TV on, amp on, switch input, lights down".
+ *
+ * Each step starts delayMs after the previous step is scheduled. Steps to different devices
+ * run in parallel. Steps to the same device run one after another, at least getMinGapMs() apart
+ * so that the appliance has time to take the previous signal. Request bodies are encoded once
+ * by prepare(), through the payload cache of IRKit, and reused on every run.
+ */
+public class IRScene {
+    public static final String TAG = IRScene.class.getSimpleName();
+
+    /**
+     * Default minimum interval between the end of a step and the next step to the same device
+     */
+    public static final long DEFAULT_MIN_GAP_MS = 200;
+
+    /**
+     * Lane key used for signals that have no deviceId.
+     */
+    private static final String NO_DEVICE_ID = "";
+
+    public interface Listener {
+        /**
+         * Called on the main thread when all steps have finished or the run has been cancelled.
+         *
+         * @param result
+         */
+        public void onFinished(Result result);
+    }
+
+    private final ArrayList<Step> steps = new ArrayList<>();
+    private long minGapMs = DEFAULT_MIN_GAP_MS;
+
+    /**
+     * Add a step which starts delayMs after the previous step.
+     *
+     * @param signal
+     * @param delayMs 0 for the first step to start immediately
+     * @return this
+     */
+    public synchronized IRScene addStep(IRSignal signal, long delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("delayMs must not be negative");
+        }
+        steps.add(new Step(signal, delayMs));
+        return this;
+    }
+
+    public synchronized int getStepCount() {
+        return steps.size();
+    }
+
+    public synchronized void setMinGapMs(long minGapMs) {
+        this.minGapMs = minGapMs;
+    }
+
+    public synchronized long getMinGapMs() {
+        return minGapMs;
+    }
+
+    /**
+     * Encode the request bodies of all steps. run() calls this too, but then only picks up
+     * bodies from the cache, and re-encodes signals which have been edited since.
+     */
+    public synchronized void prepare() {
+        IRSignalPayloadCache payloadCache = IRKit.sharedInstance().getSignalPayloadCache();
+        String clientkey = IRHTTPClient.sharedInstance().getClientKey();
+        for (Step step : steps) {
+            step.payload = payloadCache.get(step.signal, clientkey);
+        }
+    }
+
+    /**
+     * Start sending the steps through sendScheduler. Returns immediately.
+     *
+     * @param sendScheduler
+     * @param listener Can be null.
+     * @return Handle to cancel the run
+     */
+    public Execution run(IRSendScheduler sendScheduler, Listener listener) {
+        ArrayList<Step> snapshot;
+        long gapMs;
+        synchronized (this) {
+            prepare();
+            snapshot = new ArrayList<>(steps);
+            gapMs = minGapMs;
+        }
+        Execution execution = new Execution(snapshot, gapMs, sendScheduler, listener);
+        execution.start();
+        return execution;
+    }
+
+    private static class Step {
+        public final IRSignal signal;
+        public final long delayMs;
+        public IRSignalPayload payload;
+
+        public Step(IRSignal signal, long delayMs) {
+            this.signal = signal;
+            this.delayMs = delayMs;
+        }
+    }
+
+    /**
+     * A running scene.
+     */
+    public static class Execution {
+        private final ArrayList<Step> steps;
+        private final long minGapMs;
+        private final IRSendScheduler sendScheduler;
+        private final Listener listener;
+        private final StepResult[] stepResults;
+        // Indexes of steps per device, in order
+        private final LinkedHashMap<String, ArrayList<Integer>> chains = new LinkedHashMap<>();
+        private final HashMap<String, IRScheduler.Task> pendingTasks = new HashMap<>();
+        private long startTime;
+        private int remaining;
+        private boolean isFinished = false;
+        private boolean isCancelled = false;
+
+        private Execution(ArrayList<Step> steps, long minGapMs, IRSendScheduler sendScheduler, Listener listener) {
+            this.steps = steps;
+            this.minGapMs = minGapMs;
+            this.sendScheduler = sendScheduler;
+            this.listener = listener;
+            this.stepResults = new StepResult[steps.size()];
+            long offsetMs = 0;
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                offsetMs += step.delayMs;
+                StepResult stepResult = new StepResult(step.signal, offsetMs);
+                stepResults[i] = stepResult;
+                String key = step.signal.getDeviceId() != null ? step.signal.getDeviceId() : NO_DEVICE_ID;
+                ArrayList<Integer> chain = chains.get(key);
+                if (chain == null) {
+                    chain = new ArrayList<>();
+                    chains.put(key, chain);
+                }
+                chain.add(i);
+            }
+        }
+
+        private void start() {
+            synchronized (this) {
+                startTime = SystemClock.elapsedRealtime();
+                remaining = steps.size();
+            }
+            if (steps.isEmpty()) {
+                finish();
+                return;
+            }
+            for (String key : chains.keySet()) {
+                scheduleNext(key, 0, 0);
+            }
+        }
+
+        /**
+         * Schedule position-th step of the chain of key, no earlier than notBeforeMs since the start.
+         */
+        private void scheduleNext(final String key, final int position, long notBeforeMs) {
+            final int index = chains.get(key).get(position);
+            long delayMs;
+            synchronized (this) {
+                if (isCancelled) {
+                    return;
+                }
+                long elapsedMs = SystemClock.elapsedRealtime() - startTime;
+                delayMs = Math.max(stepResults[index].scheduledAtMs, notBeforeMs) - elapsedMs;
+            }
+            IRScheduler.Task task = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    send(key, position, index);
+                }
+            }, Math.max(0, delayMs));
+            synchronized (this) {
+                pendingTasks.put(key, task);
+            }
+        }
+
+        private void send(final String key, final int position, final int index) {
+            final Step step = steps.get(index);
+            synchronized (this) {
+                if (isCancelled) {
+                    return;
+                }
+                pendingTasks.remove(key);
+                stepResults[index].startedAtMs = SystemClock.elapsedRealtime() - startTime;
+            }
+            sendScheduler.enqueue(step.signal, step.payload, new IRAPIResult() {
+                @Override
+                public void onSuccess() {
+                    onStepFinished(key, position, index, StepResult.STATUS_SUCCESS, null);
+                }
+
+                @Override
+                public void onError(IRAPIError error) {
+                    onStepFinished(key, position, index, StepResult.STATUS_ERROR, error);
+                }
+
+                @Override
+                public void onTimeout() {
+                    onStepFinished(key, position, index, StepResult.STATUS_TIMEOUT, null);
+                }
+            });
+        }
+
+        private void onStepFinished(String key, int position, int index, int status, IRAPIError error) {
+            boolean isLast;
+            long finishedAtMs;
+            synchronized (this) {
+                StepResult stepResult = stepResults[index];
+                finishedAtMs = SystemClock.elapsedRealtime() - startTime;
+                stepResult.finishedAtMs = finishedAtMs;
+                stepResult.status = status;
+                stepResult.error = error;
+                isLast = --remaining == 0;
+            }
+            if (isLast) {
+                finish();
+                return;
+            }
+            if (position + 1 < chains.get(key).size()) {
+                scheduleNext(key, position + 1, finishedAtMs + minGapMs);
+            }
+        }
+
+        /**
+         * Stop scheduling steps which haven't started. Steps being sent still finish,
+         * and the listener is called right away with the others marked as cancelled.
+         */
+        public void cancel() {
+            ArrayList<IRScheduler.Task> tasks;
+            synchronized (this) {
+                if (isCancelled || isFinished) {
+                    return;
+                }
+                isCancelled = true;
+                tasks = new ArrayList<>(pendingTasks.values());
+                pendingTasks.clear();
+            }
+            for (IRScheduler.Task task : tasks) {
+                task.cancel();
+            }
+            finish();
+        }
+
+        public synchronized boolean isCancelled() {
+            return isCancelled;
+        }
+
+        private void finish() {
+            final Result result = new Result();
+            synchronized (this) {
+                if (isFinished) {
+                    return;
+                }
+                isFinished = true;
+                result.durationMs = SystemClock.elapsedRealtime() - startTime;
+                result.isCancelled = isCancelled;
+                ArrayList<StepResult> list = new ArrayList<>(stepResults.length);
+                for (StepResult stepResult : stepResults) {
+                    // Copy, since a step being sent may still finish after a cancel
+                    StepResult copy = stepResult.copy();
+                    if (copy.status == StepResult.STATUS_SUCCESS) {
+                        result.successCount++;
+                    } else if (copy.status != StepResult.STATUS_NOT_SENT) {
+                        result.failureCount++;
+                    }
+                    list.add(copy);
+                }
+                result.steps = Collections.unmodifiableList(list);
+            }
+            Log.d(TAG, "finished: " + result);
+            if (listener == null) {
+                return;
+            }
+            IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFinished(result);
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * Outcome and timing of a step. Times are in ms since the scene started.
+     */
+    public static class StepResult {
+        public static final int STATUS_NOT_SENT = 0;
+        public static final int STATUS_SUCCESS = 1;
+        public static final int STATUS_ERROR = 2;
+        public static final int STATUS_TIMEOUT = 3;
+
+        public final IRSignal signal;
+
+        /**
+         * When the step was planned to start, i.e. the sum of delays up to this step
+         */
+        public final long scheduledAtMs;
+
+        /**
+         * When the step was given to IRSendScheduler, or -1 if it wasn't
+         */
+        public long startedAtMs = -1;
+
+        /**
+         * When the result arrived, or -1 if it hasn't
+         */
+        public long finishedAtMs = -1;
+
+        /**
+         * One of STATUS_*
+         */
+        public int status = STATUS_NOT_SENT;
+
+        /**
+         * Set when status is STATUS_ERROR
+         */
+        public IRAPIError error;
+
+        public StepResult(IRSignal signal, long scheduledAtMs) {
+            this.signal = signal;
+            this.scheduledAtMs = scheduledAtMs;
+        }
+
+        StepResult copy() {
+            StepResult copy = new StepResult(signal, scheduledAtMs);
+            copy.startedAtMs = startedAtMs;
+            copy.finishedAtMs = finishedAtMs;
+            copy.status = status;
+            copy.error = error;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "StepResult[name=" + signal.getName() + ";status=" + status + ";scheduledAt=" + scheduledAtMs +
+                    ";startedAt=" + startedAtMs + ";finishedAt=" + finishedAtMs + "]";
+        }
+    }
+
+    /**
+     * Outcome of a run of a scene.
+     */
+    public static class Result {
+        /**
+         * Results in the order of steps
+         */
+        public List<StepResult> steps;
+
+        public int successCount;
+
+        /**
+         * Number of steps which failed or timed out
+         */
+        public int failureCount;
+
+        public long durationMs;
+        public boolean isCancelled;
+
+        public boolean isSuccess() {
+            return successCount == steps.size();
+        }
+
+        @Override
+        public String toString() {
+            return "Result[steps=" + steps.size() + ";success=" + successCount + ";failure=" + failureCount +
+                    ";duration=" + durationMs + ";cancelled=" + isCancelled + "]";
+        }
+    }
+}
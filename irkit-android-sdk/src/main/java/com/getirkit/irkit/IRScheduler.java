@@ -0,0 +1,254 @@
+package com.getirkit.irkit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs delayed, periodic and timeout tasks of the SDK.
+ *
+ * Background tasks share a small pool of daemon threads instead of creating a
+ * java.util.Timer (which is a thread) per task. Tasks which touch UI state or
+ * callbacks run on the main thread. Every task can be cancelled on its own.
+ *
+ * Tasks which block on network I/O, such as connection probes, run on a separate pool
+ * of up to MAX_BLOCKING_THREADS daemon threads, so that they don't delay timers.
+ * Its threads exit when they have been idle for BLOCKING_KEEP_ALIVE_MS.
+ */
+public class IRScheduler {
+    public static final String TAG = IRScheduler.class.getSimpleName();
+
+    /**
+     * Maximum number of background threads
+     */
+    public static final int MAX_THREADS = 2;
+
+    /**
+     * Maximum number of threads running blocking tasks
+     */
+    public static final int MAX_BLOCKING_THREADS = 8;
+
+    private static final long BLOCKING_KEEP_ALIVE_MS = 10000;
+
+    // Cancelled background tasks stay in the queue until their time comes,
+    // so the queue is purged after this many cancellations.
+    private static final int PURGE_THRESHOLD = 64;
+
+    private static final IRScheduler ourInstance = new IRScheduler();
+
+    /**
+     * Returns the scheduler shared by the whole SDK.
+     * SDK全体で共有するスケジューラを返します。
+     *
+     * @return
+     */
+    public static IRScheduler sharedInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public interface Task {
+        /**
+         * Cancel the task. If it is running, the current run finishes but it won't run again.
+         */
+        public void cancel();
+
+        public boolean isCancelled();
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor blockingExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicInteger scheduledCount = new AtomicInteger();
+    private final AtomicInteger runCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+    private final AtomicInteger cancelledSincePurge = new AtomicInteger();
+
+    public IRScheduler() {
+        executor = new ScheduledThreadPoolExecutor(MAX_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IRKit-Scheduler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Up to MAX_BLOCKING_THREADS tasks run at once, and the rest wait in the queue
+        blockingExecutor = new ThreadPoolExecutor(MAX_BLOCKING_THREADS, MAX_BLOCKING_THREADS,
+                BLOCKING_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IRKit-Blocking-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        blockingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run task on a background thread after delayMs.
+     *
+     * @param task
+     * @param delayMs
+     * @return
+     */
+    public Task schedule(Runnable task, long delayMs) {
+        BackgroundTask backgroundTask = new BackgroundTask(task);
+        backgroundTask.future = executor.schedule(backgroundTask, delayMs, TimeUnit.MILLISECONDS);
+        scheduledCount.incrementAndGet();
+        return backgroundTask;
+    }
+
+    /**
+     * Run task on a background thread every periodMs after initialDelayMs, until it is cancelled.
+     *
+     * @param task
+     * @param initialDelayMs
+     * @param periodMs
+     * @return
+     */
+    public Task scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        BackgroundTask backgroundTask = new BackgroundTask(task);
+        backgroundTask.future = executor.scheduleAtFixedRate(backgroundTask, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+        scheduledCount.incrementAndGet();
+        return backgroundTask;
+    }
+
+    /**
+     * Run task which blocks on network I/O (e.g. a connection probe) on the blocking pool.
+     * If MAX_BLOCKING_THREADS tasks are running, it waits for one of them to finish.
+     *
+     * @param task
+     * @return
+     */
+    public Task executeBlocking(Runnable task) {
+        BackgroundTask backgroundTask = new BackgroundTask(task);
+        blockingExecutor.execute(backgroundTask);
+        scheduledCount.incrementAndGet();
+        return backgroundTask;
+    }
+
+    /**
+     * Run task on the main thread after delayMs.
+     *
+     * @param task
+     * @param delayMs
+     * @return
+     */
+    public Task scheduleOnMainThread(Runnable task, long delayMs) {
+        MainThreadTask mainThreadTask = new MainThreadTask(task);
+        mainHandler.postDelayed(mainThreadTask, delayMs);
+        scheduledCount.incrementAndGet();
+        return mainThreadTask;
+    }
+
+    /**
+     * Returns the number of threads which have been created.
+     *
+     * @return
+     */
+    public int getThreadCount() {
+        return threadCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IRScheduler[threads=" + threadCount.get() + ";scheduled=" + scheduledCount.get() +
+                ";runs=" + runCount.get() + ";cancelled=" + cancelledCount.get() +
+                ";queued=" + executor.getQueue().size() + ";blockingQueued=" + blockingExecutor.getQueue().size() + "]";
+    }
+
+    private void onCancelled(boolean isBackground) {
+        cancelledCount.incrementAndGet();
+        if (isBackground && cancelledSincePurge.incrementAndGet() >= PURGE_THRESHOLD) {
+            cancelledSincePurge.set(0);
+            executor.purge();
+        }
+    }
+
+    private class BackgroundTask implements Task, Runnable {
+        private final Runnable task;
+        private volatile boolean isCancelled = false;
+        private ScheduledFuture<?> future;
+
+        public BackgroundTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+            runCount.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Otherwise a periodic task would silently stop
+                Log.e(TAG, "task failed", e);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+            onCancelled(true);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    private class MainThreadTask implements Task, Runnable {
+        private final Runnable task;
+        private volatile boolean isCancelled = false;
+
+        public MainThreadTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+            runCount.incrementAndGet();
+            task.run();
+        }
+
+        @Override
+        public void cancel() {
+            if (isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            mainHandler.removeCallbacks(this);
+            onCancelled(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+}
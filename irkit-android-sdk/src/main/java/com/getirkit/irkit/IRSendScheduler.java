@@ -0,0 +1,322 @@
+package com.getirkit.irkit;
+
+import com.getirkit.irkit.net.IRAPIError;
+import com.getirkit.irkit.net.IRAPIResult;
+import com.getirkit.irkit.net.IRSignalPayload;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Schedules IRSignal sends with one serialized lane per deviceId.
+ *
+ * IRKit panics when it receives parallel requests from local network, so signals
+ * for the same device are sent one by one. Lanes for different devices run in parallel,
+ * so a slow or timed-out IRKit does not stall the others.
+ */
+public class IRSendScheduler {
+    public static final String TAG = IRSendScheduler.class.getSimpleName();
+
+    /**
+     * Lane key used for signals that have no deviceId.
+     */
+    private static final String NO_DEVICE_ID = "";
+
+    /**
+     * Performs the actual send. Implementations must call the given result exactly once.
+     */
+    public interface SendHandler {
+        /**
+         * @param signal
+         * @param payload Pre-encoded bodies of signal, or null
+         * @param result
+         */
+        public void onSend(IRSignal signal, IRSignalPayload payload, IRAPIResult result);
+    }
+
+    private final SendHandler sendHandler;
+
+    // Only lanes with signals waiting or being sent. A lane is removed when it becomes idle.
+    private final HashMap<String, Lane> lanes = new HashMap<>();
+
+    public IRSendScheduler(SendHandler sendHandler) {
+        this.sendHandler = sendHandler;
+    }
+
+    /**
+     * Add a signal to the lane of its device. If the lane is idle, the signal is sent immediately.
+     *
+     * @param signal
+     * @param callback Can be null.
+     */
+    public void enqueue(IRSignal signal, IRAPIResult callback) {
+        enqueue(signal, null, callback);
+    }
+
+    /**
+     * Same as enqueue(IRSignal, IRAPIResult) but sends pre-encoded bodies.
+     *
+     * @param signal
+     * @param payload Can be null.
+     * @param callback Can be null.
+     */
+    public void enqueue(IRSignal signal, IRSignalPayload payload, IRAPIResult callback) {
+        Lane lane;
+        Item item = new Item(signal, payload, callback);
+        boolean sendNow;
+        synchronized (lanes) {
+            String key = laneKey(signal.getDeviceId());
+            lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+            }
+            lane.queue.add(item);
+            lane.enqueuedCount++;
+            if (lane.queue.size() > lane.maxQueueDepth) {
+                lane.maxQueueDepth = lane.queue.size();
+            }
+            sendNow = lane.queue.size() == 1;
+        }
+        if (sendNow) {
+            dispatch(lane, item);
+        }
+    }
+
+    private void dispatch(final Lane lane, final Item item) {
+        item.startTime = System.currentTimeMillis();
+        final IRState state = new IRState();
+        sendHandler.onSend(item.signal, item.payload, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                if (!finish(state)) {
+                    return;
+                }
+                complete(lane, item, true);
+                if (item.callback != null) {
+                    item.callback.onSuccess();
+                }
+                consumeNext(lane);
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                if (!finish(state)) {
+                    return;
+                }
+                complete(lane, item, false);
+                if (item.callback != null) {
+                    item.callback.onError(error);
+                }
+                consumeNext(lane);
+            }
+
+            @Override
+            public void onTimeout() {
+                if (!finish(state)) {
+                    return;
+                }
+                complete(lane, item, false);
+                if (item.callback != null) {
+                    item.callback.onTimeout();
+                }
+                consumeNext(lane);
+            }
+        });
+    }
+
+    /**
+     * Guards against a SendHandler reporting more than one result for a send.
+     *
+     * @param state
+     * @return true if this is the first result
+     */
+    private static boolean finish(IRState state) {
+        synchronized (state) {
+            if (state.isFinished()) {
+                return false;
+            }
+            state.finish();
+            return true;
+        }
+    }
+
+    private void complete(Lane lane, Item item, boolean isSuccess) {
+        long now = System.currentTimeMillis();
+        synchronized (lanes) {
+            lane.recordLatency(now - item.startTime, now - item.enqueueTime, isSuccess);
+        }
+    }
+
+    private void consumeNext(Lane lane) {
+        Item next;
+        synchronized (lanes) {
+            lane.queue.removeFirst();
+            next = lane.queue.peek();
+            if (next == null) {
+                // Idle and empty. enqueue() holds the same lock, so it creates a new lane from here on.
+                lanes.remove(lane.deviceId);
+            }
+        }
+        if (next != null) {
+            // Consume the next signal in this lane
+            dispatch(lane, next);
+        }
+    }
+
+    private static String laneKey(String deviceId) {
+        return deviceId != null ? deviceId : NO_DEVICE_ID;
+    }
+
+    /**
+     * Returns a snapshot of counters for the lane of deviceId, or null if the lane is idle.
+     * Counters cover the sends since the lane last became busy.
+     *
+     * @param deviceId
+     * @return
+     */
+    public LaneStats getLaneStats(String deviceId) {
+        synchronized (lanes) {
+            Lane lane = lanes.get(laneKey(deviceId));
+            return lane != null ? lane.snapshot() : null;
+        }
+    }
+
+    /**
+     * Returns snapshots of counters for all busy lanes.
+     *
+     * @return
+     */
+    public List<LaneStats> getAllLaneStats() {
+        synchronized (lanes) {
+            List<LaneStats> list = new ArrayList<>(lanes.size());
+            for (Lane lane : lanes.values()) {
+                list.add(lane.snapshot());
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Returns the number of signals waiting or being sent in the lane of deviceId.
+     *
+     * @param deviceId
+     * @return
+     */
+    public int getQueueDepth(String deviceId) {
+        synchronized (lanes) {
+            Lane lane = lanes.get(laneKey(deviceId));
+            return lane != null ? lane.queue.size() : 0;
+        }
+    }
+
+    private static class Item {
+        public IRSignal signal;
+        public IRSignalPayload payload;
+        public IRAPIResult callback;
+        public long enqueueTime;
+        public long startTime;
+
+        public Item(IRSignal signal, IRSignalPayload payload, IRAPIResult callback) {
+            this.signal = signal;
+            this.payload = payload;
+            this.callback = callback;
+            this.enqueueTime = System.currentTimeMillis();
+        }
+    }
+
+    private static class Lane {
+        public final String deviceId;
+        public final ArrayDeque<Item> queue = new ArrayDeque<>();
+        public long enqueuedCount;
+        public long successCount;
+        public long failureCount;
+        public int maxQueueDepth;
+        public long lastLatencyMs;
+        public long totalLatencyMs;
+        public long maxLatencyMs;
+        public long totalWaitMs;
+
+        public Lane(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        public void recordLatency(long latencyMs, long totalMs, boolean isSuccess) {
+            if (isSuccess) {
+                successCount++;
+            } else {
+                failureCount++;
+            }
+            lastLatencyMs = latencyMs;
+            totalLatencyMs += latencyMs;
+            if (latencyMs > maxLatencyMs) {
+                maxLatencyMs = latencyMs;
+            }
+            totalWaitMs += totalMs - latencyMs;
+        }
+
+        public LaneStats snapshot() {
+            LaneStats stats = new LaneStats();
+            stats.deviceId = deviceId.equals(NO_DEVICE_ID) ? null : deviceId;
+            stats.queueDepth = queue.size();
+            stats.maxQueueDepth = maxQueueDepth;
+            stats.enqueuedCount = enqueuedCount;
+            stats.successCount = successCount;
+            stats.failureCount = failureCount;
+            stats.lastLatencyMs = lastLatencyMs;
+            stats.maxLatencyMs = maxLatencyMs;
+            long completed = successCount + failureCount;
+            if (completed > 0) {
+                stats.averageLatencyMs = totalLatencyMs / completed;
+                stats.averageWaitMs = totalWaitMs / completed;
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Counters of a lane at some point in time.
+     */
+    public static class LaneStats {
+        /**
+         * deviceId of the lane (null for signals without deviceId)
+         */
+        public String deviceId;
+
+        /**
+         * Number of signals waiting or being sent
+         */
+        public int queueDepth;
+
+        /**
+         * Highest queueDepth observed
+         */
+        public int maxQueueDepth;
+
+        public long enqueuedCount;
+        public long successCount;
+        public long failureCount;
+
+        /**
+         * Time from starting a send until its result, in milliseconds
+         */
+        public long lastLatencyMs;
+        public long averageLatencyMs;
+        public long maxLatencyMs;
+
+        /**
+         * Average time a signal waited in the lane before being sent, in milliseconds
+         */
+        public long averageWaitMs;
+
+        @Override
+        public String toString() {
+            return "LaneStats[deviceId=" + deviceId + ";queueDepth=" + queueDepth + ";maxQueueDepth=" + maxQueueDepth +
+                    ";enqueued=" + enqueuedCount + ";success=" + successCount + ";failure=" + failureCount +
+                    ";lastLatencyMs=" + lastLatencyMs + ";averageLatencyMs=" + averageLatencyMs +
+                    ";maxLatencyMs=" + maxLatencyMs + ";averageWaitMs=" + averageWaitMs + "]";
+        }
+    }
+}
@@ -6,13 +6,14 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.getirkit.irkit.net.IRSignalJsonEncoder;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An IR signal.
@@ -25,9 +26,18 @@ public class IRSignal implements Serializable, Parcelable {
     // Never change this or you'll get InvalidClassException!
     private static final long serialVersionUID = 1L;
 
+    private static volatile int keyGeneration;
+
+    private static final AtomicInteger dataVersionCounter = new AtomicInteger();
+
+    private static volatile int dataGeneration;
+
     // signal data (array of on/off time periods in 2MHz clock)
     private int[] data;
 
+    // encoded signal data in a memory-mapped file (used instead of data in lazy loading mode)
+    private transient IRPulseData pulseData;
+
     // only "raw" is allowed
     private String format = "raw";
 
@@ -55,15 +65,69 @@ public class IRSignal implements Serializable, Parcelable {
     // id which uniquely identifies this signal on this device
     private String id;
 
+    // changes when anything in the request body changes (0 until getDataVersion() assigns one)
+    private transient volatile int dataVersion;
+
+    // decoded form of data and the data version it was decoded from (0 if not decoded yet)
+    private transient IRDecodedSignal decodedSignal;
+    private transient int decodedVersion;
+
     public IRSignal() {
     }
 
+    /**
+     * Returns signal data. If the signal was loaded lazily, the data is decoded
+     * from the signals file into a new array on each call.
+     * 信号データを返します。遅延読み込みの場合は呼び出し毎にファイルからデコードされます。
+     *
+     * @return
+     */
     public int[] getData() {
+        if (data == null && pulseData != null) {
+            return pulseData.decode();
+        }
         return data;
     }
 
     public void setData(int[] data) {
         this.data = data;
+        this.pulseData = null;
+        onDataChanged();
+    }
+
+    IRPulseData getPulseData() {
+        return data == null ? pulseData : null;
+    }
+
+    void setPulseData(IRPulseData pulseData) {
+        this.data = null;
+        this.pulseData = pulseData;
+        onDataChanged();
+    }
+
+    /**
+     * Share data (either decoded or lazily loaded) of signal without decoding it.
+     *
+     * @param signal
+     */
+    void copyDataFrom(IRSignal signal) {
+        this.data = signal.data;
+        this.pulseData = signal.pulseData;
+        onDataChanged();
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        if (data == null && pulseData != null) {
+            // Serialize decoded data without keeping it on heap
+            data = pulseData.decode();
+            try {
+                out.defaultWriteObject();
+            } finally {
+                data = null;
+            }
+        } else {
+            out.defaultWriteObject();
+        }
     }
 
     public String getFormat() {
@@ -72,6 +136,7 @@ public class IRSignal implements Serializable, Parcelable {
 
     public void setFormat(String format) {
         this.format = format;
+        onDataChanged();
     }
 
     public float getFrequency() {
@@ -80,6 +145,7 @@ public class IRSignal implements Serializable, Parcelable {
 
     public void setFrequency(float frequency) {
         this.frequency = frequency;
+        onDataChanged();
     }
 
     public String getName() {
@@ -129,6 +195,9 @@ public class IRSignal implements Serializable, Parcelable {
 
     public void setDeviceId(String deviceId) {
         this.deviceId = deviceId;
+        keyGeneration++;
+        // deviceId is a field of the Internet API body
+        onDataChanged();
     }
 
     public int getViewPosition() {
@@ -145,6 +214,68 @@ public class IRSignal implements Serializable, Parcelable {
 
     public void setId(String id) {
         this.id = id;
+        keyGeneration++;
+    }
+
+    /**
+     * Returns a counter which changes whenever id or deviceId of any IRSignal changes.
+     * IRSignals uses it to find out that its indexes are stale.
+     *
+     * @return
+     */
+    static int getKeyGeneration() {
+        return keyGeneration;
+    }
+
+    private void onDataChanged() {
+        dataVersion = 0;
+        dataGeneration++;
+    }
+
+    /**
+     * Returns a counter which changes whenever data, format, frequency or deviceId of any IRSignal changes.
+     * IRSignalDuplicateIndex and the code index of IRSignals use it to find out that they have to look for changed signals.
+     *
+     * @return
+     */
+    static int getDataGeneration() {
+        return dataGeneration;
+    }
+
+    /**
+     * Returns a number which changes whenever data, format, frequency or deviceId of this signal changes.
+     * Numbers are unique across IRSignal instances, so a copy of a signal never shares a version with it.
+     * IRSignalPayloadCache uses it to find out that an encoded body is stale.
+     *
+     * @return
+     */
+    int getDataVersion() {
+        int version = dataVersion;
+        if (version == 0) {
+            synchronized (this) {
+                version = dataVersion;
+                if (version == 0) {
+                    version = dataVersionCounter.incrementAndGet();
+                    dataVersion = version;
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Returns data decoded as a known protocol such as NEC. The result is kept until data changes.
+     * 信号データを既知のプロトコル(NEC等)としてデコードした結果を返します。
+     *
+     * @return null if data isn't of a known protocol
+     */
+    public synchronized IRDecodedSignal getDecodedSignal() {
+        int version = getDataVersion();
+        if (decodedVersion != version) {
+            decodedSignal = "raw".equals(format) ? IRProtocolDecoder.sharedInstance().decode(getData()) : null;
+            decodedVersion = version;
+        }
+        return decodedSignal;
     }
 
     public String getSuggestedImageFilename() {
@@ -182,22 +313,7 @@ public class IRSignal implements Serializable, Parcelable {
      * @return
      */
     public String toJson() {
-        JSONObject jsonObj = new JSONObject();
-        try {
-            jsonObj.put("format", format);
-            jsonObj.put("freq", frequency);
-            if (data != null) {
-                JSONArray dataArray = new JSONArray();
-                for (int value : data) {
-                    dataArray.put(value);
-                }
-                jsonObj.put("data", dataArray);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return null;
-        }
-        return jsonObj.toString();
+        return IRSignalJsonEncoder.toJson(format, frequency, getData());
     }
 
     public void export(HashMap<String, String> map) {
@@ -243,6 +359,7 @@ public class IRSignal implements Serializable, Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        int[] data = getData();
         if (data == null) {
             out.writeInt(-1);
         } else {
@@ -0,0 +1,309 @@
+package com.getirkit.irkit;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Binary encoding of IRSignal used by IRSignalsFile.
+ *
+ * Integers are unsigned LEB128 varints, and signed values are zigzag encoded.
+ * Strings are written as varint (byte length + 1) followed by UTF-8 bytes, where 0 means null.
+ * Pulse data is written as varint (length + 1) followed by zigzag varint deltas against
+ * the pulse two positions before, because marks and spaces alternate and pulses of the same
+ * kind tend to have similar lengths.
+ *
+ * In PULSES_FRAMED format, the length is followed by varint frameLength, and if it isn't 0,
+ * varint start and varint repeatedLength of a frame repeated exactly (see IRPulseCompressor).
+ * Then only the pulses before the repeats, one frame and the pulses after them are written.
+ */
+class IRSignalCodec {
+    public static final String TAG = IRSignalCodec.class.getSimpleName();
+
+    /**
+     * Pulse data format of snapshot version 1-2 and OP_PUT journal records
+     */
+    public static final int PULSES_PLAIN = 1;
+
+    /**
+     * Pulse data format which stores a repeated frame once. Always used for writing.
+     */
+    public static final int PULSES_FRAMED = 2;
+
+    private IRSignalCodec() {
+    }
+
+    /**
+     * Growable byte array to write signals into.
+     */
+    public static class Writer {
+        private byte[] buf;
+        private int pos;
+
+        public Writer(int initialCapacity) {
+            buf = new byte[Math.max(16, initialCapacity)];
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        public int size() {
+            return pos;
+        }
+
+        public void reset() {
+            pos = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (pos + extra > buf.length) {
+                byte[] newBuf = new byte[Math.max(buf.length * 2, pos + extra)];
+                System.arraycopy(buf, 0, newBuf, 0, pos);
+                buf = newBuf;
+            }
+        }
+
+        public void writeByte(int b) {
+            ensureCapacity(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        public void writeInt(int value) {
+            ensureCapacity(4);
+            buf[pos++] = (byte) (value >>> 24);
+            buf[pos++] = (byte) (value >>> 16);
+            buf[pos++] = (byte) (value >>> 8);
+            buf[pos++] = (byte) value;
+        }
+
+        public void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        public void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = toUtf8(value);
+            writeVarint(bytes.length + 1);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Write pulses in PULSES_FRAMED format.
+         *
+         * @param data
+         */
+        public void writePulses(int[] data) {
+            if (data == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(data.length + 1);
+            // Exact repeats only, so that decoding returns the same data
+            IRPulseCompressor.Repeat repeat = IRPulseCompressor.findRepeat(data, 0);
+            if (repeat == null) {
+                writeRepeat(0, 0, 0);
+                writeDeltas(data);
+            } else {
+                writeRepeat(repeat.start, repeat.frameLength, repeat.repeatedLength);
+                writeDeltas(IRPulseCompressor.unique(data, repeat));
+            }
+        }
+
+        void writeRepeat(int start, int frameLength, int repeatedLength) {
+            writeVarint(frameLength);
+            if (frameLength != 0) {
+                writeVarint(start);
+                writeVarint(repeatedLength);
+            }
+        }
+
+        private void writeDeltas(int[] data) {
+            // Worst case is 5 bytes per pulse
+            ensureCapacity(data.length * 5);
+            for (int i = 0; i < data.length; i++) {
+                int previous = i >= 2 ? data[i - 2] : 0;
+                writeSignedVarint(data[i] - previous);
+            }
+        }
+
+        public void writeSignal(IRSignal signal) {
+            writeString(signal.getId());
+            writeString(signal.getName());
+            writeString(signal.getFormat());
+            writeString(signal.getDeviceId());
+            writeString(signal.getImageResourceName());
+            writeString(signal.getImageFilename());
+            writeInt(Float.floatToIntBits(signal.getFrequency()));
+            writeSignedVarint(signal.getViewPosition());
+            IRPulseData pulseData = signal.getPulseData();
+            if (pulseData != null) {
+                // Copy encoded pulses from the mapped file without decoding them
+                pulseData.writeTo(this);
+            } else {
+                writePulses(signal.getData());
+            }
+        }
+    }
+
+    public static int readInt(ByteBuffer in) {
+        return in.getInt();
+    }
+
+    public static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    public static int readSignedVarint(ByteBuffer in) {
+        int value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = readVarint(in) - 1;
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("invalid string length: " + length);
+        }
+        try {
+            String value;
+            if (in.hasArray()) {
+                value = new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8");
+                in.position(in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                value = new String(bytes, "UTF-8");
+            }
+            return value;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static int[] readPulses(ByteBuffer in, int pulseFormat) {
+        IRPulseData pulseData = skipPulses(in, pulseFormat);
+        return pulseData != null ? pulseData.decode() : null;
+    }
+
+    /**
+     * Skip pulses and return a reference to them in in.
+     *
+     * @param in
+     * @param pulseFormat PULSES_PLAIN or PULSES_FRAMED
+     * @return null if the signal has no pulse data
+     */
+    public static IRPulseData skipPulses(ByteBuffer in, int pulseFormat) {
+        int length = readVarint(in) - 1;
+        if (length == -1) {
+            return null;
+        }
+        int start = 0;
+        int frameLength = 0;
+        int repeatedLength = 0;
+        if (pulseFormat == PULSES_FRAMED) {
+            frameLength = readVarint(in);
+            if (frameLength != 0) {
+                start = readVarint(in);
+                repeatedLength = readVarint(in);
+                if (frameLength < 0 || start < 0 || repeatedLength < frameLength ||
+                        start + repeatedLength > length || start + repeatedLength < 0) {
+                    throw new IllegalArgumentException("invalid repeat: start=" + start +
+                            " frameLength=" + frameLength + " repeatedLength=" + repeatedLength);
+                }
+            }
+        }
+        int storedLength = length - (repeatedLength - frameLength);
+        // Each stored pulse takes at least one byte
+        if (length < 0 || storedLength > in.remaining()) {
+            throw new IllegalArgumentException("invalid data length: " + length);
+        }
+        int offset = in.position();
+        for (int i = 0; i < storedLength; i++) {
+            while ((in.get() & 0x80) != 0) {
+                // continuation byte
+            }
+        }
+        return new IRPulseData(in, offset, in.position() - offset, length, start, frameLength, repeatedLength);
+    }
+
+    public static IRSignal readSignal(ByteBuffer in, int pulseFormat) {
+        return readSignal(in, false, null, pulseFormat);
+    }
+
+    /**
+     * @param in
+     * @param isLazy If true, pulse data is not decoded but referenced in in
+     * @param stringPool If not null, format, deviceId and imageResourceName which are
+     *                   shared by many signals are deduplicated through it
+     * @param pulseFormat PULSES_PLAIN or PULSES_FRAMED
+     * @return
+     */
+    public static IRSignal readSignal(ByteBuffer in, boolean isLazy, Map<String, String> stringPool, int pulseFormat) {
+        IRSignal signal = new IRSignal();
+        signal.setId(readString(in));
+        signal.setName(readString(in));
+        signal.setFormat(pool(stringPool, readString(in)));
+        signal.setDeviceId(pool(stringPool, readString(in)));
+        String imageResourceName = pool(stringPool, readString(in));
+        // setImageFilename() clears imageResourceName, so set it first
+        signal.setImageFilename(readString(in));
+        signal.setImageResourceName(imageResourceName);
+        signal.setFrequency(Float.intBitsToFloat(readInt(in)));
+        signal.setViewPosition(readSignedVarint(in));
+        if (isLazy) {
+            signal.setPulseData(skipPulses(in, pulseFormat));
+        } else {
+            signal.setData(readPulses(in, pulseFormat));
+        }
+        return signal;
+    }
+
+    private static String pool(Map<String, String> stringPool, String value) {
+        if (stringPool == null || value == null) {
+            return value;
+        }
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            return value;
+        }
+        return pooled;
+    }
+
+    private static byte[] toUtf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.getirkit.irkit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Index of IRSignals by IRPulseFingerprint, to tell whether a new capture is already in IRSignals.
+ *
+ * A query looks up the band hashes of the capture, and compares pulse data only with signals
+ * which share at least MIN_MATCHING_BANDS bands. update() fingerprints only the signals which
+ * have been added or edited since the previous update.
+ */
+public class IRSignalDuplicateIndex {
+    public static final String TAG = IRSignalDuplicateIndex.class.getSimpleName();
+
+    /**
+     * Number of bands a signal has to share with a capture to be compared. Allowing one band to differ
+     * keeps most buttons of the same remote out, which differ in a few bits of the command.
+     */
+    public static final int MIN_MATCHING_BANDS = IRPulseFingerprint.BAND_COUNT - 1;
+
+    /**
+     * Maximum difference of frequencies in kHz
+     */
+    public static final float MAX_FREQUENCY_DIFFERENCE = 2;
+
+    private final IdentityHashMap<IRSignal, Entry> entries = new IdentityHashMap<>();
+    private final HashMap<Long, ArrayList<Entry>> buckets = new HashMap<>();
+    private int tolerancePercent = IRPulseFingerprint.DEFAULT_TOLERANCE_PERCENT;
+    private int queryId;
+    private int updateId;
+
+    // Stamps of the last update
+    private IRSignals updatedSignals;
+    private int updatedModCount;
+    private int updatedDataGeneration;
+
+    private long queryCount;
+    private long candidateCount;
+    private long duplicateCount;
+
+    /**
+     * Bring the index up to date with signals. Returns immediately if nothing has changed.
+     * Call this on the thread which modifies signals.
+     *
+     * @param signals
+     */
+    public synchronized void update(IRSignals signals) {
+        update(signals, signals, signals.getModCount(), IRSignal.getDataGeneration());
+    }
+
+    /**
+     * Bring the index up to date with a snapshot of signals taken when modCount and dataGeneration were read.
+     * Returns immediately if nothing has changed.
+     */
+    synchronized void update(IRSignals signals, List<IRSignal> snapshot, int modCount, int dataGeneration) {
+        if (signals == updatedSignals && modCount == updatedModCount && dataGeneration == updatedDataGeneration) {
+            return;
+        }
+        int id = ++updateId;
+        for (IRSignal signal : snapshot) {
+            Entry entry = entries.get(signal);
+            // Read the version before the data, so that an edit in between makes the entry stale
+            int version = signal.getDataVersion();
+            if (entry == null || entry.version != version) {
+                if (entry != null) {
+                    removeEntry(entry);
+                }
+                entry = createEntry(signal, version);
+                if (entry == null) {
+                    continue;
+                }
+                addEntry(entry);
+            }
+            entry.updateId = id;
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.updateId != id) {
+                // Removed from signals
+                it.remove();
+                removeFromBuckets(entry);
+            }
+        }
+        updatedSignals = signals;
+        updatedModCount = modCount;
+        updatedDataGeneration = dataGeneration;
+    }
+
+    private Entry createEntry(IRSignal signal, int version) {
+        int[] data = signal.getData();
+        if (data == null) {
+            return null;
+        }
+        IRPulseFingerprint.Range range = IRPulseFingerprint.findCanonicalRange(data);
+        int[] canonical = IRPulseFingerprint.canonicalize(data, range);
+        return new Entry(signal, version, range, IRPulseFingerprint.compute(canonical));
+    }
+
+    private void addEntry(Entry entry) {
+        entries.put(entry.signal, entry);
+        for (long hash : entry.bands) {
+            ArrayList<Entry> bucket = buckets.get(hash);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.put(hash, bucket);
+            }
+            bucket.add(entry);
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.signal);
+        removeFromBuckets(entry);
+    }
+
+    private void removeFromBuckets(Entry entry) {
+        for (long hash : entry.bands) {
+            ArrayList<Entry> bucket = buckets.get(hash);
+            if (bucket == null) {
+                continue;
+            }
+            bucket.remove(entry);
+            if (bucket.isEmpty()) {
+                buckets.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Returns a signal in the index which has the same pulse data as capture within the tolerance,
+     * preferring one of the same deviceId.
+     *
+     * @param capture
+     * @return null if there is none
+     */
+    public synchronized IRSignal findDuplicate(IRSignal capture) {
+        List<IRSignal> duplicates = findDuplicates(capture);
+        if (duplicates.isEmpty()) {
+            return null;
+        }
+        String deviceId = capture.getDeviceId();
+        if (deviceId != null) {
+            for (IRSignal signal : duplicates) {
+                if (deviceId.equals(signal.getDeviceId())) {
+                    return signal;
+                }
+            }
+        }
+        return duplicates.get(0);
+    }
+
+    /**
+     * Returns all signals in the index which have the same pulse data as capture within the tolerance.
+     * capture itself is excluded.
+     *
+     * @param capture
+     * @return
+     */
+    public synchronized List<IRSignal> findDuplicates(IRSignal capture) {
+        ArrayList<IRSignal> duplicates = new ArrayList<>();
+        queryCount++;
+        int[] data = capture.getData();
+        if (data == null) {
+            return duplicates;
+        }
+        int[] canonical = IRPulseFingerprint.canonicalize(data);
+        long[] bands = IRPulseFingerprint.compute(canonical);
+        int id = ++queryId;
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (long hash : bands) {
+            ArrayList<Entry> bucket = buckets.get(hash);
+            if (bucket == null) {
+                continue;
+            }
+            for (Entry entry : bucket) {
+                // Count matching bands without allocating per query
+                if (entry.queryId != id) {
+                    entry.queryId = id;
+                    entry.matchingBands = 0;
+                }
+                if (++entry.matchingBands == MIN_MATCHING_BANDS) {
+                    candidates.add(entry);
+                }
+            }
+        }
+        for (Entry entry : candidates) {
+            IRSignal signal = entry.signal;
+            if (signal == capture || entry.range.length != canonical.length ||
+                    Math.abs(signal.getFrequency() - capture.getFrequency()) > MAX_FREQUENCY_DIFFERENCE) {
+                continue;
+            }
+            candidateCount++;
+            int[] signalData = signal.getData();
+            // The range is valid as long as the version is
+            if (signalData != null && signal.getDataVersion() == entry.version &&
+                    IRPulseFingerprint.matches(canonical, signalData, entry.range, tolerancePercent)) {
+                duplicates.add(signal);
+            }
+        }
+        duplicateCount += duplicates.size();
+        return duplicates;
+    }
+
+    /**
+     * Set the tolerance used to compare pulse data of candidates.
+     *
+     * @param tolerancePercent Default is IRPulseFingerprint.DEFAULT_TOLERANCE_PERCENT
+     */
+    public synchronized void setTolerancePercent(int tolerancePercent) {
+        this.tolerancePercent = tolerancePercent;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        buckets.clear();
+        updatedSignals = null;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.entryCount = entries.size();
+        stats.bucketCount = buckets.size();
+        stats.queryCount = queryCount;
+        stats.candidateCount = candidateCount;
+        stats.duplicateCount = duplicateCount;
+        return stats;
+    }
+
+    private static class Entry {
+        public final IRSignal signal;
+        public final int version;
+
+        /**
+         * Where canonical data is in the pulse data of signal
+         */
+        public final IRPulseFingerprint.Range range;
+        public final long[] bands;
+
+        // Used by update() and findDuplicates()
+        public int updateId;
+        public int queryId;
+        public int matchingBands;
+
+        public Entry(IRSignal signal, int version, IRPulseFingerprint.Range range, long[] bands) {
+            this.signal = signal;
+            this.version = version;
+            this.range = range;
+            this.bands = bands;
+        }
+    }
+
+    /**
+     * Counters of IRSignalDuplicateIndex at some point in time.
+     */
+    public static class Stats {
+        public int entryCount;
+        public int bucketCount;
+        public long queryCount;
+
+        /**
+         * Number of signals whose pulse data has been compared
+         */
+        public long candidateCount;
+        public long duplicateCount;
+
+        @Override
+        public String toString() {
+            return "Stats[entries=" + entryCount + ";buckets=" + bucketCount + ";queries=" + queryCount +
+                    ";candidates=" + candidateCount + ";duplicates=" + duplicateCount + "]";
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.getirkit.irkit;
+
+import com.getirkit.irkit.net.IRSignalPayload;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded LRU cache of encoded request bodies of IRSignals, for both the device API and the Internet API.
+ *
+ * Entries are keyed by signal id and remember the data version of the signal they were
+ * encoded from, so an entry becomes stale as soon as setData(), setFormat(), setFrequency()
+ * or setDeviceId() is called on the signal. Signals without id aren't cached.
+ */
+public class IRSignalPayloadCache {
+    public static final String TAG = IRSignalPayloadCache.class.getSimpleName();
+
+    /**
+     * Default limit of bytes held. A raw signal of 300 pulses takes about 3 KB (both bodies).
+     */
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private int maxFrameRepeats = 0;
+    private long bytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public IRSignalPayloadCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public IRSignalPayloadCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns encoded bodies of signal, encoding them on a miss.
+     *
+     * @param signal
+     * @param clientkey Current clientkey. Can be null.
+     * @return
+     */
+    public IRSignalPayload get(IRSignal signal, String clientkey) {
+        String id = signal.getId();
+        int repeats;
+        synchronized (this) {
+            repeats = maxFrameRepeats;
+        }
+        if (id == null) {
+            return IRSignalPayload.encode(signal, clientkey, repeats);
+        }
+        int version = signal.getDataVersion();
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry != null && entry.version == version && entry.payload.getInternetBody(clientkey) != null) {
+                hitCount++;
+                return entry.payload;
+            }
+            missCount++;
+        }
+        // Encode outside the lock
+        IRSignalPayload payload = IRSignalPayload.encode(signal, clientkey, repeats);
+        put(id, version, repeats, payload);
+        return payload;
+    }
+
+    /**
+     * Encode signals which aren't cached yet, e.g. the ones on screen.
+     * Doesn't count as hits or misses. Call this on a background thread.
+     *
+     * @param signals
+     * @param clientkey
+     * @return Number of signals encoded
+     */
+    public int prewarm(List<IRSignal> signals, String clientkey) {
+        int repeats;
+        synchronized (this) {
+            repeats = maxFrameRepeats;
+        }
+        int count = 0;
+        for (IRSignal signal : signals) {
+            String id = signal.getId();
+            if (id == null) {
+                continue;
+            }
+            int version = signal.getDataVersion();
+            synchronized (this) {
+                Entry entry = entries.get(id);
+                if (entry != null && entry.version == version && entry.payload.getInternetBody(clientkey) != null) {
+                    continue;
+                }
+            }
+            put(id, version, repeats, IRSignalPayload.encode(signal, clientkey, repeats));
+            count++;
+        }
+        return count;
+    }
+
+    private synchronized void put(String id, int version, int repeats, IRSignalPayload payload) {
+        long size = payload.length();
+        if (size > maxBytes || repeats != maxFrameRepeats) {
+            // Encoded while the setting was being changed
+            return;
+        }
+        Entry old = entries.put(id, new Entry(version, payload, size));
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            // Least recently used first
+            Entry entry = it.next();
+            it.remove();
+            bytes -= entry.size;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Remove the entry of a signal, e.g. when it is deleted.
+     *
+     * @param id
+     */
+    public synchronized void remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Send a frame repeated in a signal at most maxFrameRepeats times, to send fewer bytes.
+     * Cached bodies are dropped.
+     *
+     * @param maxFrameRepeats 0 to send signals as they are
+     */
+    public synchronized void setMaxFrameRepeats(int maxFrameRepeats) {
+        if (maxFrameRepeats < 0) {
+            throw new IllegalArgumentException("maxFrameRepeats must not be negative");
+        }
+        if (this.maxFrameRepeats != maxFrameRepeats) {
+            this.maxFrameRepeats = maxFrameRepeats;
+            clear();
+        }
+    }
+
+    public synchronized int getMaxFrameRepeats() {
+        return maxFrameRepeats;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.entryCount = entries.size();
+        stats.bytes = bytes;
+        stats.maxBytes = maxBytes;
+        stats.hitCount = hitCount;
+        stats.missCount = missCount;
+        stats.evictionCount = evictionCount;
+        return stats;
+    }
+
+    private static class Entry {
+        public final int version;
+        public final IRSignalPayload payload;
+        public final long size;
+
+        public Entry(int version, IRSignalPayload payload, long size) {
+            this.version = version;
+            this.payload = payload;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Counters of IRSignalPayloadCache at some point in time.
+     */
+    public static class Stats {
+        public int entryCount;
+
+        /**
+         * Size of encoded bodies held
+         */
+        public long bytes;
+        public long maxBytes;
+
+        public long hitCount;
+
+        /**
+         * Number of lookups which had to encode, including stale entries
+         */
+        public long missCount;
+        public long evictionCount;
+
+        public float getHitRate() {
+            long total = hitCount + missCount;
+            return total > 0 ? (float) hitCount / total : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[entries=" + entryCount + ";bytes=" + bytes + ";maxBytes=" + maxBytes +
+                    ";hits=" + hitCount + ";misses=" + missCount + ";evictions=" + evictionCount + "]";
+        }
+    }
+}
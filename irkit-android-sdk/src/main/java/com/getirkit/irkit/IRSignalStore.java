@@ -0,0 +1,686 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Journaled storage of IRSignals.
+ *
+ * The signals are kept in a snapshot file (IRSignalsFile) plus append-only journal files.
+ * save() compares the list with what is already persisted and appends only the difference
+ * as put, update-metadata, delete and reorder records, so renaming one signal costs one small
+ * append instead of rewriting every pulse array. When the journal grows large, it is merged
+ * into a new snapshot on a background thread.
+ *
+ * Each journal record is varint length, body and CRC32 of body. A torn or corrupted record at
+ * the end of a journal (e.g. after a crash while appending) is discarded on load, and the
+ * records before it are kept. Snapshots are replaced atomically by rename.
+ * If an append fails, its partly written bytes are cut off right away, so that later appends
+ * don't end up behind a torn record.
+ *
+ * Journals belong to a generation. A snapshot of generation N contains everything in journals
+ * older than N. Compaction starts a new journal of generation N+1 before writing the snapshot,
+ * so appends can continue while the snapshot is being written.
+ *
+ * If the snapshot can't be read, it is moved aside to CORRUPT_SUFFIX and what the journals hold is
+ * loaded. The store then stays read-only until discardCorruptSnapshot() is called, so that
+ * neither the moved snapshot nor the journals are overwritten by the partially recovered list.
+ *
+ * Pulse data is compared by reference. Replace it with IRSignal.setData() instead of
+ * modifying the array in place.
+ */
+class IRSignalStore {
+    public static final String TAG = IRSignalStore.class.getSimpleName();
+
+    static final String JOURNAL_PREFIX = "irkit_signals.journal.";
+    static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final int OP_PUT = 1;
+    private static final int OP_UPDATE_META = 2;
+    private static final int OP_DELETE = 3;
+    private static final int OP_REORDER = 4;
+    // Same as OP_PUT with pulses in PULSES_FRAMED format
+    private static final int OP_PUT_FRAMED = 5;
+
+    // Compact when the journal has more records than MAX_JOURNAL_RECORDS,
+    // or is larger than both MIN_COMPACTION_BYTES and half of the snapshot
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+    private static final int MAX_JOURNAL_RECORDS = 2000;
+
+    private static final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "IRKit-SignalStore");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File dir;
+    private final File snapshotFile;
+    private final File corruptFile;
+
+    // Guards writing the snapshot and deleting journals. Taken after the monitor of this store.
+    private final Object snapshotLock = new Object();
+    private int writtenGeneration = -1;
+
+    // Copies of the persisted signals in persisted order. They are never modified,
+    // so compaction can encode them on a background thread.
+    private LinkedHashMap<String, IRSignal> persisted = new LinkedHashMap<>();
+    private boolean isLoaded;
+    // Set until a load succeeds, and while a corrupted snapshot is kept aside
+    private boolean isReadOnly;
+    private int generation;
+    private OutputStream journalOut;
+    // Length of the current journal up to the last complete append
+    private long journalLength;
+    // Set when a failed append couldn't be cut off the journal. The next save() rewrites the snapshot.
+    private boolean needsRewrite;
+    private long journalBytes;
+    private int journalRecords;
+    private long snapshotBytes;
+    private boolean isCompacting;
+
+    private final IRSignalCodec.Writer writer = new IRSignalCodec.Writer(4096);
+    private final IRSignalCodec.Writer recordWriter = new IRSignalCodec.Writer(1024);
+
+    private long appendCount;
+    private long appendedBytes;
+    private int compactionCount;
+
+    public IRSignalStore(File dir) {
+        this.dir = dir;
+        this.snapshotFile = new File(dir, IRSignalsFile.FILENAME);
+        this.corruptFile = new File(dir, IRSignalsFile.FILENAME + CORRUPT_SUFFIX);
+    }
+
+    private File journalFile(int generation) {
+        return new File(dir, JOURNAL_PREFIX + generation);
+    }
+
+    /**
+     * Read the snapshot and replay journals into out.
+     *
+     * @param out
+     * @return false if nothing has been stored yet
+     * @throws IOException if a journal is unreadable
+     */
+    public synchronized boolean load(List<IRSignal> out) throws IOException {
+        return load(out, false);
+    }
+
+    /**
+     * Read the snapshot and replay journals into out.
+     *
+     * @param out
+     * If the snapshot is corrupted or unreadable, it is moved aside and only the journals are
+     * replayed. The store is read-only afterwards.
+     *
+     * @param out
+     * @param isLazy If true, pulse data in the snapshot is memory-mapped and decoded on demand
+     * @return false if nothing has been stored yet
+     * @throws IOException if a journal is unreadable. The store is read-only afterwards.
+     */
+    public synchronized boolean load(List<IRSignal> out, boolean isLazy) throws IOException {
+        closeJournal();
+        isLoaded = false;
+        isReadOnly = true;
+        synchronized (snapshotLock) {
+            ArrayList<IRSignal> base = new ArrayList<>();
+            int snapshotGeneration;
+            try {
+                snapshotGeneration = IRSignalsFile.read(snapshotFile, base, isLazy);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read snapshot; moving it to " + corruptFile);
+                e.printStackTrace();
+                moveSnapshotAside();
+                base.clear();
+                snapshotGeneration = -1;
+            }
+            boolean isCorrupted = corruptFile.exists();
+            boolean exists = snapshotGeneration != -1 || isCorrupted;
+            if (!exists) {
+                snapshotGeneration = 0;
+            }
+            writtenGeneration = snapshotGeneration;
+            generation = snapshotGeneration;
+            journalBytes = 0;
+            journalRecords = 0;
+
+            LinkedHashMap<String, IRSignal> state = new LinkedHashMap<>();
+            for (IRSignal signal : base) {
+                state.put(signal.getId(), signal);
+            }
+            boolean hasReplayed = false;
+            for (int journalGeneration : listJournalGenerations()) {
+                File file = journalFile(journalGeneration);
+                if (journalGeneration < snapshotGeneration) {
+                    // Already merged into the snapshot
+                    file.delete();
+                    continue;
+                }
+                // Leave the journals exactly as they are while the snapshot is missing
+                replay(file, state, !isCorrupted);
+                generation = journalGeneration;
+                hasReplayed = true;
+                exists = true;
+            }
+
+            // Without journals, keep the snapshot as it is (including any duplicate ids)
+            Collection<IRSignal> signals = hasReplayed ? state.values() : base;
+            out.addAll(signals);
+            persisted = new LinkedHashMap<>();
+            for (IRSignal signal : signals) {
+                persisted.put(signal.getId(), copyOf(signal));
+            }
+            snapshotBytes = snapshotFile.length();
+            isLoaded = true;
+            isReadOnly = isCorrupted;
+            return exists;
+        }
+    }
+
+    private void moveSnapshotAside() throws IOException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        if (corruptFile.exists()) {
+            // Keep the first corrupted snapshot, which may hold more than this one
+            if (!snapshotFile.delete()) {
+                throw new IOException("Failed to delete " + snapshotFile);
+            }
+        } else if (!snapshotFile.renameTo(corruptFile)) {
+            throw new IOException("Failed to rename " + snapshotFile + " to " + corruptFile);
+        }
+    }
+
+    /**
+     * Returns true if save() and rewrite() refuse to write, because the last load() failed
+     * or a corrupted snapshot has been moved aside.
+     *
+     * @return
+     */
+    public synchronized boolean isReadOnly() {
+        return isReadOnly;
+    }
+
+    /**
+     * Accept signals as the new content after a corrupted snapshot was moved aside:
+     * write them as a new snapshot, and delete the corrupted snapshot and the journals.
+     *
+     * @param signals
+     * @throws IOException
+     */
+    public synchronized void discardCorruptSnapshot(List<IRSignal> signals) throws IOException {
+        if (!isLoaded) {
+            throw new IOException("signals have not been loaded");
+        }
+        isReadOnly = false;
+        rewrite(signals);
+        if (!corruptFile.delete()) {
+            Log.w(TAG, "Failed to delete " + corruptFile);
+        }
+    }
+
+    /**
+     * Persist signals by appending the difference from the persisted state to the journal.
+     * If nothing has changed, no I/O happens.
+     *
+     * @param signals
+     * @throws IOException
+     */
+    public synchronized void save(List<IRSignal> signals) throws IOException {
+        if (!isLoaded && !isReadOnly) {
+            // Find out what is persisted, so that only the difference is written
+            load(new ArrayList<IRSignal>());
+        }
+        checkWritable();
+        if (needsRewrite) {
+            rewrite(signals);
+            return;
+        }
+
+        LinkedHashMap<String, IRSignal> current = new LinkedHashMap<>(signals.size() * 2);
+        for (IRSignal signal : signals) {
+            if (current.put(signal.getId(), signal) != null) {
+                Log.w(TAG, "duplicate id " + signal.getId() + "; rewriting snapshot");
+                rewrite(signals);
+                return;
+            }
+        }
+
+        writer.reset();
+        int records = 0;
+        ArrayList<String> expectedOrder = new ArrayList<>(signals.size());
+        for (String id : persisted.keySet()) {
+            if (current.containsKey(id)) {
+                expectedOrder.add(id);
+            } else {
+                recordWriter.reset();
+                recordWriter.writeByte(OP_DELETE);
+                recordWriter.writeString(id);
+                appendRecord();
+                records++;
+            }
+        }
+
+        LinkedHashMap<String, IRSignal> newPersisted = new LinkedHashMap<>(signals.size() * 2);
+        for (IRSignal signal : signals) {
+            IRSignal old = persisted.get(signal.getId());
+            if (old == null || !hasSameData(old, signal)) {
+                recordWriter.reset();
+                recordWriter.writeByte(OP_PUT_FRAMED);
+                recordWriter.writeSignal(signal);
+                appendRecord();
+                records++;
+                if (old == null) {
+                    // New signals are appended to the end on replay
+                    expectedOrder.add(signal.getId());
+                }
+                old = copyOf(signal);
+            } else if (!hasSameMetadata(old, signal)) {
+                recordWriter.reset();
+                recordWriter.writeByte(OP_UPDATE_META);
+                writeMetadata(recordWriter, signal);
+                appendRecord();
+                records++;
+                old = copyOf(signal);
+            }
+            newPersisted.put(signal.getId(), old);
+        }
+
+        boolean isOrderChanged = false;
+        int i = 0;
+        for (String id : newPersisted.keySet()) {
+            if (!equals(id, expectedOrder.get(i++))) {
+                isOrderChanged = true;
+                break;
+            }
+        }
+        if (isOrderChanged) {
+            recordWriter.reset();
+            recordWriter.writeByte(OP_REORDER);
+            recordWriter.writeVarint(signals.size());
+            for (IRSignal signal : signals) {
+                recordWriter.writeString(signal.getId());
+            }
+            appendRecord();
+            records++;
+        }
+
+        if (records == 0) {
+            return;
+        }
+
+        File file = journalFile(generation);
+        try {
+            if (journalOut == null) {
+                journalLength = file.length();
+                journalOut = openJournal(file);
+            }
+            journalOut.write(writer.getBuffer(), 0, writer.size());
+            journalOut.flush();
+        } catch (IOException e) {
+            discardFailedAppend(file);
+            throw e;
+        }
+        journalLength += writer.size();
+
+        persisted = newPersisted;
+        journalBytes += writer.size();
+        journalRecords += records;
+        appendCount++;
+        appendedBytes += writer.size();
+
+        if (!isCompacting && (journalRecords > MAX_JOURNAL_RECORDS ||
+                journalBytes > Math.max(MIN_COMPACTION_BYTES, snapshotBytes / 2))) {
+            compact();
+        }
+    }
+
+    /**
+     * Open the journal for appending.
+     */
+    OutputStream openJournal(File file) throws IOException {
+        return new FileOutputStream(file, true);
+    }
+
+    /**
+     * Cut a partly written record off the journal, so that records appended later
+     * aren't dropped on replay together with it.
+     */
+    private void discardFailedAppend(File file) {
+        closeJournal();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(journalLength);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to truncate " + file + "; the next save rewrites the snapshot");
+            e.printStackTrace();
+            needsRewrite = true;
+        }
+    }
+
+    /**
+     * Replace everything with signals by writing a new snapshot synchronously.
+     *
+     * @param signals
+     * @throws IOException
+     */
+    public synchronized void rewrite(List<IRSignal> signals) throws IOException {
+        checkWritable();
+        closeJournal();
+        generation++;
+        synchronized (snapshotLock) {
+            IRSignalsFile.write(snapshotFile, signals, generation);
+            writtenGeneration = generation;
+            deleteJournalsBefore(generation);
+        }
+        persisted = new LinkedHashMap<>();
+        for (IRSignal signal : signals) {
+            persisted.put(signal.getId(), copyOf(signal));
+        }
+        journalBytes = 0;
+        journalRecords = 0;
+        snapshotBytes = snapshotFile.length();
+        isLoaded = true;
+        needsRewrite = false;
+    }
+
+    /**
+     * Start merging the journal into a new snapshot on a background thread.
+     */
+    public synchronized void compact() {
+        if (isCompacting) {
+            return;
+        }
+        isCompacting = true;
+        closeJournal();
+        generation++;
+        final int snapshotGeneration = generation;
+        final ArrayList<IRSignal> snapshot = new ArrayList<>(persisted.values());
+        journalBytes = 0;
+        journalRecords = 0;
+
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                long size = -1;
+                try {
+                    synchronized (snapshotLock) {
+                        // Skip if rewrite() has already written a newer snapshot
+                        if (snapshotGeneration > writtenGeneration) {
+                            IRSignalsFile.write(snapshotFile, snapshot, snapshotGeneration);
+                            writtenGeneration = snapshotGeneration;
+                            deleteJournalsBefore(snapshotGeneration);
+                            size = snapshotFile.length();
+                        }
+                    }
+                    Log.d(TAG, "compacted " + snapshot.size() + " signals in " + (System.currentTimeMillis() - startTime) + " ms");
+                } catch (IOException e) {
+                    // Journals are kept, so nothing is lost
+                    Log.e(TAG, "compaction failed");
+                    e.printStackTrace();
+                } finally {
+                    synchronized (IRSignalStore.this) {
+                        if (size != -1) {
+                            snapshotBytes = size;
+                            compactionCount++;
+                        }
+                        isCompacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void checkWritable() throws IOException {
+        if (isReadOnly) {
+            throw new IOException("read-only: " + (corruptFile.exists() ?
+                    "snapshot was corrupted and moved to " + corruptFile : "last load failed"));
+        }
+    }
+
+    public synchronized long getJournalBytes() {
+        return journalBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IRSignalStore[generation=" + generation + ";signals=" + persisted.size() +
+                ";readOnly=" + isReadOnly +
+                ";snapshotBytes=" + snapshotBytes + ";journalBytes=" + journalBytes +
+                ";journalRecords=" + journalRecords + ";appends=" + appendCount +
+                ";appendedBytes=" + appendedBytes + ";compactions=" + compactionCount + "]";
+    }
+
+    private void closeJournal() {
+        if (journalOut != null) {
+            try {
+                journalOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journalOut = null;
+        }
+    }
+
+    /**
+     * Frame the record in recordWriter and add it to writer.
+     */
+    private void appendRecord() {
+        CRC32 crc = new CRC32();
+        crc.update(recordWriter.getBuffer(), 0, recordWriter.size());
+        writer.writeVarint(recordWriter.size());
+        writer.writeBytes(recordWriter.getBuffer(), 0, recordWriter.size());
+        writer.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @param isTruncating If true, a torn record at the end is cut off the file
+     */
+    private void replay(File file, LinkedHashMap<String, IRSignal> state, boolean isTruncating) throws IOException {
+        byte[] bytes = IRSignalsFile.readFully(file);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int validLength = 0;
+        try {
+            while (buf.hasRemaining()) {
+                int length = IRSignalCodec.readVarint(buf);
+                int bodyStart = buf.position();
+                if (length <= 0 || length + 4 > buf.remaining()) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, bodyStart, length);
+                if (buf.getInt(bodyStart + length) != (int) crc.getValue()) {
+                    break;
+                }
+                buf.position(bodyStart);
+                ByteBuffer body = buf.slice();
+                body.limit(length);
+                apply(body, state);
+                buf.position(bodyStart + length + 4);
+                validLength = buf.position();
+                journalRecords++;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Torn record at the end
+        }
+        if (validLength < bytes.length && isTruncating) {
+            Log.w(TAG, "discarding " + (bytes.length - validLength) + " bytes at the end of " + file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        journalBytes += validLength;
+    }
+
+    /**
+     * Apply one journal record. The record is parsed completely before state is modified.
+     */
+    private static void apply(ByteBuffer body, LinkedHashMap<String, IRSignal> state) {
+        int op = body.get();
+        switch (op) {
+            case OP_PUT:
+            case OP_PUT_FRAMED: {
+                IRSignal signal = IRSignalCodec.readSignal(body,
+                        op == OP_PUT_FRAMED ? IRSignalCodec.PULSES_FRAMED : IRSignalCodec.PULSES_PLAIN);
+                state.put(signal.getId(), signal);
+                break;
+            }
+            case OP_UPDATE_META: {
+                IRSignal metadata = readMetadata(body);
+                IRSignal signal = state.get(metadata.getId());
+                if (signal != null) {
+                    copyMetadata(metadata, signal);
+                }
+                break;
+            }
+            case OP_DELETE:
+                state.remove(IRSignalCodec.readString(body));
+                break;
+            case OP_REORDER: {
+                int count = IRSignalCodec.readVarint(body);
+                ArrayList<String> ids = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ids.add(IRSignalCodec.readString(body));
+                }
+                LinkedHashMap<String, IRSignal> reordered = new LinkedHashMap<>(state.size() * 2);
+                for (String id : ids) {
+                    IRSignal signal = state.remove(id);
+                    if (signal != null) {
+                        reordered.put(id, signal);
+                    }
+                }
+                // Signals not in the list keep their relative order at the end
+                reordered.putAll(state);
+                state.clear();
+                state.putAll(reordered);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown op: " + op);
+        }
+    }
+
+    private static void writeMetadata(IRSignalCodec.Writer out, IRSignal signal) {
+        out.writeString(signal.getId());
+        out.writeString(signal.getName());
+        out.writeString(signal.getFormat());
+        out.writeString(signal.getDeviceId());
+        out.writeString(signal.getImageResourceName());
+        out.writeString(signal.getImageFilename());
+        out.writeInt(Float.floatToIntBits(signal.getFrequency()));
+        out.writeSignedVarint(signal.getViewPosition());
+    }
+
+    private static IRSignal readMetadata(ByteBuffer in) {
+        IRSignal signal = new IRSignal();
+        signal.setId(IRSignalCodec.readString(in));
+        signal.setName(IRSignalCodec.readString(in));
+        signal.setFormat(IRSignalCodec.readString(in));
+        signal.setDeviceId(IRSignalCodec.readString(in));
+        String imageResourceName = IRSignalCodec.readString(in);
+        signal.setImageFilename(IRSignalCodec.readString(in));
+        signal.setImageResourceName(imageResourceName);
+        signal.setFrequency(Float.intBitsToFloat(IRSignalCodec.readInt(in)));
+        signal.setViewPosition(IRSignalCodec.readSignedVarint(in));
+        return signal;
+    }
+
+    private static void copyMetadata(IRSignal from, IRSignal to) {
+        to.setName(from.getName());
+        to.setFormat(from.getFormat());
+        to.setDeviceId(from.getDeviceId());
+        // setImageFilename() clears imageResourceName, so set it first
+        to.setImageFilename(from.getImageFilename());
+        to.setImageResourceName(from.getImageResourceName());
+        to.setFrequency(from.getFrequency());
+        to.setViewPosition(from.getViewPosition());
+    }
+
+    private static IRSignal copyOf(IRSignal signal) {
+        IRSignal copy = new IRSignal();
+        copy.setId(signal.getId());
+        copyMetadata(signal, copy);
+        copy.copyDataFrom(signal);
+        return copy;
+    }
+
+    private static boolean hasSameData(IRSignal a, IRSignal b) {
+        IRPulseData pulseData = a.getPulseData();
+        if (pulseData != null && pulseData == b.getPulseData()) {
+            // Still the same lazily loaded data
+            return true;
+        }
+        return a.getData() == b.getData() || Arrays.equals(a.getData(), b.getData());
+    }
+
+    private static boolean hasSameMetadata(IRSignal a, IRSignal b) {
+        return equals(a.getName(), b.getName()) &&
+                equals(a.getFormat(), b.getFormat()) &&
+                equals(a.getDeviceId(), b.getDeviceId()) &&
+                equals(a.getImageResourceName(), b.getImageResourceName()) &&
+                equals(a.getImageFilename(), b.getImageFilename()) &&
+                Float.floatToIntBits(a.getFrequency()) == Float.floatToIntBits(b.getFrequency()) &&
+                a.getViewPosition() == b.getViewPosition();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private List<Integer> listJournalGenerations() {
+        ArrayList<Integer> generations = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(JOURNAL_PREFIX)) {
+                    try {
+                        generations.add(Integer.parseInt(name.substring(JOURNAL_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private void deleteJournalsBefore(int generation) {
+        for (int journalGeneration : listJournalGenerations()) {
+            if (journalGeneration < generation) {
+                File file = journalFile(journalGeneration);
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+    }
+}
@@ -7,13 +7,13 @@ import android.util.Base64;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -26,16 +26,66 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
     public static final String TAG = "IRSignals";
     public static final String PREFS_KEY = "signals";
 
+    private transient IRSignalStore store;
+    private transient boolean isLazyLoading;
+
+    // Indexes are rebuilt when modCount or IRSignal.getKeyGeneration() has changed
+    private transient Index index;
+
+    // Index by decoded code, rebuilt when modCount or IRSignal.getDataGeneration() has changed
+    private transient CodeIndex codeIndex;
+
     public IRSignals() {
     }
 
-    public IRSignal getSignal(String id) {
+    @Override
+    public IRSignal set(int index, IRSignal signal) {
+        // ArrayList.set() doesn't count as a structural modification, but it invalidates indexes
+        modCount++;
+        return super.set(index, signal);
+    }
+
+    /**
+     * Returns the count of structural modifications, which IRSignalDuplicateIndex compares to find out changes.
+     *
+     * @return
+     */
+    int getModCount() {
+        return modCount;
+    }
+
+    private Index getIndex() {
+        Index current = index;
+        int keyGeneration = IRSignal.getKeyGeneration();
+        if (current != null && current.modCount == modCount && current.keyGeneration == keyGeneration) {
+            return current;
+        }
+        current = new Index(modCount, keyGeneration);
         for (IRSignal signal : this) {
-            if (signal.getId().equals(id)) {
-                return signal;
+            String id = signal.getId();
+            // getSignal() returns the first one when ids overlap
+            if (id != null && !current.byId.containsKey(id)) {
+                current.byId.put(id, signal);
+            }
+            String deviceId = signal.getDeviceId();
+            if (deviceId != null) {
+                ArrayList<IRSignal> deviceSignals = current.byDeviceId.get(deviceId);
+                if (deviceSignals == null) {
+                    deviceSignals = new ArrayList<>();
+                    current.byDeviceId.put(deviceId, deviceSignals);
+                }
+                deviceSignals.add(signal);
             }
         }
-        return null;
+        index = current;
+        return current;
+    }
+
+    public IRSignal getSignal(String id) {
+        if (id == null) {
+            return null;
+        }
+        return getIndex().byId.get(id);
     }
 
     public boolean checkIdOverlap() {
@@ -68,66 +118,248 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
         return UUID.randomUUID().toString().replace("-", "");
     }
 
+    /**
+     * If true, load() leaves pulse data in the memory-mapped signals file and
+     * IRSignal.getData() decodes it on demand. Only metadata stays on heap.
+     * trueの場合、load()は信号データをメモリマップされたファイルに残し、getData()時にデコードします。
+     *
+     * @param isLazyLoading
+     */
+    public void setLazyLoading(boolean isLazyLoading) {
+        this.isLazyLoading = isLazyLoading;
+    }
+
+    public boolean isLazyLoading() {
+        return isLazyLoading;
+    }
+
+    private IRSignalStore getStore() {
+        if (store == null) {
+            store = new IRSignalStore(IRKit.sharedInstance().getContext().getFilesDir());
+        }
+        return store;
+    }
+
+    /**
+     * Save signals. Only changes since the last load() or save() are written.
+     * 信号を保存します。前回のload()またはsave()からの変更のみ書き込まれます。
+     */
     public void save() {
-        String serializedStr;
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(this);
-            oos.close();
-            serializedStr = Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
+            getStore().save(this);
         } catch (IOException ex) {
+            Log.e(TAG, "Failed to save signals");
             ex.printStackTrace();
             return;
         }
-        IRKit.sharedInstance().savePreference(PREFS_KEY, serializedStr);
+        IRKit.sharedInstance().requestBackup();
+    }
+
+    /**
+     * Returns true if save() doesn't write because the stored signals couldn't be fully loaded.
+     * The stored data is kept as it is until acceptRecoveredSignals() is called.
+     * 保存された信号を完全に読み込めなかったため、save()が書き込まない場合にtrueを返します。
+     *
+     * @return
+     */
+    public boolean isReadOnly() {
+        return getStore().isReadOnly();
     }
 
+    /**
+     * Save the current signals as the new content of a read-only store, discarding the stored
+     * data which couldn't be recovered.
+     * 読み取り専用になったストアに現在の信号を保存し、復元できなかったデータを破棄します。
+     */
+    public void acceptRecoveredSignals() {
+        try {
+            getStore().discardCorruptSnapshot(this);
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to save signals");
+            ex.printStackTrace();
+            return;
+        }
+        IRKit.sharedInstance().requestBackup();
+    }
+
+    /**
+     * Load signals from the signal store.
+     * If only legacy data in shared preferences exists, it is migrated to the store.
+     * If the store is corrupted, what could be recovered is loaded and the store becomes
+     * read-only (see isReadOnly()).
+     * 信号を読み込みます。
+     */
     public void load() {
         this.clear();
 
-        String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
-        if (jsonStr != null) {
-            try {
-                byte[] data = Base64.decode(jsonStr, Base64.DEFAULT);
-                ObjectInputStream ois = new ObjectInputStream(
-                        new ByteArrayInputStream(data)
-                );
-                IRSignals signals = (IRSignals)ois.readObject();
-                for (Object obj : signals) {
-                    IRSignal signal = (IRSignal)obj;
-                    this.add(signal);
+        try {
+            if (getStore().load(this, isLazyLoading)) {
+                if (getStore().isReadOnly()) {
+                    Log.w(TAG, "Signals are partially recovered; saving is disabled");
                 }
-                ois.close();
-            } catch (IOException | ClassNotFoundException ex) {
-                Log.e(TAG, "Failed to load signals");
+                return;
+            }
+        } catch (IOException ex) {
+            // Don't migrate legacy data over a store we couldn't read
+            Log.e(TAG, "Failed to load signals");
+            ex.printStackTrace();
+            return;
+        }
+
+        if (loadLegacy()) {
+            Log.i(TAG, "Migrating " + this.size() + " signals from shared preferences");
+            try {
+                getStore().rewrite(this);
+                IRKit.sharedInstance().removePreference(PREFS_KEY);
+            } catch (IOException ex) {
+                // Keep the legacy data so that we can retry next time
+                Log.e(TAG, "Failed to migrate signals");
                 ex.printStackTrace();
             }
         }
     }
 
+    /**
+     * Load signals which were stored in shared preferences by Java serialization.
+     *
+     * @return true if legacy data existed and was loaded
+     */
+    private boolean loadLegacy() {
+        String serializedStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
+        if (serializedStr == null) {
+            return false;
+        }
+        try {
+            byte[] data = Base64.decode(serializedStr, Base64.DEFAULT);
+            ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(data)
+            );
+            IRSignals signals = (IRSignals)ois.readObject();
+            for (Object obj : signals) {
+                IRSignal signal = (IRSignal)obj;
+                this.add(signal);
+            }
+            ois.close();
+        } catch (IOException | ClassNotFoundException ex) {
+            Log.e(TAG, "Failed to load legacy signals");
+            ex.printStackTrace();
+            this.clear();
+            return false;
+        }
+        return true;
+    }
+
     public void removeIRSignalsForDeviceId(String deviceId) {
-        if (deviceId == null) {
+        if (deviceId == null || !getIndex().byDeviceId.containsKey(deviceId)) {
             return;
         }
-        for (Iterator<IRSignal> iter = this.iterator(); iter.hasNext(); ) {
-            IRSignal signal = iter.next();
-            if (signal.getDeviceId().equals(deviceId)) {
-                iter.remove();
+        // Compact in one pass instead of removing one by one
+        ArrayList<IRSignal> remaining = new ArrayList<>(this.size());
+        for (IRSignal signal : this) {
+            if (!deviceId.equals(signal.getDeviceId())) {
+                remaining.add(signal);
             }
         }
+        this.clear();
+        this.addAll(remaining);
     }
 
+    /**
+     * Returns a new IRSignals which contains signals for deviceId.
+     * deviceIdに対応する信号を含む新しいIRSignalsを返します。
+     *
+     * @param deviceId
+     * @return
+     */
     public IRSignals getIRSignalsByDeviceId(String deviceId) {
         IRSignals signals = new IRSignals();
         if (deviceId != null) {
+            List<IRSignal> deviceSignals = getIndex().byDeviceId.get(deviceId);
+            if (deviceSignals != null) {
+                signals.addAll(deviceSignals);
+            }
+        }
+        return signals;
+    }
+
+    /**
+     * Returns a read-only view of signals for deviceId. The same instance is returned
+     * until this list or id/deviceId of a signal changes, so it is cheap to call on every render.
+     * deviceIdに対応する信号の読み取り専用リストを返します。
+     *
+     * @param deviceId
+     * @return
+     */
+    public List<IRSignal> getSignalsViewByDeviceId(String deviceId) {
+        if (deviceId == null) {
+            return Collections.emptyList();
+        }
+        Index current = getIndex();
+        List<IRSignal> view = current.views.get(deviceId);
+        if (view == null) {
+            List<IRSignal> deviceSignals = current.byDeviceId.get(deviceId);
+            view = deviceSignals != null ? Collections.unmodifiableList(deviceSignals) : Collections.<IRSignal>emptyList();
+            current.views.put(deviceId, view);
+        }
+        return view;
+    }
+
+    /**
+     * Returns signals whose data decodes to the same code as code, e.g. to find
+     * buttons which send NEC address 0x04 command 0x08. Signals are decoded once and the results are kept.
+     * codeと同じコードにデコードされる信号を返します。
+     *
+     * @param code
+     * @return
+     */
+    public List<IRSignal> getSignalsByCode(IRDecodedSignal code) {
+        if (code == null) {
+            return Collections.emptyList();
+        }
+        CodeIndex current = codeIndex;
+        int dataGeneration = IRSignal.getDataGeneration();
+        if (current == null || current.modCount != modCount || current.dataGeneration != dataGeneration) {
+            current = new CodeIndex(modCount, dataGeneration);
             for (IRSignal signal : this) {
-                if (signal.getDeviceId().equals(deviceId)) {
-                    signals.add(signal);
+                IRDecodedSignal decodedSignal = signal.getDecodedSignal();
+                if (decodedSignal == null) {
+                    continue;
+                }
+                ArrayList<IRSignal> codeSignals = current.byCode.get(decodedSignal);
+                if (codeSignals == null) {
+                    codeSignals = new ArrayList<>(1);
+                    current.byCode.put(decodedSignal, codeSignals);
                 }
+                codeSignals.add(signal);
             }
+            codeIndex = current;
+        }
+        List<IRSignal> codeSignals = current.byCode.get(code);
+        return codeSignals != null ? Collections.unmodifiableList(codeSignals) : Collections.<IRSignal>emptyList();
+    }
+
+    private static class CodeIndex {
+        public final int modCount;
+        public final int dataGeneration;
+        public final HashMap<IRDecodedSignal, ArrayList<IRSignal>> byCode = new HashMap<>();
+
+        public CodeIndex(int modCount, int dataGeneration) {
+            this.modCount = modCount;
+            this.dataGeneration = dataGeneration;
+        }
+    }
+
+    private static class Index {
+        public final int modCount;
+        public final int keyGeneration;
+        public final HashMap<String, IRSignal> byId = new HashMap<>();
+        public final HashMap<String, ArrayList<IRSignal>> byDeviceId = new HashMap<>();
+        public final HashMap<String, List<IRSignal>> views = new HashMap<>();
+
+        public Index(int modCount, int keyGeneration) {
+            this.modCount = modCount;
+            this.keyGeneration = keyGeneration;
         }
-        return signals;
     }
 
     /**
@@ -0,0 +1,198 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary file of IRSignals.
+ *
+ * Layout: magic "IRSG", varint version, varint generation (since version 2), varint count,
+ * count signals encoded by IRSignalCodec, and CRC32 of everything before it.
+ * Pulses are in PULSES_FRAMED format since version 3.
+ * The generation tells IRSignalStore which journals are already merged into the file.
+ *
+ * The file is written to a temporary file first and then renamed, so a crash while saving
+ * leaves the previous file intact.
+ */
+class IRSignalsFile {
+    public static final String TAG = IRSignalsFile.class.getSimpleName();
+
+    public static final String FILENAME = "irkit_signals.bin";
+
+    private static final byte[] MAGIC = {'I', 'R', 'S', 'G'};
+    private static final int VERSION = 3;
+
+    private IRSignalsFile() {
+    }
+
+    /**
+     * Write signals to file, replacing its content atomically.
+     *
+     * @param file
+     * @param signals
+     * @param generation
+     * @throws IOException
+     */
+    public static void write(File file, Collection<IRSignal> signals, int generation) throws IOException {
+        IRSignalCodec.Writer writer = new IRSignalCodec.Writer(64 + signals.size() * 256);
+        writer.writeBytes(MAGIC, 0, MAGIC.length);
+        writer.writeVarint(VERSION);
+        writer.writeVarint(generation);
+        writer.writeVarint(signals.size());
+        for (IRSignal signal : signals) {
+            writer.writeSignal(signal);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(writer.getBuffer(), 0, writer.size());
+        writer.writeInt((int) crc.getValue());
+
+        writeAtomically(file, writer.getBuffer(), writer.size());
+    }
+
+    static void writeAtomically(File file, byte[] bytes, int length) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(bytes, 0, length);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Read signals from file and add them to out.
+     *
+     * @param file
+     * @param out
+     * @return generation of the file, or -1 if file does not exist
+     * @throws IOException if file is corrupted or unreadable
+     */
+    public static int read(File file, List<IRSignal> out) throws IOException {
+        return read(file, out, false);
+    }
+
+    /**
+     * Read signals from file and add them to out.
+     *
+     * @param file
+     * @param out
+     * @param isLazy If true, the file is memory-mapped and pulse data of signals
+     *               is left in it until IRSignal.getData() is called.
+     * @return generation of the file, or -1 if file does not exist
+     * @throws IOException if file is corrupted or unreadable
+     */
+    public static int read(File file, List<IRSignal> out, boolean isLazy) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+        ByteBuffer whole = isLazy ? map(file) : ByteBuffer.wrap(readFully(file));
+        int fileLength = whole.limit();
+        if (fileLength < MAGIC.length + 4) {
+            throw new IOException("File too short: " + file);
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (whole.get(i) != MAGIC[i]) {
+                throw new IOException("Bad magic: " + file);
+            }
+        }
+        int bodyLength = fileLength - 4;
+        int storedCrc = whole.getInt(bodyLength);
+        if (storedCrc != crc32(whole, bodyLength)) {
+            throw new IOException("CRC mismatch: " + file);
+        }
+        whole.limit(bodyLength);
+        ByteBuffer buf = whole.slice();
+        buf.position(MAGIC.length);
+        int generation = 0;
+        try {
+            int version = IRSignalCodec.readVarint(buf);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported version " + version + ": " + file);
+            }
+            if (version >= 2) {
+                generation = IRSignalCodec.readVarint(buf);
+            }
+            int count = IRSignalCodec.readVarint(buf);
+            int pulseFormat = version >= 3 ? IRSignalCodec.PULSES_FRAMED : IRSignalCodec.PULSES_PLAIN;
+            HashMap<String, String> stringPool = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                out.add(IRSignalCodec.readSignal(buf, isLazy, stringPool, pulseFormat));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed file: " + file, e);
+        }
+        if (buf.hasRemaining()) {
+            Log.w(TAG, buf.remaining() + " trailing bytes in " + file);
+        }
+        return generation;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int crc32(ByteBuffer buf, int length) {
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset(), length);
+        } else {
+            ByteBuffer in = buf.duplicate();
+            in.position(0);
+            byte[] chunk = new byte[8192];
+            int remaining = length;
+            while (remaining > 0) {
+                int n = Math.min(remaining, chunk.length);
+                in.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+                offset += read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
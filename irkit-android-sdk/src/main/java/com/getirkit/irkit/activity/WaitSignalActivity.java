@@ -11,12 +11,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.getirkit.irkit.IRKit;
 import com.getirkit.irkit.IRSignal;
 import com.getirkit.irkit.R;
 import com.getirkit.irkit.net.IRAPICallback;
 import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRLongPollEngine;
 
 import retrofit.RetrofitError;
 import retrofit.client.Response;
@@ -31,6 +33,7 @@ public class WaitSignalActivity extends ActionBarActivity {
 
     private String apiKey;
     private boolean isErrorOccurred;
+    private IRLongPollEngine.Subscription signalSubscription;
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
@@ -63,6 +66,11 @@ public class WaitSignalActivity extends ActionBarActivity {
         irkit.init(getApplicationContext());
         // If apiKey argument is not provided (== null), it will be read from AndroidManifest.xml
         irkit.registerClient(apiKey);
+        // Index the signals so that a new signal is checked for duplicates without delay
+        irkit.prepareDuplicateIndex();
+        // Read out old signals before the user is asked to press a button,
+        // so that the first signal captured in onResume() isn't thrown away
+        irkit.getHTTPClient().clearLocalSignals();
 
         TextView notWorkingTextView = (TextView) findViewById(R.id.activity_wait_signal__not_working);
         notWorkingTextView.setMovementMethod(LinkMovementMethod.getInstance());
@@ -91,14 +99,17 @@ public class WaitSignalActivity extends ActionBarActivity {
     protected void onResume() {
         super.onResume();
         if (!isErrorOccurred) {
-            IRKit.sharedInstance().getHTTPClient().waitForSignal(new NewSignalCallback<IRInternetAPIService.GetMessagesResponse>(), true);
+            signalSubscription = IRKit.sharedInstance().getHTTPClient().captureSignal(new NewSignalCallback<IRInternetAPIService.GetMessagesResponse>());
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        IRKit.sharedInstance().getHTTPClient().cancelRequests();
+        if (signalSubscription != null) {
+            signalSubscription.cancel();
+            signalSubscription = null;
+        }
     }
 
     @Override
@@ -121,7 +132,20 @@ public class WaitSignalActivity extends ActionBarActivity {
             registeringSignal.setDeviceId(getMessagesResponse.deviceid);
             registeringSignal.setFrequency((float) getMessagesResponse.message.freq);
             registeringSignal.setFormat(getMessagesResponse.message.format);
-            registeringSignal.setData(getMessagesResponse.message.data);
+            registeringSignal.setData(IRKit.sharedInstance().normalizeLearnedData(getMessagesResponse.message.data));
+
+            IRKit.sharedInstance().findDuplicateSignal(registeringSignal, new IRKit.DuplicateSignalListener() {
+                @Override
+                public void onDuplicateSignalFound(IRSignal duplicateSignal) {
+                    if (duplicateSignal == null) {
+                        return;
+                    }
+                    Log.d(TAG, "duplicate of " + duplicateSignal.getId() + " (" + duplicateSignal.getName() + ")");
+                    Toast.makeText(getApplicationContext(),
+                            getString(R.string.activity_wait_signal__duplicate, duplicateSignal.getName()),
+                            Toast.LENGTH_LONG).show();
+                }
+            });
 
             // Start SignalActivity
             Bundle args = new Bundle();
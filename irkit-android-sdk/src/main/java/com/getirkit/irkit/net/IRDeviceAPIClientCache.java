@@ -0,0 +1,137 @@
+package com.getirkit.irkit.net;
+
+import android.os.Process;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import retrofit.RestAdapter;
+import retrofit.android.MainThreadExecutor;
+import retrofit.client.OkClient;
+import retrofit.converter.Converter;
+
+/**
+ * LRU cache of IRDeviceAPIService instances, one per device endpoint (host:port).
+ *
+ * Each service has its own fixed endpoint, so calls to different IRKits never race
+ * on a shared endpoint. All services share one OkHttpClient (and its connection pool)
+ * and one bounded executor for HTTP calls.
+ */
+public class IRDeviceAPIClientCache {
+    public static final String TAG = IRDeviceAPIClientCache.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_SIZE = 16;
+
+    private static final int MAX_HTTP_THREADS = 4;
+    private static final String THREAD_PREFIX = "IRKit-Device-";
+
+    private final OkHttpClient httpClient;
+    private final Executor httpExecutor;
+    private final Executor callbackExecutor;
+    private final Converter converter;
+    private final LinkedHashMap<String, IRDeviceAPIService> services;
+
+    public IRDeviceAPIClientCache(OkHttpClient httpClient, Converter converter) {
+        this(httpClient, converter, DEFAULT_MAX_SIZE);
+    }
+
+    public IRDeviceAPIClientCache(OkHttpClient httpClient, Converter converter, final int maxSize) {
+        this.httpClient = httpClient;
+        this.converter = converter;
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_HTTP_THREADS, MAX_HTTP_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, THREAD_PREFIX + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.httpExecutor = executor;
+        this.callbackExecutor = new MainThreadExecutor();
+
+        // access-ordered LinkedHashMap evicts the least recently used endpoint
+        services = new LinkedHashMap<String, IRDeviceAPIService>(maxSize + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IRDeviceAPIService> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the IRDeviceAPIService for endpoint, building it if needed.
+     *
+     * @param endpoint e.g. "http://192.168.0.10:80"
+     * @return
+     */
+    public IRDeviceAPIService get(String endpoint) {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("endpoint is null");
+        }
+        synchronized (services) {
+            IRDeviceAPIService service = services.get(endpoint);
+            if (service == null) {
+                service = build(endpoint);
+                services.put(endpoint, service);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Discard the cached service for endpoint, e.g. when the device has moved.
+     *
+     * @param endpoint
+     */
+    public void evict(String endpoint) {
+        if (endpoint == null) {
+            return;
+        }
+        synchronized (services) {
+            services.remove(endpoint);
+        }
+    }
+
+    public void evictAll() {
+        synchronized (services) {
+            services.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (services) {
+            return services.size();
+        }
+    }
+
+    private IRDeviceAPIService build(String endpoint) {
+        IRDeviceEndpoint deviceEndpoint = new IRDeviceEndpoint();
+        deviceEndpoint.setUrl(endpoint);
+        RestAdapter restAdapter = new RestAdapter.Builder()
+                .setClient(new OkClient(httpClient))
+                .setConverter(converter)
+                .setEndpoint(deviceEndpoint)
+                .setExecutors(httpExecutor, callbackExecutor)
+//                .setLogLevel(RestAdapter.LogLevel.FULL)
+                .build();
+        return restAdapter.create(IRDeviceAPIService.class);
+    }
+}
@@ -5,6 +5,7 @@ import retrofit.http.Body;
 import retrofit.http.GET;
 import retrofit.http.POST;
 import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
 
 /**
  * Device HTTP API
@@ -49,6 +50,15 @@ public interface IRDeviceAPIService {
     @POST("/messages")
     void postMessages(@Body PostMessagesRequest request, Callback<PostMessagesResponse> callback);
 
+    /**
+     * 赤外線信号を送ります。bodyはIRSignalTypedOutput.forDevice()で作ります。
+     *
+     * @param body
+     * @param callback
+     */
+    @POST("/messages")
+    void postMessages(@Body TypedOutput body, Callback<PostMessagesResponse> callback);
+
     /**
      * IRKitをWi-Fiに接続させる。
      *
@@ -1,17 +1,17 @@
 package com.getirkit.irkit.net;
 
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.getirkit.irkit.IRKit;
 import com.getirkit.irkit.IRPeripheral;
-import com.getirkit.irkit.IRPeripherals;
+import com.getirkit.irkit.IRScheduler;
 import com.getirkit.irkit.IRSignal;
 import com.getirkit.irkit.IRState;
 import com.getirkit.irkit.IRWifiInfo;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.OkHttpClient;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -21,6 +21,7 @@ import retrofit.RestAdapter;
 import retrofit.RetrofitError;
 import retrofit.client.OkClient;
 import retrofit.client.Response;
+import retrofit.converter.GsonConverter;
 import retrofit.mime.TypedInput;
 import retrofit.mime.TypedString;
 
@@ -33,6 +34,11 @@ public class IRHTTPClient {
     public static final String APIENDPOINT_BASE = "https://api.getirkit.com";
     public static final String DEVICE_API_ENDPOINT_IRKITWIFI = "http://192.168.1.1";
 
+    // Idle connections to devices in the shared connection pool.
+    // IRKit has few sockets, so idle connections are closed soon.
+    private static final int DEVICE_MAX_IDLE_CONNECTIONS = 8;
+    private static final long DEVICE_KEEP_ALIVE_DURATION_MS = 5000;
+
     // Retrofit
     private RestAdapter internetRestAdapter;
     private RestAdapter deviceRestAdapter;
@@ -41,10 +47,14 @@ public class IRHTTPClient {
     private String clientkey;
     private OkHttpClient internetHttpClient;
     private OkHttpClient localHttpClient;
-    private Date lastRequestDate;
     private IRInternetAPIService.PostDevicesResponse holdingPostDevicesResponse;
-    private Date lastPostDoorRequestDate;
+    private IRLongPollEngine longPollEngine;
     private IRDeviceEndpoint deviceEndpoint;
+    private IRDeviceAPIClientCache deviceAPIClientCache;
+
+    // Device API endpoint -> elapsedRealtime when the last GET /messages to it was sent.
+    // Accessed only on the main thread.
+    private final HashMap<String, Long> messagesReadAt = new HashMap<>();
 
     // singleton
     private static IRHTTPClient ourInstance = new IRHTTPClient();
@@ -62,23 +72,32 @@ public class IRHTTPClient {
         localHttpClient = new OkHttpClient();
         localHttpClient.setConnectTimeout(5, TimeUnit.SECONDS);
         localHttpClient.setReadTimeout(10, TimeUnit.SECONDS);
+        localHttpClient.setConnectionPool(new ConnectionPool(DEVICE_MAX_IDLE_CONNECTIONS, DEVICE_KEEP_ALIVE_DURATION_MS));
+
+        // Decodes data of GetMessagesResponse into int[] without reflection
+        GsonConverter converter = new GsonConverter(IRMessagesResponseAdapter.createGson());
 
         internetRestAdapter = new RestAdapter.Builder()
                 .setClient(new OkClient(internetHttpClient))
+                .setConverter(converter)
                 .setEndpoint(APIENDPOINT_BASE)
 //                .setLogLevel(RestAdapter.LogLevel.FULL)
                 .build();
         internetAPIService = internetRestAdapter.create(IRInternetAPIService.class);
+        longPollEngine = new IRLongPollEngine(internetAPIService);
 
         deviceEndpoint = new IRDeviceEndpoint();
         deviceEndpoint.setUrl(DEVICE_API_ENDPOINT_IRKITWIFI);
 
         deviceRestAdapter = new RestAdapter.Builder()
                 .setClient(new OkClient(localHttpClient))
+                .setConverter(converter)
                 .setEndpoint(deviceEndpoint)
 //                .setLogLevel(RestAdapter.LogLevel.FULL)
                 .build();
         deviceAPIService = deviceRestAdapter.create(IRDeviceAPIService.class);
+
+        deviceAPIClientCache = new IRDeviceAPIClientCache(localHttpClient, converter);
     }
 
     public void setClientKey(String key) {
@@ -94,6 +113,30 @@ public class IRHTTPClient {
         deviceEndpoint.setUrl(endpoint);
     }
 
+    /**
+     * Returns IRDeviceAPIService bound to the local address of peripheral.
+     * Unlike getDeviceAPIService(), it is safe to use concurrently for different peripherals.
+     *
+     * @param peripheral
+     * @return null if local address of peripheral isn't resolved
+     */
+    public IRDeviceAPIService getDeviceAPIService(IRPeripheral peripheral) {
+        String endpoint = peripheral.getDeviceAPIEndpoint();
+        if (endpoint == null) {
+            return null;
+        }
+        return deviceAPIClientCache.get(endpoint);
+    }
+
+    /**
+     * Discard the cached IRDeviceAPIService for endpoint.
+     *
+     * @param endpoint e.g. "http://192.168.0.10:80"
+     */
+    public void evictDeviceAPIService(String endpoint) {
+        deviceAPIClientCache.evict(endpoint);
+    }
+
     public void registerClient(String apiKey, final IRAPICallback<IRInternetAPIService.GetClientsResponse> callback) {
         HashMap<String, String> params = new HashMap<>();
         params.put("apikey", apiKey);
@@ -126,11 +169,24 @@ public class IRHTTPClient {
     }
 
     public void sendSignalOverInternet(IRSignal signal, final IRAPICallback<IRInternetAPIService.PostMessagesResponse> callback) {
-        HashMap<String, String> params = new HashMap<>();
-        params.put("deviceid", signal.getDeviceId());
-        params.put("message", signal.toJson());
-        this.addClientKey(params);
-        internetAPIService.postMessages(params, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
+        sendSignalOverInternet(signal, null, callback);
+    }
+
+    /**
+     * Send IRSignal over Internet using a pre-encoded body if possible.
+     *
+     * @param signal
+     * @param payload Can be null.
+     * @param callback
+     */
+    public void sendSignalOverInternet(IRSignal signal, IRSignalPayload payload,
+                                       final IRAPICallback<IRInternetAPIService.PostMessagesResponse> callback) {
+        IRSignalTypedOutput body = payload != null ? payload.getInternetBody(clientkey) : null;
+        if (body == null) {
+            // The form body is streamed from signal data without building intermediate strings
+            body = IRSignalTypedOutput.forInternet(signal, clientkey);
+        }
+        internetAPIService.postMessages(body, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
             @Override
             public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
                 if (callback != null) {
@@ -155,14 +211,58 @@ public class IRHTTPClient {
      * @param timeoutMs
      */
     public void sendSignalOverLocalNetwork(final IRSignal signal, final IRAPIResult result, int timeoutMs) {
-        IRDeviceAPIService.PostMessagesRequest request = new IRDeviceAPIService.PostMessagesRequest();
-        request.format = signal.getFormat();
-        request.freq = signal.getFrequency();
-        request.data = signal.getData();
+        IRPeripheral peripheral = IRKit.sharedInstance().peripherals.getPeripheralByDeviceId(signal.getDeviceId());
+        sendSignalOverLocalNetwork(deviceAPIService, peripheral, IRSignalTypedOutput.forDevice(signal), result, timeoutMs);
+    }
+
+    /**
+     * Send IRSignal to peripheral over local network
+     *
+     * @param peripheral
+     * @param signal
+     * @param result
+     * @param timeoutMs
+     */
+    public void sendSignalOverLocalNetwork(IRPeripheral peripheral, IRSignal signal, IRAPIResult result, int timeoutMs) {
+        sendSignalOverLocalNetwork(peripheral, signal, null, result, timeoutMs);
+    }
+
+    /**
+     * Send IRSignal to peripheral over local network using a pre-encoded body if given
+     *
+     * @param peripheral
+     * @param signal
+     * @param payload Can be null.
+     * @param result
+     * @param timeoutMs
+     */
+    public void sendSignalOverLocalNetwork(IRPeripheral peripheral, IRSignal signal, IRSignalPayload payload,
+                                           IRAPIResult result, int timeoutMs) {
+        IRDeviceAPIService service = getDeviceAPIService(peripheral);
+        if (service == null) {
+            // The address has been lost in the meantime
+            result.onError(new IRAPIError("local address isn't resolved"));
+            return;
+        }
+        IRSignalTypedOutput body = payload != null ? payload.getDeviceBody() : IRSignalTypedOutput.forDevice(signal);
+        sendSignalOverLocalNetwork(service, peripheral, body, result, timeoutMs);
+    }
 
+    /**
+     * Returns request bodies of signal encoded in advance for
+     * sendSignalOverLocalNetwork() and sendSignalOverInternet().
+     *
+     * @param signal
+     * @return
+     */
+    public IRSignalPayload encodeSignal(IRSignal signal) {
+        return IRSignalPayload.encode(signal, clientkey);
+    }
+
+    private void sendSignalOverLocalNetwork(IRDeviceAPIService service, final IRPeripheral peripheral,
+                                            IRSignalTypedOutput body, final IRAPIResult result, int timeoutMs) {
         final IRState state = new IRState();
-        final Handler handler = new Handler();
-        final Runnable r = new Runnable() {
+        final IRScheduler.Task timeoutTask = IRScheduler.sharedInstance().scheduleOnMainThread(new Runnable() {
             @Override
             public void run() {
                 boolean isTimedOut = false;
@@ -174,20 +274,23 @@ public class IRHTTPClient {
                 }
                 if (isTimedOut) {
                     Log.e(TAG, "sendSignalOverLocalNetwork: timeout");
+                    if (peripheral != null) {
+                        peripheral.getLatencyEstimator().recordTimeout();
+                    }
                     result.onTimeout();
                 }
             }
-        };
-        handler.postDelayed(r, timeoutMs);
+        }, timeoutMs);
 
-        deviceAPIService.postMessages(request, new Callback<IRDeviceAPIService.PostMessagesResponse>() {
+        final long startTime = SystemClock.elapsedRealtime();
+        service.postMessages(body, new Callback<IRDeviceAPIService.PostMessagesResponse>() {
             @Override
             public void success(IRDeviceAPIService.PostMessagesResponse postMessagesResponse, Response response) {
-                IRPeripherals peripherals = IRKit.sharedInstance().peripherals;
-                IRPeripheral peripheral = peripherals.getPeripheralByDeviceId( signal.getDeviceId() );
                 if (peripheral != null) {
+                    // Recorded even when it's too late, since it is still a valid sample
+                    peripheral.getLatencyEstimator().record(SystemClock.elapsedRealtime() - startTime);
                     if (peripheral.storeResponseHeaders(response)) {
-                        peripherals.save();
+                        IRKit.sharedInstance().peripherals.save();
                     }
                 }
 
@@ -200,7 +303,7 @@ public class IRHTTPClient {
                     }
                 }
                 if (!isTimedOut) {
-                    handler.removeCallbacks(r);
+                    timeoutTask.cancel();
                     if (result != null) {
                         result.onSuccess();
                     }
@@ -219,7 +322,7 @@ public class IRHTTPClient {
                     }
                 }
                 if (!isTimedOut) {
-                    handler.removeCallbacks(r);
+                    timeoutTask.cancel();
                     if (result != null) {
                         result.onError(new IRAPIError(error.getMessage()));
                     }
@@ -228,47 +331,111 @@ public class IRHTTPClient {
         });
     }
 
-    public void waitForSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
-        waitForSignal(callback, true);
+    /**
+     * Wait for a signal received by any IRKit, discarding signals received before this call.
+     * IRKitが受信した信号を待ちます。
+     *
+     * @param callback
+     * @return Handle to cancel waiting
+     */
+    public IRLongPollEngine.Subscription waitForSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        return waitForSignal(callback, true);
     }
 
-    public void waitForSignal(final IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback, boolean clear) {
-        HashMap<String, String> params = new HashMap<>(2);
-        if (clear) {
-            params.put("clear", "1");
-        }
-        this.addClientKey(params);
+    public IRLongPollEngine.Subscription waitForSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback, boolean clear) {
+        return waitForSignal(null, null, clear, callback);
+    }
 
-        final Date requestDate = lastRequestDate = new Date();
-        internetAPIService.getMessages(params, new Callback<IRInternetAPIService.GetMessagesResponse>() {
-            @Override
-            public void success(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response) {
-                if (lastRequestDate == null) {
-                    // The request has been cancelled. Discard this response.
-                    return;
-                }
-                if (lastRequestDate.after(requestDate)) {
-                    // The request is obsolete. Discard this response.
-                    return;
+    /**
+     * Wait for a signal received by the IRKit which matches deviceId and hostname.
+     * Concurrent waits share one long poll.
+     * deviceIdとhostnameに一致するIRKitが受信した信号を待ちます。
+     *
+     * @param deviceId null means any device
+     * @param hostname null means any hostname
+     * @param clear If true, signals received before this call are discarded
+     * @param callback
+     * @return Handle to cancel waiting
+     */
+    public IRLongPollEngine.Subscription waitForSignal(String deviceId, String hostname, boolean clear,
+                                                       IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        return longPollEngine.subscribeMessages(clientkey, deviceId, hostname, clear, callback);
+    }
+
+    /**
+     * Wait for a signal by polling IRKit devices on local network directly.
+     * Falls back to waitForSignal() when none of the peripherals is reachable.
+     * ローカルネットワークのIRKitに直接問い合わせて信号を待ちます。
+     *
+     * @param callback
+     * @return Handle to cancel waiting, which also tells how the signal was captured
+     */
+    public IRSignalCapture captureSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        IRSignalCapture capture = new IRSignalCapture(this, callback);
+        capture.start(IRKit.sharedInstance().peripherals);
+        return capture;
+    }
+
+    /**
+     * Read and discard the signals which IRKit devices on local network hold, so that
+     * captureSignal() called shortly after this doesn't have to discard its first response.
+     * Call this when showing a screen which is going to call captureSignal().
+     * Must be called on the main thread.
+     * captureSignal()の前に、ローカルネットワークのIRKitが保持している古い信号を読み捨てます。
+     */
+    public void clearLocalSignals() {
+        for (IRPeripheral peripheral : IRKit.sharedInstance().peripherals) {
+            IRDeviceAPIService service = getDeviceAPIService(peripheral);
+            if (service == null) {
+                continue;
+            }
+            final String endpoint = peripheral.getDeviceAPIEndpoint();
+            final long sentAt = SystemClock.elapsedRealtime();
+            // A poll sent after this one is handled after it, so it is recorded right away
+            recordMessagesRead(endpoint, sentAt);
+            service.getMessages(new Callback<IRDeviceAPIService.GetMessagesResponse>() {
+                @Override
+                public void success(IRDeviceAPIService.GetMessagesResponse getMessagesResponse, Response response) {
                 }
-                if (getMessagesResponse == null) {
-                    // Server returned null response. Try again.
-                    IRHTTPClient.sharedInstance().waitForSignal(callback, false);
-                } else {
-                    callback.success(getMessagesResponse, response);
+
+                @Override
+                public void failure(RetrofitError error) {
+                    Long readAt = messagesReadAt.get(endpoint);
+                    if (readAt != null && readAt == sentAt) {
+                        messagesReadAt.remove(endpoint);
+                    }
                 }
-            }
+            });
+        }
+    }
 
-            @Override
-            public void failure(RetrofitError error) {
-                Log.e(TAG, "internet getMessages failure: " + error.getMessage());
-                callback.failure(error);
-            }
-        });
+    /**
+     * Record that GET /messages was sent to the device at sentAt (elapsedRealtime).
+     */
+    void recordMessagesRead(String endpoint, long sentAt) {
+        if (endpoint == null) {
+            return;
+        }
+        Long readAt = messagesReadAt.get(endpoint);
+        if (readAt == null || readAt < sentAt) {
+            messagesReadAt.put(endpoint, sentAt);
+        }
     }
 
+    /**
+     * Returns elapsedRealtime when GET /messages was last sent to the device, or -1 if never.
+     */
+    long getMessagesReadAt(String endpoint) {
+        Long readAt = endpoint != null ? messagesReadAt.get(endpoint) : null;
+        return readAt != null ? readAt : -1;
+    }
+
+    /**
+     * Cancel all waitForSignal() calls.
+     * 全てのwaitForSignal()をキャンセルします。
+     */
     public void cancelRequests() {
-        lastRequestDate = null;
+        longPollEngine.cancelAllMessages();
     }
 
     public void addClientKey(Map<String, String> params) {
@@ -328,61 +495,26 @@ public class IRHTTPClient {
         });
     }
 
+    /**
+     * Cancel all waitForDoor() calls.
+     */
     public void cancelPostDoor() {
-        lastPostDoorRequestDate = null;
+        longPollEngine.cancelAllDoors();
     }
 
-    public void waitForDoor(final String deviceId, final IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
-        HashMap<String, String> params = new HashMap<>(2);
-        addClientKey(params);
-        params.put("deviceid", deviceId);
-        final Date requestDate = lastPostDoorRequestDate = new Date();
-        internetAPIService.postDoor(params, new Callback<IRInternetAPIService.PostDoorResponse>() {
-            @Override
-            public void success(IRInternetAPIService.PostDoorResponse postDoorResponse, Response response) {
-                if (lastPostDoorRequestDate == null) {
-                    // This request has been canceled. Discard this response.
-                    return;
-                }
-                if (lastPostDoorRequestDate.after(requestDate)) {
-                    // This request is obsolete. Discard this response.
-                    return;
-                }
-                if (postDoorResponse.hostname == null) {
-                    // Empty response. Retry.
-                    waitForDoor(deviceId, callback);
-                } else {
-                    // Success
-                    callback.success(postDoorResponse, response);
-                }
-            }
+    /**
+     * Wait until the IRKit of deviceId connects to the Internet server.
+     *
+     * @param deviceId
+     * @param callback
+     * @return Handle to cancel waiting
+     */
+    public IRLongPollEngine.Subscription waitForDoor(String deviceId, IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
+        return longPollEngine.subscribeDoor(clientkey, deviceId, callback);
+    }
 
-            @Override
-            public void failure(RetrofitError error) {
-                if (lastPostDoorRequestDate == null) {
-                    // This request has been canceled. Discard this response.
-                    return;
-                }
-                if (lastPostDoorRequestDate.after(requestDate)) {
-                    // This request is obsolete. Discard this response.
-                    return;
-                }
-                if (error != null && error.getResponse() != null) {
-                    int statusCode = error.getResponse().getStatus();
-                    // IRKit server returns 408 when /door didn't success in a certain amount of time
-                    if (statusCode >= 400 && statusCode < 500) {
-                        // Retry postDoor
-                        waitForDoor(deviceId, callback);
-                    } else {
-                        Log.e(TAG, "postDoor error: statusCode=" + statusCode);
-                        callback.failure(error);
-                    }
-                } else {
-                    Log.e(TAG, "postDoor failure: " + error);
-                    callback.failure(error);
-                }
-            }
-        });
+    public IRLongPollEngine getLongPollEngine() {
+        return longPollEngine;
     }
 
     public IRInternetAPIService getInternetAPIService() {
@@ -5,11 +5,13 @@ import com.google.gson.annotations.SerializedName;
 import java.util.Map;
 
 import retrofit.Callback;
+import retrofit.http.Body;
 import retrofit.http.FieldMap;
 import retrofit.http.FormUrlEncoded;
 import retrofit.http.GET;
 import retrofit.http.POST;
 import retrofit.http.QueryMap;
+import retrofit.mime.TypedOutput;
 
 /**
  * Internet HTTP API
@@ -79,6 +81,16 @@ public interface IRInternetAPIService {
     @POST("/1/messages")
     void postMessages(@FieldMap Map<String, String> params, Callback<PostMessagesResponse> callback);
 
+    /**
+     * 赤外線信号を deviceid で指定するIRKitデバイスから送信します。
+     * bodyはIRSignalTypedOutput.forInternet()で作ります。
+     *
+     * @param body
+     * @param callback
+     */
+    @POST("/1/messages")
+    void postMessages(@Body TypedOutput body, Callback<PostMessagesResponse> callback);
+
     /**
      * clientkey を作成します。
      *
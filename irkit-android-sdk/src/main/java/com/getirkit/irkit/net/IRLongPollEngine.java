@@ -0,0 +1,456 @@
+package com.getirkit.irkit.net;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import retrofit.Callback;
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+
+/**
+ * Long polling of GET /1/messages and POST /1/door with explicit subscriptions.
+ *
+ * Subscribers to the same stream share one poll: there is one GET /1/messages stream per
+ * clientkey, and one POST /1/door stream per clientkey and deviceid. A message is delivered to
+ * the subscribers whose deviceid/hostname filter matches it. Each subscription is delivered
+ * at most once, and is cancelled through its handle without affecting other subscribers.
+ *
+ * HTTP errors (4xx/5xx) are retried with jittered exponential backoff, except 408 on /1/door
+ * which means the server-side wait timed out and is retried immediately. Network errors are
+ * reported to subscribers. At most maxInFlight polls are outstanding at once; further streams
+ * wait for a slot.
+ *
+ * Must be used on the main thread, where Retrofit delivers callbacks.
+ */
+public class IRLongPollEngine {
+    public static final String TAG = IRLongPollEngine.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_MAX_MS = 30000;
+    private static final int MAX_RETRIES = 6;
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+
+    /**
+     * Handle of a subscription.
+     */
+    public interface Subscription {
+        /**
+         * Stop receiving results. The callback won't be called after this.
+         */
+        public void cancel();
+
+        public boolean isCancelled();
+    }
+
+    private final IRInternetAPIService service;
+    private final int maxInFlight;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final HashMap<String, Stream<?>> streams = new HashMap<>();
+    private final ArrayDeque<Stream<?>> waitingStreams = new ArrayDeque<>();
+    private int inFlightCount;
+
+    private long pollCount;
+    private long retryCount;
+    private long deliveredCount;
+    private long discardedCount;
+
+    public IRLongPollEngine(IRInternetAPIService service) {
+        this(service, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public IRLongPollEngine(IRInternetAPIService service, int maxInFlight) {
+        this.service = service;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Wait for a signal received by an IRKit.
+     *
+     * @param clientkey
+     * @param deviceId Receive only signals from this device. null means any.
+     * @param hostname Receive only signals from this hostname (case-insensitive). null means any.
+     * @param clear If true, signals received before this call are discarded (if a new poll is started).
+     * @param callback
+     * @return
+     */
+    public Subscription subscribeMessages(String clientkey, String deviceId, String hostname, boolean clear,
+                                          IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        String key = "messages:" + clientkey;
+        MessagesStream stream = (MessagesStream) streams.get(key);
+        if (stream == null) {
+            stream = new MessagesStream(key, clientkey);
+            streams.put(key, stream);
+        }
+        if (clear && stream.isIdle()) {
+            stream.clearOnNextPoll = true;
+        }
+        return subscribe(stream, new Listener<>(stream, deviceId, hostname, callback));
+    }
+
+    /**
+     * Wait until the IRKit of deviceId connects to the Internet server.
+     *
+     * @param clientkey
+     * @param deviceId
+     * @param callback
+     * @return
+     */
+    public Subscription subscribeDoor(String clientkey, String deviceId,
+                                      IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
+        String key = "door:" + clientkey + ":" + deviceId;
+        DoorStream stream = (DoorStream) streams.get(key);
+        if (stream == null) {
+            stream = new DoorStream(key, clientkey, deviceId);
+            streams.put(key, stream);
+        }
+        return subscribe(stream, new Listener<>(stream, deviceId, null, callback));
+    }
+
+    /**
+     * Cancel all subscriptions of GET /1/messages.
+     */
+    public void cancelAllMessages() {
+        cancelAll(MessagesStream.class);
+    }
+
+    /**
+     * Cancel all subscriptions of POST /1/door.
+     */
+    public void cancelAllDoors() {
+        cancelAll(DoorStream.class);
+    }
+
+    private void cancelAll(Class<?> streamClass) {
+        for (Stream<?> stream : new ArrayList<>(streams.values())) {
+            if (streamClass.isInstance(stream)) {
+                for (Listener<?> listener : new ArrayList<>(stream.listeners)) {
+                    listener.cancel();
+                }
+            }
+        }
+    }
+
+    private <T> Subscription subscribe(Stream<T> stream, Listener<T> listener) {
+        stream.listeners.add(listener);
+        if (stream.isIdle()) {
+            startPoll(stream);
+        }
+        // Otherwise this listener joins the poll which is in flight, waiting or backing off
+        return listener;
+    }
+
+    private void startPoll(Stream<?> stream) {
+        if (inFlightCount >= maxInFlight) {
+            if (!stream.isWaitingForSlot) {
+                stream.isWaitingForSlot = true;
+                waitingStreams.add(stream);
+            }
+            return;
+        }
+        inFlightCount++;
+        pollCount++;
+        Object token = new Object();
+        stream.currentPoll = token;
+        stream.request(token);
+    }
+
+    /**
+     * Called when a poll has returned.
+     *
+     * @return true if the poll is still current and its result should be handled
+     */
+    private boolean finishPoll(Stream<?> stream, Object token) {
+        inFlightCount--;
+        boolean isCurrent = stream.currentPoll == token;
+        if (isCurrent) {
+            stream.currentPoll = null;
+        }
+        startWaitingStreams();
+        if (!isCurrent) {
+            return false;
+        }
+        if (stream.listeners.isEmpty()) {
+            // Everybody has cancelled while the poll was in flight
+            discardedCount++;
+            removeStream(stream);
+            return false;
+        }
+        return true;
+    }
+
+    private void startWaitingStreams() {
+        while (inFlightCount < maxInFlight && !waitingStreams.isEmpty()) {
+            Stream<?> stream = waitingStreams.poll();
+            stream.isWaitingForSlot = false;
+            if (!stream.listeners.isEmpty()) {
+                startPoll(stream);
+            }
+        }
+    }
+
+    private void removeStream(Stream<?> stream) {
+        if (streams.get(stream.key) == stream) {
+            streams.remove(stream.key);
+        }
+        if (stream.pendingRetry != null) {
+            handler.removeCallbacks(stream.pendingRetry);
+            stream.pendingRetry = null;
+        }
+        if (stream.isWaitingForSlot) {
+            waitingStreams.remove(stream);
+            stream.isWaitingForSlot = false;
+        }
+    }
+
+    private void onListenerCancelled(Stream<?> stream) {
+        if (!stream.listeners.isEmpty()) {
+            return;
+        }
+        if (stream.currentPoll != null) {
+            // Keep the stream so that a new subscriber can reuse the poll in flight.
+            // It is removed when the poll returns with no listeners.
+            if (stream.pendingRetry != null) {
+                handler.removeCallbacks(stream.pendingRetry);
+                stream.pendingRetry = null;
+            }
+        } else {
+            removeStream(stream);
+        }
+    }
+
+    private <T> void deliver(Stream<T> stream, Listener<T> listener, T result, Response response) {
+        stream.listeners.remove(listener);
+        listener.isCancelled = true;
+        deliveredCount++;
+        listener.callback.success(result, response);
+    }
+
+    private <T> void failAll(Stream<T> stream, RetrofitError error) {
+        List<Listener<T>> listeners = new ArrayList<>(stream.listeners);
+        stream.listeners.clear();
+        removeStream(stream);
+        for (Listener<T> listener : listeners) {
+            listener.isCancelled = true;
+            listener.callback.failure(error);
+        }
+    }
+
+    private <T> void handleFailure(final Stream<T> stream, RetrofitError error) {
+        Response response = error != null ? error.getResponse() : null;
+        if (response == null) {
+            Log.e(TAG, stream.key + " failure: " + (error != null ? error.getMessage() : null));
+            failAll(stream, error);
+            return;
+        }
+        int statusCode = response.getStatus();
+        if (statusCode == HTTP_REQUEST_TIMEOUT && stream instanceof DoorStream) {
+            // IRKit server returns 408 when /door didn't succeed in a certain amount of time
+            stream.retries = 0;
+            startPoll(stream);
+            return;
+        }
+        if (statusCode < 400 || ++stream.retries > MAX_RETRIES) {
+            Log.e(TAG, stream.key + " error: statusCode=" + statusCode);
+            failAll(stream, error);
+            return;
+        }
+        retryCount++;
+        long delay = getBackoffDelay(stream.retries);
+        Log.w(TAG, stream.key + " statusCode=" + statusCode + "; retrying in " + delay + " ms");
+        stream.pendingRetry = new Runnable() {
+            @Override
+            public void run() {
+                stream.pendingRetry = null;
+                if (!stream.listeners.isEmpty()) {
+                    startPoll(stream);
+                }
+            }
+        };
+        handler.postDelayed(stream.pendingRetry, delay);
+    }
+
+    /**
+     * Exponential backoff with jitter in [cap/2, cap).
+     */
+    private long getBackoffDelay(int retries) {
+        long cap = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(retries - 1, 16));
+        return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+    }
+
+    /**
+     * Returns the number of polls which are waiting for the server.
+     *
+     * @return
+     */
+    public int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    @Override
+    public String toString() {
+        return "IRLongPollEngine[streams=" + streams.size() + ";inFlight=" + inFlightCount +
+                ";waiting=" + waitingStreams.size() + ";polls=" + pollCount + ";retries=" + retryCount +
+                ";delivered=" + deliveredCount + ";discarded=" + discardedCount + "]";
+    }
+
+    private class Listener<T> implements Subscription {
+        private final Stream<T> stream;
+        private final String deviceId;
+        private final String hostname;
+        private final IRAPICallback<T> callback;
+        private boolean isCancelled;
+
+        public Listener(Stream<T> stream, String deviceId, String hostname, IRAPICallback<T> callback) {
+            this.stream = stream;
+            this.deviceId = deviceId;
+            this.hostname = hostname;
+            this.callback = callback;
+        }
+
+        public boolean matches(String deviceId, String hostname) {
+            return (this.deviceId == null || this.deviceId.equals(deviceId)) &&
+                    (this.hostname == null || this.hostname.equalsIgnoreCase(hostname));
+        }
+
+        @Override
+        public void cancel() {
+            if (isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            stream.listeners.remove(this);
+            onListenerCancelled(stream);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    private abstract class Stream<T> {
+        public final String key;
+        public final String clientkey;
+        public final ArrayList<Listener<T>> listeners = new ArrayList<>();
+        public Object currentPoll;
+        public Runnable pendingRetry;
+        public boolean isWaitingForSlot;
+        public int retries;
+
+        public Stream(String key, String clientkey) {
+            this.key = key;
+            this.clientkey = clientkey;
+        }
+
+        public boolean isIdle() {
+            return currentPoll == null && pendingRetry == null && !isWaitingForSlot;
+        }
+
+        protected Map<String, String> createParams() {
+            HashMap<String, String> params = new HashMap<>(3);
+            if (clientkey != null) {
+                params.put("clientkey", clientkey);
+            }
+            return params;
+        }
+
+        public abstract void request(Object token);
+    }
+
+    private class MessagesStream extends Stream<IRInternetAPIService.GetMessagesResponse> {
+        public boolean clearOnNextPoll;
+
+        public MessagesStream(String key, String clientkey) {
+            super(key, clientkey);
+        }
+
+        @Override
+        public void request(final Object token) {
+            Map<String, String> params = createParams();
+            if (clearOnNextPoll) {
+                params.put("clear", "1");
+                clearOnNextPoll = false;
+            }
+            service.getMessages(params, new Callback<IRInternetAPIService.GetMessagesResponse>() {
+                @Override
+                public void success(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                    if (!finishPoll(MessagesStream.this, token)) {
+                        return;
+                    }
+                    retries = 0;
+                    if (getMessagesResponse != null && getMessagesResponse.message != null) {
+                        for (Listener<IRInternetAPIService.GetMessagesResponse> listener : new ArrayList<>(listeners)) {
+                            if (listener.matches(getMessagesResponse.deviceid, getMessagesResponse.hostname)) {
+                                deliver(MessagesStream.this, listener, getMessagesResponse, response);
+                            }
+                        }
+                    }
+                    // Empty response, a message for other devices, or remaining listeners
+                    if (!listeners.isEmpty()) {
+                        startPoll(MessagesStream.this);
+                    } else {
+                        removeStream(MessagesStream.this);
+                    }
+                }
+
+                @Override
+                public void failure(RetrofitError error) {
+                    if (finishPoll(MessagesStream.this, token)) {
+                        handleFailure(MessagesStream.this, error);
+                    }
+                }
+            });
+        }
+    }
+
+    private class DoorStream extends Stream<IRInternetAPIService.PostDoorResponse> {
+        private final String deviceId;
+
+        public DoorStream(String key, String clientkey, String deviceId) {
+            super(key, clientkey);
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public void request(final Object token) {
+            Map<String, String> params = createParams();
+            params.put("deviceid", deviceId);
+            service.postDoor(params, new Callback<IRInternetAPIService.PostDoorResponse>() {
+                @Override
+                public void success(IRInternetAPIService.PostDoorResponse postDoorResponse, Response response) {
+                    if (!finishPoll(DoorStream.this, token)) {
+                        return;
+                    }
+                    retries = 0;
+                    if (postDoorResponse == null || postDoorResponse.hostname == null) {
+                        // Empty response. Retry.
+                        startPoll(DoorStream.this);
+                        return;
+                    }
+                    for (Listener<IRInternetAPIService.PostDoorResponse> listener : new ArrayList<>(listeners)) {
+                        deliver(DoorStream.this, listener, postDoorResponse, response);
+                    }
+                    removeStream(DoorStream.this);
+                }
+
+                @Override
+                public void failure(RetrofitError error) {
+                    if (finishPoll(DoorStream.this, token)) {
+                        handleFailure(DoorStream.this, error);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.getirkit.irkit.net;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streaming Gson TypeAdapter for IRDeviceAPIService.GetMessagesResponse.
+ *
+ * Pulses of "data" are read into a reusable per-thread int buffer and copied
+ * into an exactly sized int[] once at the end, instead of going through
+ * reflection and a boxed List&lt;Integer&gt;.
+ */
+public class IRMessagesResponseAdapter extends TypeAdapter<IRDeviceAPIService.GetMessagesResponse> {
+    public static final String TAG = IRMessagesResponseAdapter.class.getSimpleName();
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<int[]> buffers = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Returns a Gson which has this adapter registered.
+     *
+     * @return
+     */
+    public static Gson createGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(IRDeviceAPIService.GetMessagesResponse.class, new IRMessagesResponseAdapter())
+                .create();
+    }
+
+    @Override
+    public void write(JsonWriter out, IRDeviceAPIService.GetMessagesResponse value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("format").value(value.format);
+        out.name("freq").value(value.freq);
+        if (value.data != null) {
+            out.name("data").beginArray();
+            for (int pulse : value.data) {
+                out.value(pulse);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public IRDeviceAPIService.GetMessagesResponse read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        IRDeviceAPIService.GetMessagesResponse response = new IRDeviceAPIService.GetMessagesResponse();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "format":
+                    response.format = in.nextString();
+                    break;
+                case "freq":
+                    response.freq = in.nextDouble();
+                    break;
+                case "data":
+                    response.data = readData(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private static int[] readData(JsonReader in) throws IOException {
+        int[] buf = buffers.get();
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count == buf.length) {
+                int[] newBuf = new int[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+                buffers.set(buf);
+            }
+            buf[count++] = in.nextInt();
+        }
+        in.endArray();
+
+        // Trim to the exact size
+        int[] data = new int[count];
+        System.arraycopy(buf, 0, data, 0, count);
+        return data;
+    }
+}
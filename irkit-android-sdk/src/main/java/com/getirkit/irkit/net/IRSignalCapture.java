@@ -0,0 +1,279 @@
+package com.getirkit.irkit.net;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getirkit.irkit.IRPeripheral;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.Callback;
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+/**
+ * Waits for a signal received by IRKit, polling GET /messages of the devices
+ * on local network directly instead of going through the Internet server.
+ * Falls back to the Internet long poll when no device is reachable.
+ *
+ * Must be used on the main thread.
+ */
+public class IRSignalCapture implements IRLongPollEngine.Subscription {
+    public static final String TAG = IRSignalCapture.class.getSimpleName();
+
+    public static final int PATH_NONE = 0;
+    public static final int PATH_LOCAL = 1;
+    public static final int PATH_INTERNET = 2;
+
+    public static final long MIN_POLL_INTERVAL_MS = 100;
+    public static final long MAX_POLL_INTERVAL_MS = 500;
+
+    // A device is given up after this many consecutive failures
+    private static final int MAX_CONSECUTIVE_FAILURES = 2;
+
+    // If GET /messages was sent to a device within this time before start(), e.g. by
+    // clearLocalSignals() or a capture cancelled in onPause(), its first response is kept
+    private static final long MAX_CLEARED_AGE_MS = 10000;
+
+    // OkHttp adds this header to every response it receives
+    private static final String RECEIVED_MILLIS_HEADER = "OkHttp-Received-Millis";
+
+    private final IRHTTPClient httpClient;
+    private final IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayList<LocalPoller> pollers = new ArrayList<>();
+    private IRLongPollEngine.Subscription internetSubscription;
+    private boolean isCancelled;
+    private boolean isFinished;
+
+    private int path = PATH_NONE;
+    private long startTime;
+    private long latencyMs = -1;
+    private int pollCount;
+
+    IRSignalCapture(IRHTTPClient httpClient, IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        this.httpClient = httpClient;
+        this.callback = callback;
+    }
+
+    void start(List<IRPeripheral> peripherals) {
+        startTime = SystemClock.elapsedRealtime();
+        for (IRPeripheral peripheral : peripherals) {
+            IRDeviceAPIService service = httpClient.getDeviceAPIService(peripheral);
+            if (service != null) {
+                LocalPoller poller = new LocalPoller(peripheral, service);
+                long readAt = httpClient.getMessagesReadAt(peripheral.getDeviceAPIEndpoint());
+                poller.isPrimed = readAt >= 0 && readAt >= startTime - MAX_CLEARED_AGE_MS;
+                pollers.add(poller);
+            }
+        }
+        if (pollers.isEmpty()) {
+            startInternet();
+            return;
+        }
+        path = PATH_LOCAL;
+        for (LocalPoller poller : new ArrayList<>(pollers)) {
+            poller.poll();
+        }
+    }
+
+    private void startInternet() {
+        Log.d(TAG, "no device is reachable on local network; waiting over the Internet");
+        path = PATH_INTERNET;
+        internetSubscription = httpClient.getLongPollEngine().subscribeMessages(httpClient.getClientKey(), null, null, true,
+                new IRAPICallback<IRInternetAPIService.GetMessagesResponse>() {
+                    @Override
+                    public void success(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                        internetSubscription = null;
+                        // The hop from IRKit through the server can't be seen from here,
+                        // so this is the part from the arrival of the response.
+                        long receivedAt = getReceivedMillis(response);
+                        deliver(getMessagesResponse, response,
+                                receivedAt > 0 ? Math.max(0, System.currentTimeMillis() - receivedAt) : -1);
+                    }
+
+                    @Override
+                    public void failure(RetrofitError error) {
+                        internetSubscription = null;
+                        isFinished = true;
+                        callback.failure(error);
+                    }
+                });
+    }
+
+    private void deliver(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response, long latencyMs) {
+        isFinished = true;
+        this.latencyMs = latencyMs;
+        for (LocalPoller poller : pollers) {
+            handler.removeCallbacks(poller);
+        }
+        pollers.clear();
+        Log.d(TAG, "captured over " + (path == PATH_LOCAL ? "local network" : "Internet") +
+                ": latency=" + latencyMs + " ms; polls=" + pollCount +
+                "; elapsed=" + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        callback.success(getMessagesResponse, response);
+    }
+
+    private void onPollerGaveUp(LocalPoller poller) {
+        pollers.remove(poller);
+        if (pollers.isEmpty()) {
+            startInternet();
+        }
+    }
+
+    private static long getReceivedMillis(Response response) {
+        if (response == null || response.getHeaders() == null) {
+            return -1;
+        }
+        for (Header header : response.getHeaders()) {
+            if (RECEIVED_MILLIS_HEADER.equalsIgnoreCase(header.getName())) {
+                try {
+                    return Long.parseLong(header.getValue());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stop waiting. The callback won't be called after this.
+     * 信号の待機を中止します。
+     */
+    @Override
+    public void cancel() {
+        if (isCancelled) {
+            return;
+        }
+        isCancelled = true;
+        isFinished = true;
+        for (LocalPoller poller : pollers) {
+            handler.removeCallbacks(poller);
+        }
+        pollers.clear();
+        if (internetSubscription != null) {
+            internetSubscription.cancel();
+            internetSubscription = null;
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Returns PATH_LOCAL or PATH_INTERNET which is currently used (or was used to capture the signal).
+     *
+     * @return
+     */
+    public int getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the estimated time in ms from when IRKit received the signal to when it was delivered
+     * to the callback, or -1 if it isn't known yet.
+     * Over the Internet this only covers the time after the response has arrived.
+     *
+     * @return
+     */
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    /**
+     * Returns the number of GET /messages requests sent to devices.
+     *
+     * @return
+     */
+    public int getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * Polls one device. GET /messages of IRKit returns the last received signal
+     * only once, so polling it never misses a signal.
+     */
+    private class LocalPoller implements Runnable {
+        private final IRPeripheral peripheral;
+        private final IRDeviceAPIService service;
+        private boolean isPrimed;
+        private int failures;
+        private long interval = MIN_POLL_INTERVAL_MS;
+
+        // Midpoint of the last empty poll, i.e. estimated time the device handled it
+        private long lastEmptyPollAt = -1;
+
+        public LocalPoller(IRPeripheral peripheral, IRDeviceAPIService service) {
+            this.peripheral = peripheral;
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            poll();
+        }
+
+        public void poll() {
+            if (isFinished) {
+                return;
+            }
+            pollCount++;
+            final long sentAt = SystemClock.elapsedRealtime();
+            httpClient.recordMessagesRead(peripheral.getDeviceAPIEndpoint(), sentAt);
+            service.getMessages(new Callback<IRDeviceAPIService.GetMessagesResponse>() {
+                @Override
+                public void success(IRDeviceAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                    if (isFinished) {
+                        return;
+                    }
+                    long receivedAt = SystemClock.elapsedRealtime();
+                    long handledAt = (sentAt + receivedAt) / 2;
+                    peripheral.getLatencyEstimator().record(receivedAt - sentAt);
+                    failures = 0;
+                    boolean hasSignal = getMessagesResponse != null &&
+                            getMessagesResponse.data != null && getMessagesResponse.data.length > 0;
+                    if (!isPrimed) {
+                        // Nothing has read the device lately, so a signal in the first response
+                        // may have been received long before we started waiting
+                        isPrimed = true;
+                        hasSignal = false;
+                    }
+                    if (hasSignal) {
+                        long capturedAt = lastEmptyPollAt >= 0 ? (lastEmptyPollAt + handledAt) / 2 : handledAt;
+                        IRInternetAPIService.GetMessagesResponse result = new IRInternetAPIService.GetMessagesResponse();
+                        result.message = getMessagesResponse;
+                        result.deviceid = peripheral.getDeviceId();
+                        result.hostname = peripheral.getHostname();
+                        deliver(result, response, SystemClock.elapsedRealtime() - capturedAt);
+                        return;
+                    }
+                    lastEmptyPollAt = handledAt;
+                    // Back off while nothing happens, but never poll faster than the device responds
+                    long roundTrip = receivedAt - sentAt;
+                    interval = Math.min(MAX_POLL_INTERVAL_MS, Math.max(interval * 3 / 2, roundTrip));
+                    handler.postDelayed(LocalPoller.this, interval);
+                }
+
+                @Override
+                public void failure(RetrofitError error) {
+                    if (isFinished) {
+                        return;
+                    }
+                    Log.w(TAG, peripheral.getHostname() + " getMessages failure: " + error.getMessage());
+                    if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                        onPollerGaveUp(LocalPoller.this);
+                    } else {
+                        handler.postDelayed(LocalPoller.this, interval);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.getirkit.irkit.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes {"format","freq","data"} JSON of an IRSignal straight from its int[] data,
+ * without building JSONObject/JSONArray or boxing each pulse.
+ *
+ * Output goes to a reusable per-thread buffer, or is streamed to an OutputStream
+ * in chunks. In form mode the JSON is also percent-encoded as a value of
+ * application/x-www-form-urlencoded, so it can be sent as a request body as it is.
+ */
+public class IRSignalJsonEncoder {
+    public static final String TAG = IRSignalJsonEncoder.class.getSimpleName();
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int CHUNK_SIZE = 4096;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private static final ThreadLocal<IRSignalJsonEncoder> encoders = new ThreadLocal<IRSignalJsonEncoder>() {
+        @Override
+        protected IRSignalJsonEncoder initialValue() {
+            return new IRSignalJsonEncoder();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int pos;
+    private long count;
+    private boolean isCounting;
+    private boolean isFormEncoding;
+    private OutputStream out;
+
+    private IRSignalJsonEncoder() {
+    }
+
+    /**
+     * Returns JSON string of the signal.
+     *
+     * @param format
+     * @param freq
+     * @param data Can be null.
+     * @return null if freq is not a finite number
+     */
+    public static String toJson(String format, float freq, int[] data) {
+        if (!isValid(freq)) {
+            return null;
+        }
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startBuffering(false);
+        encoder.writeSignal(format, freq, data);
+        try {
+            return new String(encoder.buf, 0, encoder.pos, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns JSON of the signal as UTF-8 bytes.
+     *
+     * @param format
+     * @param freq
+     * @param data Can be null.
+     * @param formEncode If true, the JSON is percent-encoded for x-www-form-urlencoded
+     * @return
+     */
+    public static byte[] toBytes(String format, float freq, int[] data, boolean formEncode) {
+        checkValid(freq);
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startBuffering(formEncode);
+        encoder.writeSignal(format, freq, data);
+        byte[] bytes = new byte[encoder.pos];
+        System.arraycopy(encoder.buf, 0, bytes, 0, encoder.pos);
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes written by writeTo() without allocating anything.
+     *
+     * @param format
+     * @param freq
+     * @param data
+     * @param formEncode
+     * @return
+     */
+    public static long length(String format, float freq, int[] data, boolean formEncode) {
+        checkValid(freq);
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startCounting(formEncode);
+        encoder.writeSignal(format, freq, data);
+        return encoder.count;
+    }
+
+    /**
+     * Write JSON of the signal to out.
+     *
+     * @param out
+     * @param format
+     * @param freq
+     * @param data
+     * @param formEncode
+     * @throws IOException
+     */
+    public static void writeTo(OutputStream out, String format, float freq, int[] data, boolean formEncode) throws IOException {
+        checkValid(freq);
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startStreaming(out, formEncode);
+        try {
+            encoder.writeSignal(format, freq, data);
+            encoder.flushChunk();
+        } catch (StreamException e) {
+            throw e.getCause();
+        } finally {
+            encoder.out = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of value after x-www-form-urlencoded encoding.
+     *
+     * @param value
+     * @return
+     */
+    public static long formEncodedLength(String value) {
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startCounting(true);
+        encoder.writeRawString(value);
+        return encoder.count;
+    }
+
+    /**
+     * Write value to out with x-www-form-urlencoded encoding.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeFormEncoded(OutputStream out, String value) throws IOException {
+        IRSignalJsonEncoder encoder = encoders.get();
+        encoder.startStreaming(out, true);
+        try {
+            encoder.writeRawString(value);
+            encoder.flushChunk();
+        } catch (StreamException e) {
+            throw e.getCause();
+        } finally {
+            encoder.out = null;
+        }
+    }
+
+    private static boolean isValid(float freq) {
+        return !Float.isNaN(freq) && !Float.isInfinite(freq);
+    }
+
+    private static void checkValid(float freq) {
+        if (!isValid(freq)) {
+            throw new IllegalArgumentException("freq must be a finite number: " + freq);
+        }
+    }
+
+    private void startBuffering(boolean formEncode) {
+        pos = 0;
+        count = 0;
+        isCounting = false;
+        isFormEncoding = formEncode;
+        out = null;
+    }
+
+    private void startCounting(boolean formEncode) {
+        startBuffering(formEncode);
+        isCounting = true;
+    }
+
+    private void startStreaming(OutputStream out, boolean formEncode) {
+        startBuffering(formEncode);
+        this.out = out;
+    }
+
+    private void writeSignal(String format, float freq, int[] data) {
+        writeJson('{');
+        writeJsonAscii("\"format\":");
+        writeString(format);
+        writeJsonAscii(",\"freq\":");
+        writeFloat(freq);
+        if (data != null) {
+            writeJsonAscii(",\"data\":[");
+            for (int i = 0; i < data.length; i++) {
+                if (i != 0) {
+                    writeJson(',');
+                }
+                writeInt(data[i]);
+            }
+            writeJson(']');
+        }
+        writeJson('}');
+    }
+
+    private void writeJsonAscii(String s) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            writeJson(s.charAt(i));
+        }
+    }
+
+    private void writeFloat(float value) {
+        int intValue = (int) value;
+        if (intValue == value) {
+            writeInt(intValue);
+        } else {
+            writeJsonAscii(Float.toString(value));
+        }
+    }
+
+    private void writeInt(int value) {
+        if (value < 0) {
+            writeJson('-');
+            if (value == Integer.MIN_VALUE) {
+                writeJsonAscii("2147483648");
+                return;
+            }
+            value = -value;
+        }
+        int divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            writeJson('0' + (value / divisor) % 10);
+            divisor /= 10;
+        }
+    }
+
+    /**
+     * Write value as UTF-8 without JSON quoting.
+     */
+    private void writeRawString(String value) {
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt(i);
+            writeUtf8(value, i, c);
+            if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Write a JSON string literal.
+     */
+    private void writeString(String value) {
+        if (value == null) {
+            writeJsonAscii("null");
+            return;
+        }
+        writeJson('"');
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writeJson('\\');
+                    writeJson('"');
+                    break;
+                case '\\':
+                    writeJson('\\');
+                    writeJson('\\');
+                    break;
+                case '\n':
+                    writeJsonAscii("\\n");
+                    break;
+                case '\r':
+                    writeJsonAscii("\\r");
+                    break;
+                case '\t':
+                    writeJsonAscii("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writeJsonAscii("\\u00");
+                        writeJson(HEX[c >> 4]);
+                        writeJson(HEX[c & 0xf]);
+                    } else {
+                        writeUtf8(value, i, c);
+                        if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            i++;
+                        }
+                    }
+                    break;
+            }
+        }
+        writeJson('"');
+    }
+
+    private void writeUtf8(String s, int index, char c) {
+        if (c < 0x80) {
+            writeJson(c);
+        } else if (c < 0x800) {
+            writeJson(0xc0 | (c >> 6));
+            writeJson(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+            writeJson(0xf0 | (codePoint >> 18));
+            writeJson(0x80 | ((codePoint >> 12) & 0x3f));
+            writeJson(0x80 | ((codePoint >> 6) & 0x3f));
+            writeJson(0x80 | (codePoint & 0x3f));
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            // Unpaired surrogate
+            writeJson('?');
+        } else {
+            writeJson(0xe0 | (c >> 12));
+            writeJson(0x80 | ((c >> 6) & 0x3f));
+            writeJson(0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Write one byte of JSON, percent-encoding it in form mode.
+     */
+    private void writeJson(int b) {
+        b &= 0xff;
+        if (isFormEncoding) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                    b == '.' || b == '-' || b == '*' || b == '_') {
+                writeByte(b);
+            } else if (b == ' ') {
+                writeByte('+');
+            } else {
+                writeByte('%');
+                writeByte(HEX[b >> 4]);
+                writeByte(HEX[b & 0xf]);
+            }
+        } else {
+            writeByte(b);
+        }
+    }
+
+    private void writeByte(int b) {
+        count++;
+        if (isCounting) {
+            return;
+        }
+        if (pos == buf.length) {
+            if (out != null) {
+                flushChunk();
+            } else {
+                byte[] newBuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, pos);
+                buf = newBuf;
+            }
+        }
+        buf[pos++] = (byte) b;
+        if (out != null && pos >= CHUNK_SIZE) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (pos > 0) {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException e) {
+                throw new StreamException(e);
+            }
+            pos = 0;
+        }
+    }
+
+    /**
+     * Carries an IOException out of the write loop.
+     */
+    private static class StreamException extends RuntimeException {
+        public StreamException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
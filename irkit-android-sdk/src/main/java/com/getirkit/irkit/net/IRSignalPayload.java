@@ -0,0 +1,76 @@
+package com.getirkit.irkit.net;
+
+import com.getirkit.irkit.IRPulseCompressor;
+import com.getirkit.irkit.IRSignal;
+
+/**
+ * Request bodies of an IRSignal for the device API and the Internet API, encoded in advance.
+ *
+ * Encode once, e.g. when a scene is prepared, so that each send only writes bytes.
+ */
+public class IRSignalPayload {
+    public static final String TAG = IRSignalPayload.class.getSimpleName();
+
+    private final IRSignalTypedOutput deviceBody;
+    private final IRSignalTypedOutput internetBody;
+
+    private IRSignalPayload(IRSignalTypedOutput deviceBody, IRSignalTypedOutput internetBody) {
+        this.deviceBody = deviceBody;
+        this.internetBody = internetBody;
+    }
+
+    /**
+     * Encode both bodies of signal.
+     *
+     * @param signal
+     * @param clientkey Can be null.
+     * @return
+     */
+    public static IRSignalPayload encode(IRSignal signal, String clientkey) {
+        return encode(signal, clientkey, 0);
+    }
+
+    /**
+     * Encode both bodies of signal, sending a repeated frame at most maxFrameRepeats times.
+     *
+     * @param signal
+     * @param clientkey Can be null.
+     * @param maxFrameRepeats 0 to send all repeats
+     * @return
+     */
+    public static IRSignalPayload encode(IRSignal signal, String clientkey, int maxFrameRepeats) {
+        int[] data = signal.getData();
+        if (maxFrameRepeats > 0 && data != null) {
+            data = IRPulseCompressor.limitRepeats(data, maxFrameRepeats, IRPulseCompressor.DEFAULT_TOLERANCE_PERCENT);
+        }
+        return new IRSignalPayload(IRSignalTypedOutput.forDevice(signal, data).encode(),
+                IRSignalTypedOutput.forInternet(signal, data, clientkey).encode());
+    }
+
+    public IRSignalTypedOutput getDeviceBody() {
+        return deviceBody;
+    }
+
+    /**
+     * Returns the body for the Internet API, or null if it was encoded with another clientkey.
+     *
+     * @param clientkey Current clientkey
+     * @return
+     */
+    public IRSignalTypedOutput getInternetBody(String clientkey) {
+        String encodedClientkey = internetBody.getClientkey();
+        if (encodedClientkey == null ? clientkey != null : !encodedClientkey.equals(clientkey)) {
+            return null;
+        }
+        return internetBody;
+    }
+
+    /**
+     * Returns the total size of the encoded bodies in bytes.
+     *
+     * @return
+     */
+    public long length() {
+        return deviceBody.length() + internetBody.length();
+    }
+}
@@ -0,0 +1,172 @@
+package com.getirkit.irkit.net;
+
+import com.getirkit.irkit.IRSignal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import retrofit.mime.TypedOutput;
+
+/**
+ * Request body which streams an IRSignal with IRSignalJsonEncoder.
+ *
+ * For the device API the body is the JSON itself. For the Internet API it is
+ * a x-www-form-urlencoded body with clientkey, deviceid and message fields.
+ */
+public class IRSignalTypedOutput implements TypedOutput {
+    public static final String TAG = IRSignalTypedOutput.class.getSimpleName();
+
+    private static final String MIME_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final String MIME_TYPE_FORM = "application/x-www-form-urlencoded; charset=UTF-8";
+
+    private final String format;
+    private final float freq;
+    private final int[] data;
+    private final boolean isForm;
+    private final String clientkey;
+    private final String deviceId;
+    private long length = -1;
+    // Set by encode()
+    private byte[] encoded;
+
+    private IRSignalTypedOutput(IRSignal signal, int[] data, boolean isForm, String clientkey, String deviceId) {
+        this.format = signal.getFormat();
+        this.freq = signal.getFrequency();
+        this.data = data;
+        this.isForm = isForm;
+        this.clientkey = clientkey;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Returns a body for POST /messages of the device API.
+     *
+     * @param signal
+     * @return
+     */
+    public static IRSignalTypedOutput forDevice(IRSignal signal) {
+        return forDevice(signal, signal.getData());
+    }
+
+    /**
+     * Same as forDevice(IRSignal) but sends data instead of the data of signal.
+     *
+     * @param signal
+     * @param data
+     * @return
+     */
+    public static IRSignalTypedOutput forDevice(IRSignal signal, int[] data) {
+        return new IRSignalTypedOutput(signal, data, false, null, null);
+    }
+
+    /**
+     * Returns a body for POST /1/messages of the Internet API.
+     *
+     * @param signal
+     * @param clientkey Can be null.
+     * @return
+     */
+    public static IRSignalTypedOutput forInternet(IRSignal signal, String clientkey) {
+        return forInternet(signal, signal.getData(), clientkey);
+    }
+
+    /**
+     * Same as forInternet(IRSignal, String) but sends data instead of the data of signal.
+     *
+     * @param signal
+     * @param data
+     * @param clientkey Can be null.
+     * @return
+     */
+    public static IRSignalTypedOutput forInternet(IRSignal signal, int[] data, String clientkey) {
+        return new IRSignalTypedOutput(signal, data, true, clientkey, signal.getDeviceId());
+    }
+
+    /**
+     * Encode the body now and keep the bytes, so that later writeTo() calls only copy them.
+     * Use this for a body which is sent more than once or whose send must start quickly.
+     *
+     * @return this
+     */
+    public IRSignalTypedOutput encode() {
+        if (encoded == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) length());
+            try {
+                writeTo(out);
+            } catch (IOException e) {
+                // ByteArrayOutputStream doesn't throw
+                throw new IllegalStateException(e);
+            }
+            encoded = out.toByteArray();
+        }
+        return this;
+    }
+
+    public boolean isEncoded() {
+        return encoded != null;
+    }
+
+    public String getClientkey() {
+        return clientkey;
+    }
+
+    @Override
+    public String fileName() {
+        return null;
+    }
+
+    @Override
+    public String mimeType() {
+        return isForm ? MIME_TYPE_FORM : MIME_TYPE_JSON;
+    }
+
+    @Override
+    public long length() {
+        if (encoded != null) {
+            return encoded.length;
+        }
+        if (length == -1) {
+            long len = IRSignalJsonEncoder.length(format, freq, data, isForm);
+            if (isForm) {
+                len += "message=".length();
+                if (deviceId != null) {
+                    len += "deviceid=".length() + IRSignalJsonEncoder.formEncodedLength(deviceId) + 1;
+                }
+                if (clientkey != null) {
+                    len += "clientkey=".length() + IRSignalJsonEncoder.formEncodedLength(clientkey) + 1;
+                }
+            }
+            length = len;
+        }
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (encoded != null) {
+            out.write(encoded);
+            return;
+        }
+        if (isForm) {
+            if (clientkey != null) {
+                writeAscii(out, "clientkey=");
+                IRSignalJsonEncoder.writeFormEncoded(out, clientkey);
+                out.write('&');
+            }
+            if (deviceId != null) {
+                writeAscii(out, "deviceid=");
+                IRSignalJsonEncoder.writeFormEncoded(out, deviceId);
+                out.write('&');
+            }
+            writeAscii(out, "message=");
+        }
+        IRSignalJsonEncoder.writeTo(out, format, freq, data, isForm);
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            out.write(s.charAt(i));
+        }
+    }
+}